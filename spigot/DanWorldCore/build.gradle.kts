@@ -0,0 +1,42 @@
+plugins {
+    `java-library`
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+group = "me.danny"
+version = "1.0-SNAPSHOT"
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_21
+    targetCompatibility = JavaVersion.VERSION_21
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
+
+// The encoder doesn't depend on Bukkit, so it can be benchmarked without a server:
+// ./gradlew jmh
+// Recorded sections from /danworld record can be added with -Pdanworld.recording=<file>
+jmh {
+    jmhVersion = "1.37"
+    // ns/section, allocation rate and output size (the bytes/sections counters)
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    val recording = providers.gradleProperty("danworld.recording")
+    if (recording.isPresent) {
+        jvmArgsAppend = listOf("-Ddanworld.recording=${file(recording.get()).absolutePath}")
+        benchmarkParameters.put("fixture", objects.listProperty(String::class.java).value(
+            listOf("terrain", "air", "high-palette", "data-heavy", "recorded")))
+    }
+}
@@ -0,0 +1,84 @@
+package me.danny.danworld.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to encode one section, in ns. Run with the gc profiler (the default in build.gradle.kts) for allocations per section,
+ * and see the bytes and sections counters for the output size: bytes / sections is the average size of a section.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SectionEncoderBenchmark {
+
+  @Param({ "terrain", "air", "high-palette", "data-heavy" })
+  public String fixture;
+
+  @Param({ "4" })
+  public int version;
+
+  private ArrayBlockSource source;
+  private SectionEncoder encoder;
+  private ByteArrayOutputStream buffer;
+  private DataOutputStream out;
+  private int next;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Output {
+    public long bytes;
+    public long sections;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+      sections = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    source = SectionFixtures.create(fixture);
+    encoder = new SectionEncoder();
+    buffer = new ByteArrayOutputStream(64 * 1024);
+    out = new DataOutputStream(buffer);
+  }
+
+  @Benchmark
+  public int encodeSection(Output output) throws IOException {
+    //Walk through every section of the fixture in file order, so it isn't just one section over and over
+    var section = next;
+    next = (next + 1) % source.sections();
+
+    var y = section % source.height();
+    var column = section / source.height();
+    var x = column / source.depth();
+    var z = column % source.depth();
+
+    buffer.reset();
+    encoder.encode(EncodeListener.NONE, out, source, x * 16, y * 16, z * 16, version);
+    output.bytes += buffer.size();
+    output.sections++;
+    return buffer.size();
+  }
+}
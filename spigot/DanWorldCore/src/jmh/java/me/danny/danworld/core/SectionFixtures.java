@@ -0,0 +1,165 @@
+package me.danny.danworld.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Sections to benchmark the encoder with. Everything synthetic is seeded, so runs are comparable.
+ */
+final class SectionFixtures {
+
+  //Enough sections that they don't all sit in L1, few enough to build quickly
+  private static final int WIDTH = 4;
+  private static final int HEIGHT = 8;
+  private static final int DEPTH = 4;
+  private static final long SEED = 0xDA9_0001L;
+
+  private SectionFixtures() {}
+
+  static ArrayBlockSource create(String fixture) {
+    return switch(fixture) {
+      case "terrain" -> terrain();
+      case "air" -> airHeavy();
+      case "high-palette" -> highPalette();
+      case "data-heavy" -> dataHeavy();
+      case "recorded" -> recorded();
+      default -> throw new IllegalArgumentException("Unknown fixture " + fixture);
+    };
+  }
+
+  //Rolling hills: stone with ores, dirt, grass, water in the valleys and air above, over a couple of biomes
+  private static ArrayBlockSource terrain() {
+    var registry = new StateRegistry();
+    var source = new ArrayBlockSource(registry, WIDTH, HEIGHT, DEPTH);
+    var random = new SplittableRandom(SEED);
+
+    var air = registry.state("air");
+    var stone = registry.state("stone");
+    var dirt = registry.state("dirt");
+    var grass = registry.state("grass_block");
+    var water = registry.state("water");
+    int[] ores = { registry.state("coal_ore"), registry.state("iron_ore"), registry.state("gravel"), registry.state("andesite") };
+    var plains = registry.biome("minecraft:plains");
+    var forest = registry.biome("minecraft:forest");
+    var seaLevel = 62;
+
+    for(int sx = 0; sx < WIDTH; sx++) {
+      for(int sz = 0; sz < DEPTH; sz++) {
+        for(int sy = 0; sy < HEIGHT; sy++) {
+          var section = source.index(sx, sy, sz);
+          for(int x = 0; x < 16; x++) {
+            for(int z = 0; z < 16; z++) {
+              var wx = sx * 16 + x;
+              var wz = sz * 16 + z;
+              var surface = 56 + (int) (10 * Math.sin(wx / 11.0) * Math.cos(wz / 13.0));
+              for(int y = 0; y < 16; y++) {
+                var wy = sy * 16 + y;
+                int state;
+                if(wy > surface) state = wy <= seaLevel? water : air;
+                else if(wy == surface) state = wy < seaLevel? dirt : grass;
+                else if(wy > surface - 4) state = dirt;
+                else state = random.nextInt(20) == 0? ores[random.nextInt(ores.length)] : stone;
+                source.setBlock(section, x, y, z, state);
+                source.setBiome(section, x, y, z, wx < 32? plains : forest);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    return source;
+  }
+
+  //Mostly empty sky with the odd block, like the top of a build
+  private static ArrayBlockSource airHeavy() {
+    var registry = new StateRegistry();
+    var source = new ArrayBlockSource(registry, WIDTH, HEIGHT, DEPTH);
+    var random = new SplittableRandom(SEED);
+
+    var air = registry.state("air");
+    int[] blocks = { registry.state("glass"), registry.state("oak_planks"), registry.state("white_wool") };
+    registry.biome("minecraft:plains");
+
+    for(int s = 0; s < source.sections(); s++) {
+      for(int i = 0; i < SectionEncoder.SECTION_BLOCKS; i++) {
+        var state = random.nextInt(200) == 0? blocks[random.nextInt(blocks.length)] : air;
+        source.setBlock(s, (i >> 4) & 15, i >> 8, i & 15, state);
+      }
+    }
+
+    return source;
+  }
+
+  //Over a thousand distinct states, randomly mixed. Worst case for palettes and bits per block.
+  private static ArrayBlockSource highPalette() {
+    var registry = new StateRegistry();
+    var source = new ArrayBlockSource(registry, WIDTH, HEIGHT, DEPTH);
+    var random = new SplittableRandom(SEED);
+
+    var states = new int[1500];
+    for(int i = 0; i < states.length; i++) {
+      states[i] = registry.state("block_" + i);
+    }
+    int[] biomes = { registry.biome("minecraft:plains"), registry.biome("minecraft:desert"), registry.biome("minecraft:jungle"),
+      registry.biome("datapack:custom_biome") };
+
+    for(int s = 0; s < source.sections(); s++) {
+      for(int i = 0; i < SectionEncoder.SECTION_BLOCKS; i++) {
+        var x = (i >> 4) & 15;
+        var y = i >> 8;
+        var z = i & 15;
+        source.setBlock(s, x, y, z, states[random.nextInt(states.length)]);
+        source.setBiome(s, x, y, z, biomes[random.nextInt(biomes.length)]);
+      }
+    }
+
+    return source;
+  }
+
+  //Stairs, fences and slabs in every orientation, so most states carry block data
+  private static ArrayBlockSource dataHeavy() {
+    var registry = new StateRegistry();
+    var source = new ArrayBlockSource(registry, WIDTH, HEIGHT, DEPTH);
+    var random = new SplittableRandom(SEED);
+
+    String[] materials = { "oak_stairs", "stone_brick_stairs", "oak_fence", "iron_bars", "oak_door", "rail", "wheat" };
+    var data = new short[StateRegistry.MAX_DATA];
+    var states = new int[256];
+    for(int i = 0; i < states.length; i++) {
+      var material = registry.material(materials[i % materials.length]);
+      var len = 1 + random.nextInt(4);
+      for(int j = 0; j < len; j++) {
+        //TTTT DDDD DDDD DDDD, one element per data type
+        data[j] = (short) (j << 12 | random.nextInt(16));
+      }
+      states[i] = registry.state(material, data, 0, len);
+    }
+    registry.biome("minecraft:plains");
+
+    for(int s = 0; s < source.sections(); s++) {
+      for(int i = 0; i < SectionEncoder.SECTION_BLOCKS; i++) {
+        source.setBlock(s, (i >> 4) & 15, i >> 8, i & 15, states[random.nextInt(states.length)]);
+      }
+    }
+
+    return source;
+  }
+
+  //Sections captured from a real world with /danworld record
+  private static ArrayBlockSource recorded() {
+    var file = System.getProperty("danworld.recording");
+    if(file == null) throw new IllegalStateException("Pass a recording with -Pdanworld.recording=<file>");
+
+    try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(file))))) {
+      return ArrayBlockSource.read(in);
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package me.danny.danworld.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Blocks and biomes held in memory, section by section. Used for benchmarks, and for recordings of real worlds.
+ *
+ * Sections are numbered in XZ order like chunks, with Y as the innermost loop, and biomes are kept per 4x4x4 cell.
+ */
+public final class ArrayBlockSource implements BlockSource {
+
+  private static final int MAGIC = 0x44575243; //DWRC
+  private static final int CELLS = 4 * 4 * 4;
+
+  private final StateRegistry registry;
+  private final int width;
+  private final int height;
+  private final int depth;
+  private final int[][] sectionStates;
+  private final int[][] sectionBiomes;
+
+  /**
+   * An empty source of width x height x depth sections. Every block starts out as state 0 in biome 0.
+   */
+  public ArrayBlockSource(StateRegistry registry, int width, int height, int depth) {
+    this.registry = registry;
+    this.width = width;
+    this.height = height;
+    this.depth = depth;
+
+    var sections = width * height * depth;
+    sectionStates = new int[sections][SectionEncoder.SECTION_BLOCKS];
+    sectionBiomes = new int[sections][CELLS];
+  }
+
+  /**
+   * Copy width x height x depth sections out of another source, i.e. to record a captured region.
+   */
+  public static ArrayBlockSource copyOf(BlockSource source, int width, int height, int depth) {
+    var copy = new ArrayBlockSource(source.registry(), width, height, depth);
+    for(int x = 0; x < width; x++) {
+      for(int z = 0; z < depth; z++) {
+        for(int y = 0; y < height; y++) {
+          var section = copy.index(x, y, z);
+          source.blocks(x * 16, y * 16, z * 16, copy.sectionStates[section]);
+          source.biomes(x * 16, y * 16, z * 16, 4, copy.sectionBiomes[section]);
+        }
+      }
+    }
+
+    return copy;
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  public int depth() {
+    return depth;
+  }
+
+  public int sections() {
+    return sectionStates.length;
+  }
+
+  //Block at (x, y, z) of a section, in section coordinates
+  public void setBlock(int section, int x, int y, int z, int state) {
+    sectionStates[section][y << 8 | x << 4 | z] = state;
+  }
+
+  //Biome of the 4x4x4 cell containing (x, y, z) of a section
+  public void setBiome(int section, int x, int y, int z, int biome) {
+    sectionBiomes[section][(y >> 2) << 4 | (x >> 2) << 2 | (z >> 2)] = biome;
+  }
+
+  /**
+   * Index of the section whose lowest corner is at (x, y, z) in sections.
+   */
+  public int index(int x, int y, int z) {
+    return (x * depth + z) * height + y;
+  }
+
+  @Override
+  public StateRegistry registry() {
+    return registry;
+  }
+
+  @Override
+  public void blocks(int x, int y, int z, int[] states) {
+    System.arraycopy(sectionStates[index(x >> 4, y >> 4, z >> 4)], 0, states, 0, SectionEncoder.SECTION_BLOCKS);
+  }
+
+  @Override
+  public void biomes(int x, int y, int z, int step, int[] biomes) {
+    var cells = sectionBiomes[index(x >> 4, y >> 4, z >> 4)];
+    if(step == 4) {
+      System.arraycopy(cells, 0, biomes, 0, CELLS);
+      return;
+    }
+
+    var i = 0;
+    for(int by = 0; by < 16; by += step) {
+      for(int bx = 0; bx < 16; bx += step) {
+        for(int bz = 0; bz < 16; bz += step, i++) {
+          biomes[i] = cells[(by >> 2) << 4 | (bx >> 2) << 2 | (bz >> 2)];
+        }
+      }
+    }
+  }
+
+  /**
+   * Save this source along with the part of the registry it uses, see read.
+   */
+  public void write(DataOutputStream d) throws IOException {
+    d.writeInt(MAGIC);
+    d.writeInt(width);
+    d.writeInt(height);
+    d.writeInt(depth);
+
+    //The whole registry, so ids stay the same when read back
+    var materials = registry.materialCount();
+    d.writeInt(materials);
+    for(int i = 0; i < materials; i++) {
+      DanFormat.writeString(d, registry.materialKey(i));
+    }
+
+    var states = registry.stateCount();
+    d.writeInt(states);
+    for(int i = 0; i < states; i++) {
+      d.writeInt(registry.materialOf(i));
+      var data = registry.data(i);
+      d.writeByte(data.length);
+      for(var element : data) {
+        d.writeShort(element);
+      }
+    }
+
+    var biomes = registry.biomeCount();
+    d.writeInt(biomes);
+    for(int i = 0; i < biomes; i++) {
+      DanFormat.writeString(d, registry.biomeKey(i));
+    }
+
+    for(int s = 0; s < sections(); s++) {
+      for(var state : sectionStates[s]) {
+        d.writeInt(state);
+      }
+      for(var biome : sectionBiomes[s]) {
+        d.writeInt(biome);
+      }
+    }
+  }
+
+  /**
+   * Read a source saved by write, with a registry of its own.
+   */
+  public static ArrayBlockSource read(DataInputStream in) throws IOException {
+    if(in.readInt() != MAGIC) throw new IOException("Not a recording of sections.");
+
+    var width = in.readInt();
+    var height = in.readInt();
+    var depth = in.readInt();
+
+    var registry = new StateRegistry();
+    var materials = in.readInt();
+    for(int i = 0; i < materials; i++) {
+      registry.material(DanFormat.readString(in));
+    }
+
+    var states = in.readInt();
+    var data = new short[StateRegistry.MAX_DATA];
+    for(int i = 0; i < states; i++) {
+      var material = in.readInt();
+      var len = in.readUnsignedByte();
+      for(int j = 0; j < len; j++) {
+        data[j] = in.readShort();
+      }
+      registry.state(material, data, 0, len);
+    }
+
+    var biomes = in.readInt();
+    for(int i = 0; i < biomes; i++) {
+      registry.biome(DanFormat.readString(in));
+    }
+
+    var source = new ArrayBlockSource(registry, width, height, depth);
+    for(int s = 0; s < source.sections(); s++) {
+      var sectionStates = source.sectionStates[s];
+      for(int i = 0; i < sectionStates.length; i++) {
+        sectionStates[i] = in.readInt();
+      }
+      var sectionBiomes = source.sectionBiomes[s];
+      for(int i = 0; i < sectionBiomes.length; i++) {
+        sectionBiomes[i] = in.readInt();
+      }
+    }
+
+    return source;
+  }
+}
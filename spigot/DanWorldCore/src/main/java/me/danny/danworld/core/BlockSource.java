@@ -0,0 +1,25 @@
+package me.danny.danworld.core;
+
+/**
+ * Where the blocks of an export come from, i.e. a captured region of a Bukkit world, or a recording.
+ *
+ * Coordinates are relative to the corner of the export. Blocks the export doesn't cover at all
+ * must still be filled in, usually as void air in plains.
+ */
+public interface BlockSource {
+  /**
+   * Ids of every block state and biome this source returns.
+   */
+  StateRegistry registry();
+
+  /**
+   * Fill states with the state id of every block of the 16x16x16 section whose lowest corner is (x, y, z), in YXZ order.
+   */
+  void blocks(int x, int y, int z, int[] states);
+
+  /**
+   * Fill biomes with the biome id of every `step`th block of the same section, in YXZ order.
+   * A step of 1 is every block (4096), a step of 4 is the lowest corner of every 4x4x4 cell (64).
+   */
+  void biomes(int x, int y, int z, int step, int[] biomes);
+}
@@ -0,0 +1,76 @@
+package me.danny.danworld.core;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Primitives of the .dan format shared by everything that reads or writes it, see design.txt.
+ */
+public final class DanFormat {
+  //Version 2 stores biomes as a palette per section
+  //Version 3 stores blocks as bit-packed indices into a palette of block states
+  //Version 4 picks between a single state, runs or packed indices for each section
+  //Version 5 stores every distinct section once, and chunks refer to them
+  //Version 6 stores the tile entities and marker entities of each chunk after its sections
+  //Version 7 ends with a CRC-32 of every section
+  public static final int CURRENT_VERSION = 7;
+  public static final int SHARED_SECTIONS_VERSION = 5;
+  public static final int OBJECTS_VERSION = 6;
+  public static final int CHECKSUMS_VERSION = 7;
+
+  private DanFormat() {}
+
+  //Same as Minecraft's VarInt: 7 bits at a time, lowest first, with the high bit set when more follow
+  public static void writeVarInt(DataOutputStream d, int value) throws IOException {
+    while((value & ~0x7F) != 0) {
+      d.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    d.writeByte(value);
+  }
+
+  public static int varIntSize(int value) {
+    return value < (1 << 7)? 1 : value < (1 << 14)? 2 : value < (1 << 21)? 3 : value < (1 << 28)? 4 : 5;
+  }
+
+  //Write strings in a UTF-8 length-prefixed format. I don't like DataOutputStream#writeUTF
+  public static void writeString(DataOutputStream d, String str) throws IOException {
+    writeString(d, str.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static void writeString(DataOutputStream d, byte[] utf8) throws IOException {
+    d.writeByte(utf8.length);
+    d.write(utf8);
+  }
+
+  //Text that may not fit a DanString, i.e. sign lines and custom names: a VarInt length, then UTF-8
+  public static void writeText(DataOutputStream d, String str) throws IOException {
+    var utf8 = str.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(d, utf8.length);
+    d.write(utf8);
+  }
+
+  public static int readVarInt(DataInput in) throws IOException {
+    var value = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+      var b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) return value;
+    }
+    throw new IOException("VarInt is longer than 5 bytes.");
+  }
+
+  public static String readString(DataInput in) throws IOException {
+    var bytes = new byte[in.readUnsignedByte()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public static String readText(DataInput in) throws IOException {
+    var bytes = new byte[readVarInt(in)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,149 @@
+package me.danny.danworld.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What comes before the first chunk of a .dan file, in either layout, see design.txt: the header, and the frame index
+ * of framed files. Along with the extras and checksums, it's read the same way by every reader of the format.
+ *
+ * offsets and lengths are null for the stream layout, whose codec is always GZIP. Not to be modified.
+ */
+public record DanHeader(int version, int dimension, int width, int depth, int codec, byte[] dictionary, long[] offsets, int[] lengths) {
+
+  //Codec ids of the framed layout
+  public static final int NONE = 0;
+  public static final int GZIP = 1;
+  public static final int DEFLATE = 2;
+  public static final int LZ4 = 3;
+  public static final int ZSTD = 4;
+
+  private static final int GZIP_MAGIC = 0x1f8b;
+  private static final String MAGIC = "DanWorld";
+  //Sections of a chunk are counted with a byte
+  private static final int MAX_SECTIONS = 255;
+
+  /**
+   * Whether in, which has to support mark, is a file of the stream layout. Stream files are one GZIP stream,
+   * framed ones start with the uncompressed magic. Nothing is consumed.
+   */
+  public static boolean isStream(InputStream in) throws IOException {
+    in.mark(2);
+    var magic = (in.read() << 8) | in.read();
+    in.reset();
+    return magic == GZIP_MAGIC;
+  }
+
+  /**
+   * The header of a stream file, from the inflated stream.
+   */
+  public static DanHeader readStream(DataInputStream d) throws IOException {
+    checkMagic(d);
+    var version = checkVersion(d.readUnsignedByte());
+    var dimension = d.readUnsignedByte();
+    var width = d.readUnsignedShort();
+    var depth = d.readUnsignedShort();
+    return new DanHeader(version, dimension, width, depth, GZIP, null, null, null);
+  }
+
+  /**
+   * The header and frame index of a framed file, from the start of the file.
+   */
+  public static DanHeader readFramed(DataInputStream d) throws IOException {
+    checkMagic(d);
+    var version = checkVersion(d.readUnsignedByte());
+    var codec = d.readUnsignedByte();
+    var dictionary = new byte[0];
+    if(codec == ZSTD) {
+      dictionary = new byte[d.readInt()];
+      d.readFully(dictionary);
+    }
+    var dimension = d.readUnsignedByte();
+    var width = d.readUnsignedShort();
+    var depth = d.readUnsignedShort();
+
+    //Every chunk, then the extras, then the section table from version 5, then the checksums from version 7
+    var entries = width * depth + 1 + (version >= DanFormat.SHARED_SECTIONS_VERSION? 1 : 0) + (version >= DanFormat.CHECKSUMS_VERSION? 1 : 0);
+    var offsets = new long[entries];
+    var lengths = new int[entries];
+    for(int i = 0; i < entries; i++) {
+      offsets[i] = d.readLong();
+      lengths[i] = d.readInt();
+    }
+    return new DanHeader(version, dimension, width, depth, codec, dictionary, offsets, lengths);
+  }
+
+  public boolean isFramed() {
+    return offsets != null;
+  }
+
+  public int chunkCount() {
+    return width * depth;
+  }
+
+  /**
+   * Index of the frame holding the extras, after every chunk.
+   */
+  public int extrasFrame() {
+    return width * depth;
+  }
+
+  /**
+   * Index of the frame holding the section table, from version 5.
+   */
+  public int tableFrame() {
+    return width * depth + 1;
+  }
+
+  /**
+   * Index of the frame holding the checksums, from version 7.
+   */
+  public int checksumsFrame() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Every extra, by key, in the order they were written. See DanExtra in design.txt.
+   */
+  public Map<String, byte[]> readExtras(DataInputStream in) throws IOException {
+    var count = in.readInt();
+    var extras = new LinkedHashMap<String, byte[]>();
+    for(int i = 0; i < count; i++) {
+      var key = DanFormat.readString(in);
+      var bytes = new byte[version >= 3? DanFormat.readVarInt(in) : in.readUnsignedShort()];
+      in.readFully(bytes);
+      extras.put(key, bytes);
+    }
+    return Collections.unmodifiableMap(extras);
+  }
+
+  /**
+   * The checksum of every section in the file, in XZ order then Y, see Checksums in design.txt.
+   */
+  public int[] readChecksums(DataInputStream in) throws IOException {
+    var count = DanFormat.readVarInt(in);
+    var chunks = chunkCount();
+    if(count < 0 || count > (long) chunks * MAX_SECTIONS || (chunks > 0 && count % chunks != 0)) {
+      throw new IOException("Checksums don't add up to whole chunks.");
+    }
+
+    var checksums = new int[count];
+    for(int i = 0; i < count; i++) {
+      checksums[i] = in.readInt();
+    }
+    return checksums;
+  }
+
+  private static void checkMagic(DataInputStream d) throws IOException {
+    if(!MAGIC.equals(DanFormat.readString(d))) throw new IOException("Not a DanWorld file.");
+  }
+
+  private static int checkVersion(int version) throws IOException {
+    if(version < 1 || version > DanFormat.CURRENT_VERSION) throw new IOException("Version %d can't be read.".formatted(version));
+    return version;
+  }
+}
@@ -0,0 +1,22 @@
+package me.danny.danworld.core;
+
+/**
+ * Told about every section an encoder writes, for metrics and debug logging.
+ */
+public interface EncodeListener {
+  EncodeListener NONE = new EncodeListener() {};
+
+  default boolean isVerbose() {
+    return false;
+  }
+
+  /**
+   * Only called with anything useful when isVerbose() is true. The message is only formatted then too.
+   */
+  default void verbose(String format, Object... args) {}
+
+  /**
+   * A section was written. encoding is one of SectionEncoder.BLOCKS_*, or -1 for versions that don't pick one.
+   */
+  default void section(int bytes, int paletteSize, int encoding) {}
+}
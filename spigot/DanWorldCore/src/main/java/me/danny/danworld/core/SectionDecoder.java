@@ -0,0 +1,182 @@
+package me.danny.danworld.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decodes chunk sections of the .dan format back into state and biome ids of a StateRegistry. The reverse of SectionEncoder.
+ *
+ * Like the encoder, a decoder reuses its working arrays from one section to the next, and is not thread safe.
+ */
+public final class SectionDecoder {
+
+  public static final int BIOME_CELLS = 4 * 4 * 4;
+
+  private static final int NAMED_BIOME = 255;
+
+  //Palette index -> state id, or material id up to version 2
+  private int[] palette = new int[256];
+  //Palette index -> state id of the material without block data, up to version 2
+  private int[] plainStates = new int[256];
+  private final int[] biomePalette = new int[256];
+  private final byte[] blockBytes = new byte[SectionEncoder.SECTION_BLOCKS];
+  private final byte[] blockBiomes = new byte[SectionEncoder.SECTION_BLOCKS];
+  private final byte[] biomeCells = new byte[BIOME_CELLS];
+  private final short[] data = new short[StateRegistry.MAX_DATA];
+
+  /**
+   * Decode the next section of in, written with the given version.
+   * states receives the state of every block in YXZ order, biomes the biome of every 4x4x4 cell in YXZ order.
+   * Anything the registry hasn't seen yet is registered.
+   */
+  public void decode(DataInputStream in, int version, StateRegistry registry, int[] states, int[] biomes) throws IOException {
+    if(version >= 3) {
+      decodeStates(in, version, registry, states);
+      readBiomePalette(in, registry, biomes);
+    } else {
+      decodeLegacy(in, version, registry, states, biomes);
+    }
+  }
+
+  private void decodeStates(DataInputStream in, int version, StateRegistry registry, int[] states) throws IOException {
+    var paletteSize = DanFormat.readVarInt(in);
+    if(paletteSize > SectionEncoder.SECTION_BLOCKS) throw new IOException("Palette of %d states is bigger than a section.".formatted(paletteSize));
+    ensurePalette(paletteSize);
+
+    for(int i = 0; i < paletteSize; i++) {
+      var material = registry.material(DanFormat.readString(in));
+      var len = in.readUnsignedByte();
+      if(len > StateRegistry.MAX_DATA) throw new IOException("Block state has %d data elements.".formatted(len));
+      for(int j = 0; j < len; j++) {
+        data[j] = in.readShort();
+      }
+      palette[i] = registry.state(material, data, 0, len);
+    }
+
+    var encoding = version == 3? SectionEncoder.BLOCKS_PACKED : in.readUnsignedByte();
+    switch(encoding) {
+      case SectionEncoder.BLOCKS_SINGLE -> Arrays.fill(states, 0, SectionEncoder.SECTION_BLOCKS, palette[0]);
+      case SectionEncoder.BLOCKS_RUNS -> readRuns(in, paletteSize, states);
+      case SectionEncoder.BLOCKS_PACKED -> readPacked(in, paletteSize, states);
+      default -> throw new IOException("Unknown section block encoding " + encoding);
+    }
+  }
+
+  private void readRuns(DataInputStream in, int paletteSize, int[] states) throws IOException {
+    var runs = DanFormat.readVarInt(in);
+    var i = 0;
+    for(int r = 0; r < runs; r++) {
+      var index = DanFormat.readVarInt(in);
+      var len = DanFormat.readVarInt(in);
+      if(index >= paletteSize || len > SectionEncoder.SECTION_BLOCKS - i) throw new IOException("Block run is out of bounds.");
+      Arrays.fill(states, i, i + len, palette[index]);
+      i += len;
+    }
+    if(i != SectionEncoder.SECTION_BLOCKS) throw new IOException("Block runs cover %d blocks of a section.".formatted(i));
+  }
+
+  //Indices never span two longs, and the first one is in the lowest bits
+  private void readPacked(DataInputStream in, int paletteSize, int[] states) throws IOException {
+    var bits = in.readUnsignedByte();
+    if(bits == 0) {
+      Arrays.fill(states, 0, SectionEncoder.SECTION_BLOCKS, palette[0]);
+      return;
+    }
+    if(bits > 16) throw new IOException("Blocks are packed with %d bits each.".formatted(bits));
+
+    var perLong = 64 / bits;
+    var mask = (1L << bits) - 1;
+    var i = 0;
+    while(i < SectionEncoder.SECTION_BLOCKS) {
+      var packed = in.readLong();
+      for(int j = 0; j < perLong && i < SectionEncoder.SECTION_BLOCKS; j++, i++) {
+        var index = (int) ((packed >>> (j * bits)) & mask);
+        if(index >= paletteSize) throw new IOException("Block index %d is outside the palette.".formatted(index));
+        states[i] = palette[index];
+      }
+    }
+  }
+
+  //Versions 1 and 2: a palette of materials, then block data for the blocks that have any
+  private void decodeLegacy(DataInputStream in, int version, StateRegistry registry, int[] states, int[] biomes) throws IOException {
+    var paletteSize = in.readUnsignedByte();
+    for(int i = 0; i < paletteSize; i++) {
+      palette[i] = registry.material(DanFormat.readString(in));
+      plainStates[i] = registry.state(palette[i], data, 0, 0);
+    }
+
+    var blocks = in.readUnsignedShort();
+    if(blocks != SectionEncoder.SECTION_BLOCKS) throw new IOException("Section has %d blocks.".formatted(blocks));
+    in.readFully(blockBytes);
+    for(int i = 0; i < SectionEncoder.SECTION_BLOCKS; i++) {
+      var index = blockBytes[i] & 0xFF;
+      if(index >= paletteSize) throw new IOException("Block index %d is outside the palette.".formatted(index));
+      states[i] = plainStates[index];
+    }
+
+    if(version == 1) {
+      //Cells take the biome of their lowest corner, like the encoder
+      in.readFully(blockBiomes);
+      var c = 0;
+      for(int y = 0; y < 16; y += 4) {
+        for(int x = 0; x < 16; x += 4) {
+          for(int z = 0; z < 16; z += 4, c++) {
+            biomes[c] = danBiome(registry, blockBiomes[y << 8 | x << 4 | z] & 0xFF);
+          }
+        }
+      }
+    } else {
+      readBiomePalette(in, registry, biomes);
+    }
+
+    var entries = in.readUnsignedShort();
+    for(int e = 0; e < entries; e++) {
+      var header = in.readUnsignedShort();
+      var x = header >> 12;
+      var y = (header >> 8) & 15;
+      var z = (header >> 4) & 15;
+      var len = header & 15;
+      for(int j = 0; j < len; j++) {
+        data[j] = in.readShort();
+      }
+
+      var i = y << 8 | x << 4 | z;
+      states[i] = registry.state(registry.materialOf(states[i]), data, 0, len);
+    }
+  }
+
+  private void readBiomePalette(DataInputStream in, StateRegistry registry, int[] biomes) throws IOException {
+    var paletteSize = in.readUnsignedByte();
+    for(int i = 0; i < paletteSize; i++) {
+      var id = in.readUnsignedByte();
+      biomePalette[i] = id == NAMED_BIOME? registry.biome(DanFormat.readString(in)) : danBiome(registry, id);
+    }
+
+    if(paletteSize == 0) throw new IOException("Section has no biomes.");
+    if(paletteSize == 1) {
+      Arrays.fill(biomes, 0, BIOME_CELLS, biomePalette[0]);
+      return;
+    }
+
+    in.readFully(biomeCells);
+    for(int c = 0; c < BIOME_CELLS; c++) {
+      var index = biomeCells[c] & 0xFF;
+      if(index >= paletteSize) throw new IOException("Biome index %d is outside the palette.".formatted(index));
+      biomes[c] = biomePalette[index];
+    }
+  }
+
+  private static int danBiome(StateRegistry registry, int id) throws IOException {
+    var key = StateRegistry.danBiomeKey(id);
+    if(key == null) throw new IOException("Unknown biome id " + id);
+    return registry.biome(key);
+  }
+
+  private void ensurePalette(int size) {
+    if(palette.length < size) {
+      palette = new int[Math.max(size, palette.length * 2)];
+      plainStates = new int[palette.length];
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package me.danny.danworld.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+/**
+ * Encodes chunk sections into the .dan format.
+ *
+ * An encoder keeps all of its working state in flat arrays that are reused from one section to the next,
+ * so encoding a section allocates next to nothing. Encoders are not thread safe, use one per thread.
+ */
+public final class SectionEncoder {
+
+  public static final int SECTION_BLOCKS = 16 * 16 * 16;
+
+  //How the blocks of a section are saved, from version 4
+  public static final int BLOCKS_SINGLE = 0;
+  public static final int BLOCKS_RUNS = 1;
+  public static final int BLOCKS_PACKED = 2;
+
+  //Biomes are stored for each 4x4x4 cell of a section from version 2 onwards, like Minecraft does
+  private static final int BIOME_CELLS = 4 * 4 * 4;
+  //Biome id for biomes that don't have one, and are saved by their key instead
+  private static final int NAMED_BIOME = 255;
+
+  //Straight from the block source, in YXZ order
+  private final int[] states = new int[SECTION_BLOCKS];
+  private final int[] biomes = new int[SECTION_BLOCKS];
+
+  //Palette index of every block, in YXZ order. Indexes a palette of materials up to version 2, and of block states after.
+  private final int[] blocks = new int[SECTION_BLOCKS];
+  private final byte[] blockBytes = new byte[SECTION_BLOCKS];
+  private final long[] packedBlocks = new long[SECTION_BLOCKS];
+  //Only used by version 1, which stores a biome for every block
+  private final byte[] blockBiomes = new byte[SECTION_BLOCKS];
+
+  //Material or state id -> palette index. Entries only count when their generation matches the current one,
+  //so starting the next section doesn't have to clear anything.
+  private int[] paletteIds = new int[256];
+  private int[] paletteGenerations = new int[256];
+  //Palette index -> material or state id, in the order they were first seen, so it's stable for the same section
+  private final int[] palette = new int[SECTION_BLOCKS];
+  private int paletteSize;
+
+  //Same as the block palette, for biomes
+  private int[] biomePaletteIds = new int[64];
+  private int[] biomePaletteGenerations = new int[64];
+  private final int[] biomePalette = new int[BIOME_CELLS];
+  private int biomePaletteSize;
+  //Biome palette index of each 4x4x4 cell, in YXZ order
+  private final byte[] biomeCells = new byte[BIOME_CELLS];
+
+  private int generation;
+
+  //Block data entries up to version 2, each one is the bit field header followed by its elements
+  private short[] data = new short[1024];
+  private int dataLen;
+  private int dataEntries;
+
+  /**
+   * Encode the section whose lowest corner is (x, y, z) in the source.
+   */
+  public void encode(EncodeListener m, DataOutputStream d, BlockSource source, int x, int y, int z, int version) throws IOException {
+    var start = d.size();
+    nextSection();
+
+    var registry = source.registry();
+    source.blocks(x, y, z, states);
+    if(version >= 3) {
+      //Block data is part of the state
+      for(int i = 0; i < SECTION_BLOCKS; i++) {
+        blocks[i] = paletteId(states[i]);
+      }
+    } else {
+      for(int i = 0; i < SECTION_BLOCKS; i++) {
+        var state = states[i];
+        blocks[i] = paletteId(registry.materialOf(state));
+
+        var stateData = registry.data(state);
+        if(stateData.length > 0) addBlockData(i, stateData);
+      }
+    }
+
+    if(version == 1) {
+      source.biomes(x, y, z, 1, biomes);
+      for(int i = 0; i < SECTION_BLOCKS; i++) {
+        blockBiomes[i] = (byte) registry.legacyBiomeId(biomes[i]);
+      }
+    } else {
+      source.biomes(x, y, z, 4, biomes);
+      for(int c = 0; c < BIOME_CELLS; c++) {
+        biomeCells[c] = (byte) biomePaletteId(biomes[c]);
+      }
+    }
+
+    m.verbose("Chunk section y %d block data retrieved. Serializing.", y / 16);
+    var encoding = write(m, d, registry, version);
+    m.section(d.size() - start, paletteSize, encoding);
+  }
+
+  private void nextSection() {
+    paletteSize = 0;
+    biomePaletteSize = 0;
+    dataLen = 0;
+    dataEntries = 0;
+    generation++;
+    if(generation == 0) {
+      //Wrapped around, old entries could look current again
+      Arrays.fill(paletteGenerations, 0);
+      Arrays.fill(biomePaletteGenerations, 0);
+      generation = 1;
+    }
+  }
+
+  private int paletteId(int id) {
+    if(id >= paletteIds.length) {
+      var size = Math.max(id + 1, paletteIds.length * 2);
+      paletteIds = Arrays.copyOf(paletteIds, size);
+      paletteGenerations = Arrays.copyOf(paletteGenerations, size);
+    }
+
+    if(paletteGenerations[id] == generation) return paletteIds[id];
+
+    var index = paletteSize++;
+    paletteIds[id] = index;
+    paletteGenerations[id] = generation;
+    palette[index] = id;
+    return index;
+  }
+
+  private int biomePaletteId(int biome) {
+    if(biome >= biomePaletteIds.length) {
+      var size = Math.max(biome + 1, biomePaletteIds.length * 2);
+      biomePaletteIds = Arrays.copyOf(biomePaletteIds, size);
+      biomePaletteGenerations = Arrays.copyOf(biomePaletteGenerations, size);
+    }
+
+    if(biomePaletteGenerations[biome] == generation) return biomePaletteIds[biome];
+
+    var index = biomePaletteSize++;
+    biomePaletteIds[biome] = index;
+    biomePaletteGenerations[biome] = generation;
+    biomePalette[index] = biome;
+    return index;
+  }
+
+  private void addBlockData(int i, short[] elements) {
+    if(data.length < dataLen + 1 + elements.length) {
+      data = Arrays.copyOf(data, data.length * 2);
+    }
+
+    //YXZ order
+    var y = i >> 8;
+    var x = (i >> 4) & 15;
+    var z = i & 15;
+    data[dataLen] = (short) (x << 12 | y << 8 | z << 4 | elements.length);
+    System.arraycopy(elements, 0, data, dataLen + 1, elements.length);
+    dataLen += 1 + elements.length;
+    dataEntries++;
+  }
+
+  //Returns how the blocks were saved, see BLOCKS_SINGLE, or -1 before version 3
+  private int write(EncodeListener m, DataOutputStream d, StateRegistry registry, int version) throws IOException {
+    if(version >= 3) {
+      writeStates(m, d, registry);
+      var encoding = version == 3? writePackedBlocks(m, d) : writeAdaptiveBlocks(m, d);
+      m.verbose("Saving biomes.");
+      writeBiomePalette(d, registry);
+      return encoding;
+    }
+
+    if(paletteSize > 255) {
+      throw new IOException("Chunk section has %d materials, only version 3 onwards can save more than 255.".formatted(paletteSize));
+    }
+
+    d.writeByte(paletteSize);
+    m.verbose("Palette size being encoded is %d.", paletteSize);
+    var keys = m.isVerbose()? new StringJoiner(", ", "[", "]") : null;
+    for(int i = 0; i < paletteSize; i++) {
+      var key = registry.materialKey(palette[i]);
+      DanFormat.writeString(d, key);
+      if(keys != null) keys.add(new String(key, StandardCharsets.UTF_8));
+    }
+    m.verbose("Palette is %s", keys);
+
+    d.writeShort(SECTION_BLOCKS);
+    m.verbose("Saved %d blocks from this chunk section.", SECTION_BLOCKS);
+    //Since iteration order is always YXZ per section, location data isn't needed.
+    //Write only the palette index of this block. The world loader will be able to
+    //generate the location.
+    for(int i = 0; i < SECTION_BLOCKS; i++) {
+      blockBytes[i] = (byte) blocks[i];
+    }
+    d.write(blockBytes);
+
+    m.verbose("Saving biomes.");
+    if(version == 1) {
+      d.write(blockBiomes);
+    } else {
+      writeBiomePalette(d, registry);
+    }
+
+    m.verbose("Saving block data from %d blocks.", dataEntries);
+    d.writeShort((short) dataEntries);
+    for(int i = 0; i < dataLen; i++) {
+      d.writeShort(data[i]);
+    }
+    return -1;
+  }
+
+  private void writeStates(EncodeListener m, DataOutputStream d, StateRegistry registry) throws IOException {
+    DanFormat.writeVarInt(d, paletteSize);
+    m.verbose("Palette size being encoded is %d.", paletteSize);
+    for(int i = 0; i < paletteSize; i++) {
+      var state = palette[i];
+      DanFormat.writeString(d, registry.materialKey(registry.materialOf(state)));
+
+      var elements = registry.data(state);
+      d.writeByte(elements.length);
+      for(var element : elements) {
+        d.writeShort(element);
+      }
+    }
+  }
+
+  //Version 3 always packs the blocks
+  private int writePackedBlocks(EncodeListener m, DataOutputStream d) throws IOException {
+    var bits = bitsPerBlock();
+    d.writeByte(bits);
+    if(bits == 0) return BLOCKS_SINGLE;
+
+    writePacked(d, bits);
+    m.verbose("Saved %d blocks from this chunk section, %d bits each.", SECTION_BLOCKS, bits);
+    return BLOCKS_PACKED;
+  }
+
+  //From version 4, blocks are saved whichever way is smallest for the section
+  private int writeAdaptiveBlocks(EncodeListener m, DataOutputStream d) throws IOException {
+    if(paletteSize == 1) {
+      d.writeByte(BLOCKS_SINGLE);
+      m.verbose("Saved %d blocks from this chunk section as a single state.", SECTION_BLOCKS);
+      return BLOCKS_SINGLE;
+    }
+
+    //Runs follow the same YXZ order as the blocks
+    var runs = 0;
+    var runBytes = 0;
+    var start = 0;
+    for(int i = 1; i <= SECTION_BLOCKS; i++) {
+      if(i == SECTION_BLOCKS || blocks[i] != blocks[start]) {
+        runs++;
+        runBytes += DanFormat.varIntSize(blocks[start]) + DanFormat.varIntSize(i - start);
+        start = i;
+      }
+    }
+    runBytes += DanFormat.varIntSize(runs);
+
+    var bits = bitsPerBlock();
+    var packedBytes = 1 + packedLongs(bits) * Long.BYTES;
+
+    if(runBytes < packedBytes) {
+      d.writeByte(BLOCKS_RUNS);
+      DanFormat.writeVarInt(d, runs);
+      start = 0;
+      for(int i = 1; i <= SECTION_BLOCKS; i++) {
+        if(i == SECTION_BLOCKS || blocks[i] != blocks[start]) {
+          DanFormat.writeVarInt(d, blocks[start]);
+          DanFormat.writeVarInt(d, i - start);
+          start = i;
+        }
+      }
+      m.verbose("Saved %d blocks from this chunk section as %d runs.", SECTION_BLOCKS, runs);
+      return BLOCKS_RUNS;
+    }
+
+    d.writeByte(BLOCKS_PACKED);
+    d.writeByte(bits);
+    writePacked(d, bits);
+    m.verbose("Saved %d blocks from this chunk section, %d bits each.", SECTION_BLOCKS, bits);
+    return BLOCKS_PACKED;
+  }
+
+  //Just enough bits to index the palette. A single state needs no indices at all.
+  private int bitsPerBlock() {
+    return paletteSize == 1? 0 : 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+  }
+
+  private static int packedLongs(int bits) {
+    return Math.ceilDiv(SECTION_BLOCKS, 64 / bits);
+  }
+
+  //Packed like vanilla does it: indices never span two longs, and the first index is in the lowest bits
+  private void writePacked(DataOutputStream d, int bits) throws IOException {
+    var perLong = 64 / bits;
+    var longs = packedLongs(bits);
+    Arrays.fill(packedBlocks, 0, longs, 0L);
+    for(int i = 0; i < SECTION_BLOCKS; i++) {
+      packedBlocks[i / perLong] |= (long) blocks[i] << ((i % perLong) * bits);
+    }
+
+    for(int i = 0; i < longs; i++) {
+      d.writeLong(packedBlocks[i]);
+    }
+  }
+
+  private void writeBiomePalette(DataOutputStream d, StateRegistry registry) throws IOException {
+    d.writeByte(biomePaletteSize);
+    for(int i = 0; i < biomePaletteSize; i++) {
+      var biome = biomePalette[i];
+      var id = registry.danBiomeId(biome);
+      if(id == -1) {
+        //Keep biomes that don't have an id by name, rather than losing them
+        d.writeByte(NAMED_BIOME);
+        DanFormat.writeString(d, registry.biomeKey(biome));
+      } else {
+        d.writeByte(id);
+      }
+    }
+
+    //A section with a single biome doesn't need the cells at all
+    if(biomePaletteSize > 1) {
+      d.write(biomeCells);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package me.danny.danworld.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The shared sections of a version 5 file, see Shared sections in design.txt. Every entry is kept as its encoded bytes,
+ * back to back in one array, so the table grows with the distinct sections of the file, not with how many chunks refer to them.
+ *
+ * Framed files read the whole table up front and never change it, so it's shared by every thread reading chunks.
+ * Stream files add sections as they come across them, from the one thread reading the stream.
+ */
+public final class SharedSections {
+
+  private byte[] bytes;
+  private int size;
+  private int[] offsets = new int[64];
+  private int[] lengths = new int[64];
+  private int count;
+
+  /**
+   * An empty table, for stream files.
+   */
+  public SharedSections() {
+    bytes = new byte[64 * 1024];
+  }
+
+  /**
+   * The table frame of a framed file: Sized section[] in the first `length` bytes of frame.
+   */
+  public SharedSections(byte[] frame, int length) throws IOException {
+    bytes = Arrays.copyOf(frame, length);
+    size = length;
+    var pos = 0;
+    while(pos < length) {
+      var len = 0;
+      for(int shift = 0; ; shift += 7) {
+        if(pos == length || shift == 35) throw new IOException("Section table is truncated.");
+        var b = frame[pos++];
+        len |= (b & 0x7F) << shift;
+        if((b & 0x80) == 0) break;
+      }
+      if(len < 0 || len > length - pos) throw new IOException("Section table is truncated.");
+      add(pos, len);
+      pos += len;
+    }
+  }
+
+  /**
+   * Read the Section reference of a chunk from in, along with the section it stores in place, if any. Returns the index
+   * of the entry it refers to. Only stream files store sections in place, the first time a chunk uses them.
+   */
+  public int readRef(DataInputStream in, boolean framed) throws IOException {
+    var ref = DanFormat.readVarInt(in);
+    if(ref != 0) {
+      var id = ref - 1;
+      if(id >= count) throw new IOException("Section %d is not in the section table.".formatted(id));
+      return id;
+    }
+
+    if(framed) throw new IOException("Framed chunk holds a section of its own.");
+    return read(in, DanFormat.readVarInt(in));
+  }
+
+  /**
+   * Read a Sized section from in, after its length, and make it the next entry. Returns its index.
+   */
+  public int read(DataInputStream in, int len) throws IOException {
+    if(len > bytes.length - size) bytes = Arrays.copyOf(bytes, Math.max(size + len, bytes.length * 2));
+    in.readFully(bytes, size, len);
+    add(size, len);
+    size += len;
+    return count - 1;
+  }
+
+  public int count() {
+    return count;
+  }
+
+  //Not to be modified
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  public int offset(int id) {
+    return offsets[id];
+  }
+
+  public int length(int id) {
+    return lengths[id];
+  }
+
+  /**
+   * The CRC-32 of every entry, the same as the Section checksums of every chunk using it.
+   */
+  public int[] checksums() {
+    var crc = new CRC32();
+    var checksums = new int[count];
+    for(int i = 0; i < count; i++) {
+      crc.reset();
+      crc.update(bytes, offsets[i], lengths[i]);
+      checksums[i] = (int) crc.getValue();
+    }
+    return checksums;
+  }
+
+  private void add(int offset, int length) {
+    if(count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, count * 2);
+      lengths = Arrays.copyOf(lengths, count * 2);
+    }
+    offsets[count] = offset;
+    lengths[count] = length;
+    count++;
+  }
+}
@@ -0,0 +1,234 @@
+package me.danny.danworld.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers every material, block state and biome an export sees, so sections can be encoded from plain int arrays.
+ *
+ * Ids are handed out in the order things are first registered, and never change. Registering takes a lock,
+ * looking up anything about an id that was already handed out doesn't.
+ */
+public final class StateRegistry {
+
+  //Block data elements per state, the count has to fit in 4 bits. Every data type applies at most once.
+  public static final int MAX_DATA = 15;
+
+  private static final short[] NO_DATA = new short[0];
+
+  //In DanBiome id order. New biomes must only ever be added to the end.
+  private static final String[] DAN_BIOMES = {
+    "minecraft:badlands",
+    "minecraft:bamboo_jungle",
+    "minecraft:basalt_deltas",
+    "minecraft:beach",
+    "minecraft:birch_forest",
+    "minecraft:cherry_grove",
+    "minecraft:cold_ocean",
+    "minecraft:crimson_forest",
+    "minecraft:dark_forest",
+    "minecraft:deep_cold_ocean",
+    "minecraft:deep_dark",
+    "minecraft:deep_frozen_ocean",
+    "minecraft:deep_lukewarm_ocean",
+    "minecraft:deep_ocean",
+    "minecraft:desert",
+    "minecraft:dripstone_caves",
+    "minecraft:end_barrens",
+    "minecraft:end_highlands",
+    "minecraft:end_midlands",
+    "minecraft:eroded_badlands",
+    "minecraft:flower_forest",
+    "minecraft:forest",
+    "minecraft:frozen_ocean",
+    "minecraft:frozen_peaks",
+    "minecraft:frozen_river",
+    "minecraft:grove",
+    "minecraft:ice_spikes",
+    "minecraft:jagged_peaks",
+    "minecraft:jungle",
+    "minecraft:lukewarm_ocean",
+    "minecraft:lush_caves",
+    "minecraft:mangrove_swamp",
+    "minecraft:meadow",
+    "minecraft:mushroom_fields",
+    "minecraft:nether_wastes",
+    "minecraft:ocean",
+    "minecraft:old_growth_birch_forest",
+    "minecraft:old_growth_pine_taiga",
+    "minecraft:old_growth_spruce_taiga",
+    "minecraft:plains",
+    "minecraft:river",
+    "minecraft:savanna",
+    "minecraft:savanna_plateau",
+    "minecraft:small_end_islands",
+    "minecraft:snowy_beach",
+    "minecraft:snowy_plains",
+    "minecraft:snowy_slopes",
+    "minecraft:snowy_taiga",
+    "minecraft:soul_sand_valley",
+    "minecraft:sparse_jungle",
+    "minecraft:stony_peaks",
+    "minecraft:stony_shore",
+    "minecraft:sunflower_plains",
+    "minecraft:swamp",
+    "minecraft:taiga",
+    "minecraft:the_end",
+    "minecraft:the_void",
+    "minecraft:warm_ocean",
+    "minecraft:warped_forest",
+    "minecraft:windswept_forest",
+    "minecraft:windswept_gravelly_hills",
+    "minecraft:windswept_hills",
+    "minecraft:windswept_savanna",
+    "minecraft:wooded_badlands"
+  };
+  //Version 1 can't save biomes without an id, they're saved as plains
+  private static final int DAN_PLAINS = Arrays.asList(DAN_BIOMES).indexOf("minecraft:plains");
+
+  private final Map<String, Integer> materialIds = new HashMap<>();
+  private final Map<State, Integer> stateIds = new HashMap<>();
+  private final Map<String, Integer> biomeIds = new HashMap<>();
+
+  //Arrays only ever grow, and are replaced rather than resized, so readers never see a half copied one.
+  //Registering fills in the new entry before writing the array back to its field, even when it didn't grow, so a
+  //thread that got an id through another volatile write or lock also sees everything about it.
+  private volatile byte[][] materialKeys = new byte[256][];
+  private volatile int[] stateMaterials = new int[256];
+  private volatile short[][] stateData = new short[256][];
+  private volatile byte[][] biomeKeys = new byte[64][];
+  private volatile int[] danBiomeIds = new int[64];
+  private volatile int stateCount;
+
+  private record State(int material, short[] data) {
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof State s && s.material == material && Arrays.equals(s.data, data);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * material + Arrays.hashCode(data);
+    }
+  }
+
+  /**
+   * Id of a material, by its key without the namespace, i.e. grass_block.
+   */
+  public synchronized int material(String key) {
+    var id = materialIds.get(key);
+    if(id != null) return id;
+
+    id = materialIds.size();
+    var keys = id == materialKeys.length? Arrays.copyOf(materialKeys, id * 2) : materialKeys;
+    keys[id] = key.getBytes(StandardCharsets.UTF_8);
+    materialKeys = keys;
+    materialIds.put(key, id);
+    return id;
+  }
+
+  /**
+   * Id of a block state: a material and the block data elements in data[off, off + len), see design.txt.
+   */
+  public synchronized int state(int material, short[] data, int off, int len) {
+    if(len > MAX_DATA) throw new IllegalArgumentException("Block states have at most %d data elements, got %d.".formatted(MAX_DATA, len));
+
+    var state = new State(material, len == 0? NO_DATA : Arrays.copyOfRange(data, off, off + len));
+    var id = stateIds.get(state);
+    if(id != null) return id;
+
+    id = stateIds.size();
+    var grow = id == stateMaterials.length;
+    var datas = grow? Arrays.copyOf(stateData, id * 2) : stateData;
+    var materials = grow? Arrays.copyOf(stateMaterials, id * 2) : stateMaterials;
+    datas[id] = state.data();
+    materials[id] = material;
+    stateData = datas;
+    stateMaterials = materials;
+    stateIds.put(state, id);
+    stateCount = id + 1;
+    return id;
+  }
+
+  /**
+   * Id of the block state of a material without any block data.
+   */
+  public int state(String materialKey) {
+    return state(material(materialKey), NO_DATA, 0, 0);
+  }
+
+  /**
+   * Id of a biome, by its namespaced key, i.e. minecraft:plains.
+   */
+  public synchronized int biome(String key) {
+    var id = biomeIds.get(key);
+    if(id != null) return id;
+
+    id = biomeIds.size();
+    var grow = id == biomeKeys.length;
+    var keys = grow? Arrays.copyOf(biomeKeys, id * 2) : biomeKeys;
+    var danIds = grow? Arrays.copyOf(danBiomeIds, id * 2) : danBiomeIds;
+    keys[id] = key.getBytes(StandardCharsets.UTF_8);
+    danIds[id] = Arrays.asList(DAN_BIOMES).indexOf(key);
+    biomeKeys = keys;
+    danBiomeIds = danIds;
+    biomeIds.put(key, id);
+    return id;
+  }
+
+  /**
+   * Namespaced key of the biome with a DanBiome id, or null if no biome has that id.
+   */
+  public static String danBiomeKey(int danBiomeId) {
+    return danBiomeId >= 0 && danBiomeId < DAN_BIOMES.length? DAN_BIOMES[danBiomeId] : null;
+  }
+
+  /**
+   * Every state id handed out so far is below this.
+   */
+  public int stateCount() {
+    return stateCount;
+  }
+
+  public synchronized int materialCount() {
+    return materialIds.size();
+  }
+
+  public synchronized int biomeCount() {
+    return biomeIds.size();
+  }
+
+  public int materialOf(int state) {
+    return stateMaterials[state];
+  }
+
+  //UTF-8, not to be modified
+  public byte[] materialKey(int material) {
+    return materialKeys[material];
+  }
+
+  //Not to be modified
+  public short[] data(int state) {
+    return stateData[state];
+  }
+
+  //UTF-8, not to be modified
+  public byte[] biomeKey(int biome) {
+    return biomeKeys[biome];
+  }
+
+  /**
+   * DanBiome id of a biome, or -1 if it doesn't have one.
+   */
+  public int danBiomeId(int biome) {
+    return danBiomeIds[biome];
+  }
+
+  //Only used by version 1. Biomes without an id are saved as plains.
+  int legacyBiomeId(int biome) {
+    var id = danBiomeIds[biome];
+    return id == -1? DAN_PLAINS : id;
+  }
+}
@@ -0,0 +1,150 @@
+package me.danny.danworld.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Every section SectionEncoder writes has to come back out of SectionDecoder as the same blocks and biomes,
+ * in every version.
+ */
+class SectionRoundTripTest {
+
+  private static final byte[] PLAINS = "minecraft:plains".getBytes(StandardCharsets.UTF_8);
+  //Not a DanBiome, so it's saved by its key from version 2
+  private static final String NAMED_BIOME = "minecraft:pale_garden";
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 3, 4, 5, 6, 7})
+  void sectionsSurviveRoundTrip(int version) throws IOException {
+    var registry = new StateRegistry();
+    var source = new ArrayBlockSource(registry, 1, 3, 1);
+    fillSingle(registry, source, source.index(0, 0, 0));
+    fillRuns(registry, source, source.index(0, 1, 0));
+    fillPacked(registry, source, source.index(0, 2, 0));
+
+    var encodings = new ArrayList<Integer>();
+    var listener = new EncodeListener() {
+      @Override
+      public void section(int bytes, int paletteSize, int encoding) {
+        encodings.add(encoding);
+      }
+    };
+    var out = new ByteArrayOutputStream();
+    var d = new DataOutputStream(out);
+    var encoder = new SectionEncoder();
+    for(int y = 0; y < source.height(); y++) {
+      encoder.encode(listener, d, source, 0, y * 16, 0, version);
+    }
+    d.flush();
+
+    //Decoded into a registry of its own, so ids can differ and everything is compared by key
+    var decoded = new StateRegistry();
+    var decoder = new SectionDecoder();
+    var in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+    var expectedStates = new int[SectionEncoder.SECTION_BLOCKS];
+    var expectedBiomes = new int[SectionDecoder.BIOME_CELLS];
+    var states = new int[SectionEncoder.SECTION_BLOCKS];
+    var biomes = new int[SectionDecoder.BIOME_CELLS];
+    for(int y = 0; y < source.height(); y++) {
+      decoder.decode(in, version, decoded, states, biomes);
+      source.blocks(0, y * 16, 0, expectedStates);
+      source.biomes(0, y * 16, 0, 4, expectedBiomes);
+
+      for(int i = 0; i < SectionEncoder.SECTION_BLOCKS; i++) {
+        var expected = expectedStates[i];
+        var actual = states[i];
+        assertArrayEquals(registry.materialKey(registry.materialOf(expected)), decoded.materialKey(decoded.materialOf(actual)),
+          "Material of block %d of section %d".formatted(i, y));
+        assertArrayEquals(registry.data(expected), decoded.data(actual), "Data of block %d of section %d".formatted(i, y));
+      }
+      for(int i = 0; i < SectionDecoder.BIOME_CELLS; i++) {
+        var expected = expectedBiomes[i];
+        //Version 1 only has DanBiome ids, everything else is saved as plains
+        var expectedKey = version == 1 && registry.danBiomeId(expected) == -1? PLAINS : registry.biomeKey(expected);
+        assertArrayEquals(expectedKey, decoded.biomeKey(biomes[i]), "Biome of cell %d of section %d".formatted(i, y));
+      }
+    }
+    assertEquals(0, in.available(), "Bytes left after the last section");
+
+    //Version 3 packs everything, a palette of one packs into 0 bits per block and is reported as single
+    var expectedEncodings = switch(version) {
+      case 1, 2 -> List.of(-1, -1, -1);
+      case 3 -> List.of(SectionEncoder.BLOCKS_SINGLE, SectionEncoder.BLOCKS_PACKED, SectionEncoder.BLOCKS_PACKED);
+      default -> List.of(SectionEncoder.BLOCKS_SINGLE, SectionEncoder.BLOCKS_RUNS, SectionEncoder.BLOCKS_PACKED);
+    };
+    assertEquals(expectedEncodings, encodings);
+  }
+
+  //All stone in one biome
+  private static void fillSingle(StateRegistry registry, ArrayBlockSource source, int section) {
+    var stone = registry.state("minecraft:stone");
+    var plains = registry.biome("minecraft:plains");
+    for(int y = 0; y < 16; y++) {
+      for(int x = 0; x < 16; x++) {
+        for(int z = 0; z < 16; z++) {
+          source.setBlock(section, x, y, z, stone);
+          source.setBiome(section, x, y, z, plains);
+        }
+      }
+    }
+  }
+
+  //Layers of a few states, one of them with block data, and the named biome on top
+  private static void fillRuns(StateRegistry registry, ArrayBlockSource source, int section) {
+    var dirt = registry.state("minecraft:dirt");
+    var slab = registry.state(registry.material("minecraft:oak_slab"), new short[] {0x0101}, 0, 1);
+    var air = registry.state("minecraft:air");
+    var forest = registry.biome("minecraft:forest");
+    var named = registry.biome(NAMED_BIOME);
+    for(int y = 0; y < 16; y++) {
+      var state = y < 6? dirt : y == 6? slab : air;
+      for(int x = 0; x < 16; x++) {
+        for(int z = 0; z < 16; z++) {
+          source.setBlock(section, x, y, z, state);
+          source.setBiome(section, x, y, z, y < 8? forest : named);
+        }
+      }
+    }
+  }
+
+  //Every block picked at random, so nothing repeats for long
+  private static void fillPacked(StateRegistry registry, ArrayBlockSource source, int section) {
+    var random = new SplittableRandom(0xDA4);
+    var stairs = registry.material("minecraft:oak_stairs");
+    var states = new int[] {
+      registry.state("minecraft:stone"),
+      registry.state("minecraft:granite"),
+      registry.state("minecraft:coal_ore"),
+      registry.state("minecraft:water"),
+      registry.state(stairs, new short[] {0x0102, 0x0203}, 0, 2),
+      registry.state(stairs, new short[] {0x0103, 0x0201}, 0, 2),
+      registry.state(registry.material("minecraft:oak_log"), new short[] {0x0401}, 0, 1)
+    };
+    var biomes = new int[] {
+      registry.biome("minecraft:plains"),
+      registry.biome("minecraft:desert"),
+      registry.biome(NAMED_BIOME)
+    };
+    for(int y = 0; y < 16; y++) {
+      for(int x = 0; x < 16; x++) {
+        for(int z = 0; z < 16; z++) {
+          source.setBlock(section, x, y, z, states[random.nextInt(states.length)]);
+          source.setBiome(section, x, y, z, biomes[random.nextInt(biomes.length)]);
+        }
+      }
+    }
+  }
+}
@@ -22,4 +22,14 @@ repositories {
 dependencies {
     compileOnly("org.spigotmc:spigot-api:$spigotVersion")
     compileOnly("com.sk89q.worldedit:worldedit-bukkit:7.2.9")
+    // Loaded by the server from the libraries in plugin.yml, keep the versions in sync
+    compileOnly("org.lz4:lz4-java:1.8.0")
+    compileOnly("com.github.luben:zstd-jni:1.5.5-11")
+    implementation("me.danny:DanWorldCore:1.0-SNAPSHOT")
+}
+
+// The server only loads the plugin jar, so the encoder core goes inside it
+tasks.jar {
+    dependsOn(configurations.runtimeClasspath)
+    from(configurations.runtimeClasspath.get().map { if (it.isDirectory) it else zipTree(it) })
 }
@@ -1,2 +1,3 @@
 rootProject.name = "DanWorldExport"
 
+includeBuild("../DanWorldCore")
@@ -0,0 +1,120 @@
+package me.danny.danworld;
+
+import org.bukkit.Axis;
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.Ageable;
+import org.bukkit.block.data.Attachable;
+import org.bukkit.block.data.Bisected;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Directional;
+import org.bukkit.block.data.Levelled;
+import org.bukkit.block.data.MultipleFacing;
+import org.bukkit.block.data.Openable;
+import org.bukkit.block.data.Orientable;
+import org.bukkit.block.data.Rail;
+import org.bukkit.block.data.Rotatable;
+import org.bukkit.block.data.Waterlogged;
+import org.bukkit.block.data.type.Door;
+import org.bukkit.block.data.type.Door.Hinge;
+import org.bukkit.block.data.type.Farmland;
+import org.bukkit.block.data.type.Snow;
+import org.bukkit.block.data.type.Stairs;
+
+/**
+ * Turns the u16 block data elements described in design.txt back into BlockData. The reverse of BlockDataEncoder.
+ *
+ * Elements that don't apply to the material, or hold a value it doesn't allow, are skipped rather than failing the block.
+ */
+public final class BlockDataDecoder {
+
+  //Same order as BlockDataEncoder#encodeDirection
+  private static final BlockFace[] DIRECTIONS = {
+    BlockFace.DOWN, BlockFace.EAST, BlockFace.EAST_NORTH_EAST, BlockFace.EAST_SOUTH_EAST, BlockFace.NORTH, BlockFace.NORTH_EAST,
+    BlockFace.NORTH_NORTH_EAST, BlockFace.NORTH_NORTH_WEST, BlockFace.NORTH_WEST, BlockFace.SOUTH, BlockFace.SOUTH_EAST,
+    BlockFace.SOUTH_SOUTH_EAST, BlockFace.SOUTH_SOUTH_WEST, BlockFace.SOUTH_WEST, BlockFace.UP, BlockFace.WEST,
+    BlockFace.WEST_NORTH_WEST, BlockFace.WEST_SOUTH_WEST
+  };
+
+  //Index is the encoded shape, 0 is unused
+  private static final Rail.Shape[] RAIL_SHAPES = {
+    Rail.Shape.EAST_WEST, Rail.Shape.ASCENDING_EAST, Rail.Shape.ASCENDING_NORTH, Rail.Shape.ASCENDING_SOUTH, Rail.Shape.ASCENDING_WEST,
+    Rail.Shape.EAST_WEST, Rail.Shape.NORTH_EAST, Rail.Shape.NORTH_SOUTH, Rail.Shape.NORTH_WEST, Rail.Shape.SOUTH_EAST, Rail.Shape.SOUTH_WEST
+  };
+
+  private static final Stairs.Shape[] STAIR_SHAPES = {
+    Stairs.Shape.INNER_LEFT, Stairs.Shape.INNER_RIGHT, Stairs.Shape.OUTER_LEFT, Stairs.Shape.OUTER_RIGHT, Stairs.Shape.STRAIGHT
+  };
+
+  private static final BlockFace[] FACES = { BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN };
+
+  private BlockDataDecoder() {}
+
+  public static BlockData decode(Material mat, short[] data) {
+    var bd = mat.createBlockData();
+    for(var element : data) {
+      try {
+        apply(bd, (element >> 12) & 0xF, element & 0xFFF);
+      } catch(IllegalArgumentException | ArrayIndexOutOfBoundsException _ignored) {
+        //Saved by a different Minecraft version, where the block allowed other values
+      }
+    }
+
+    return bd;
+  }
+
+  private static void apply(BlockData bd, int type, int bits) {
+    switch(type) {
+      case 0b0000 -> {
+        if(bd instanceof Orientable o) o.setAxis(Axis.values()[bits]);
+      }
+      case 0b0001 -> {
+        if(bd instanceof Ageable a) a.setAge(bits);
+      }
+      case 0b0010 -> {
+        if(bd instanceof Snow snow) snow.setLayers(bits);
+      }
+      case 0b0011 -> {
+        if(bd instanceof Levelled le) le.setLevel(bits);
+      }
+      case 0b0100 -> {
+        if(bd instanceof Bisected bisect) bisect.setHalf(bits == 0? Bisected.Half.TOP : Bisected.Half.BOTTOM);
+      }
+      case 0b0101 -> {
+        if(bd instanceof Directional dir) dir.setFacing(DIRECTIONS[bits]);
+      }
+      case 0b0110 -> {
+        if(bd instanceof Waterlogged w) w.setWaterlogged(bits != 0);
+      }
+      case 0b0111 -> {
+        if(bd instanceof Rotatable r) r.setRotation(DIRECTIONS[bits]);
+      }
+      case 0b1000 -> {
+        if(bd instanceof MultipleFacing mf) {
+          for(int i = 0; i < FACES.length; i++) {
+            if(mf.getAllowedFaces().contains(FACES[i])) mf.setFace(FACES[i], (bits & (1 << i)) != 0);
+          }
+        }
+      }
+      case 0b1001 -> {
+        if(bd instanceof Openable o) o.setOpen(bits != 0);
+      }
+      case 0b1010 -> {
+        if(bd instanceof Rail rail) rail.setShape(RAIL_SHAPES[bits]);
+      }
+      case 0b1011 -> {
+        if(bd instanceof Stairs stairs) stairs.setShape(STAIR_SHAPES[bits]);
+      }
+      case 0b1100 -> {
+        if(bd instanceof Attachable a) a.setAttached(bits != 0);
+      }
+      case 0b1101 -> {
+        if(bd instanceof Door d) d.setHinge(bits == 0? Hinge.LEFT : Hinge.RIGHT);
+      }
+      case 0b1110 -> {
+        if(bd instanceof Farmland f) f.setMoisture(bits);
+      }
+      default -> {}
+    }
+  }
+}
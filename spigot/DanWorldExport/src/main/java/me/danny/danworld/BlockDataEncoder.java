@@ -0,0 +1,291 @@
+package me.danny.danworld;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.bukkit.Axis;
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.Ageable;
+import org.bukkit.block.data.Attachable;
+import org.bukkit.block.data.Bisected;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Directional;
+import org.bukkit.block.data.Levelled;
+import org.bukkit.block.data.MultipleFacing;
+import org.bukkit.block.data.Openable;
+import org.bukkit.block.data.Orientable;
+import org.bukkit.block.data.Rail;
+import org.bukkit.block.data.Rotatable;
+import org.bukkit.block.data.Waterlogged;
+import org.bukkit.block.data.type.Door;
+import org.bukkit.block.data.type.Door.Hinge;
+import org.bukkit.block.data.type.Farmland;
+import org.bukkit.block.data.type.Snow;
+import org.bukkit.block.data.type.Stairs;
+
+import me.danny.danworld.core.StateRegistry;
+
+/**
+ * Encodes block data into the u16 elements described in design.txt.
+ *
+ * Encoding the same state twice is avoided by BukkitStates, which caches the state id of each BlockData.
+ * Which data types can apply at all is worked out once per material (its plan), so materials without
+ * any block data, which is most of them, skip the cache entirely.
+ */
+public final class BlockDataEncoder {
+
+  //Plan bits, one per data type. Bit n is data type n.
+  private static final int ORIENTABLE = 1 << 0b0000;
+  private static final int AGEABLE = 1 << 0b0001;
+  private static final int SNOW = 1 << 0b0010;
+  private static final int LEVELLED = 1 << 0b0011;
+  private static final int BISECTED = 1 << 0b0100;
+  private static final int DIRECTIONAL = 1 << 0b0101;
+  private static final int WATERLOGGED = 1 << 0b0110;
+  private static final int ROTATABLE = 1 << 0b0111;
+  private static final int MULTIPLE_FACING = 1 << 0b1000;
+  private static final int OPENABLE = 1 << 0b1001;
+  private static final int RAIL = 1 << 0b1010;
+  private static final int STAIRS = 1 << 0b1011;
+  private static final int ATTACHABLE = 1 << 0b1100;
+  private static final int DOOR = 1 << 0b1101;
+  private static final int FARMLAND = 1 << 0b1110;
+
+  //Every data type can apply to a block at most once
+  public static final int MAX_DATA_PER_BLOCK = StateRegistry.MAX_DATA;
+
+  private static final Material[] MATERIALS = Material.values();
+  //Material ordinal -> plan, -1 when not worked out yet. Read and written from every encode thread.
+  private static final AtomicIntegerArray PLANS = new AtomicIntegerArray(MATERIALS.length);
+
+  static {
+    for(int i = 0; i < MATERIALS.length; i++) {
+      PLANS.set(i, -1);
+    }
+  }
+
+  private BlockDataEncoder() {}
+
+  public static boolean hasBlockData(Material mat) {
+    return plan(mat) != 0;
+  }
+
+  //Writes the encoded block data to out, starting at off. Returns the number of elements written (at most 15).
+  public static int encodeBlockData(BlockData bd, short[] out, int off) {
+    var plan = plan(bd.getMaterial());
+    if(plan == 0) return 0;
+
+    return encode(bd, plan, out, off);
+  }
+
+  private static int plan(Material mat) {
+    var ordinal = mat.ordinal();
+    var plan = PLANS.get(ordinal);
+    if(plan == -1) {
+      //Racing threads all work out the same plan, so there's no need to lock
+      plan = computePlan(mat.createBlockData());
+      PLANS.set(ordinal, plan);
+    }
+
+    return plan;
+  }
+
+  private static int computePlan(BlockData bd) {
+    var plan = 0;
+    if(bd instanceof Orientable) plan |= ORIENTABLE;
+    if(bd instanceof Ageable) plan |= AGEABLE;
+    if(bd instanceof Snow) plan |= SNOW;
+    if(bd instanceof Levelled) plan |= LEVELLED;
+    if(bd instanceof Bisected) plan |= BISECTED;
+    if(bd instanceof Directional) plan |= DIRECTIONAL;
+    if(bd instanceof Waterlogged) plan |= WATERLOGGED;
+    if(bd instanceof Rotatable) plan |= ROTATABLE;
+    if(bd instanceof MultipleFacing) plan |= MULTIPLE_FACING;
+    if(bd instanceof Openable) plan |= OPENABLE;
+    if(bd instanceof Rail) plan |= RAIL;
+    if(bd instanceof Stairs) plan |= STAIRS;
+    if(bd instanceof Attachable) plan |= ATTACHABLE;
+    if(bd instanceof Door) plan |= DOOR;
+    if(bd instanceof Farmland) plan |= FARMLAND;
+    return plan;
+  }
+
+  private static short encode(int type, int data) {
+    return (short) (type << 12 | data);
+  }
+  
+  //Runs the instanceof chain, skipping every interface the material's plan says can't apply
+  private static int encode(BlockData bd, int plan, short[] out, int off) {
+    var n = 0;
+    
+    if((plan & ORIENTABLE) != 0 && bd instanceof Orientable o) {
+      var type = 0b0000;
+      var bits = switch(o.getAxis()) {
+        case Axis.X -> 0;
+        case Axis.Y -> 1;
+        case Axis.Z -> 2;
+      };
+
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & AGEABLE) != 0 && bd instanceof Ageable a) {
+      var type = 0b0001;
+      var bits = a.getAge();  
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & SNOW) != 0 && bd instanceof Snow snow) {
+      var type = 0b0010;
+      var bits = snow.getLayers();
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & LEVELLED) != 0 && bd instanceof Levelled le) {
+      var type = 0b0011;
+      var bits = le.getLevel();
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & BISECTED) != 0 && bd instanceof Bisected bisect) {
+      var type = 0b0100;
+      var bits = switch(bisect.getHalf()) {
+        case Bisected.Half.TOP -> 0;
+        case Bisected.Half.BOTTOM -> 1;
+      };
+      out[off + n++] = encode(type, bits);
+      
+    }
+
+    if((plan & DIRECTIONAL) != 0 && bd instanceof Directional dir) {
+      var type = 0b0101;
+      var bits = encodeDirection(dir.getFacing());
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & WATERLOGGED) != 0 && bd instanceof Waterlogged w) {
+      var type = 0b0110;
+      if(w.isWaterlogged()) {
+        out[off + n++] = encode(type, 1);
+      }
+    }
+
+    if((plan & ROTATABLE) != 0 && bd instanceof Rotatable r) {
+      var type = 0b0111;
+      var bits = encodeDirection(r.getRotation());
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & MULTIPLE_FACING) != 0 && bd instanceof MultipleFacing mf) {
+      var type = 0b1000;
+      final int NORTH = 1;
+      final int SOUTH = 2;
+      final int EAST = 4;
+      final int WEST = 8;
+      final int UP = 16;
+      final int DOWN = 32;
+
+      int bits = 0;
+      for(var face : mf.getFaces()) {
+        switch(face) {
+          case BlockFace.NORTH -> bits |= NORTH;
+          case BlockFace.SOUTH -> bits |= SOUTH;
+          case BlockFace.EAST -> bits |= EAST;
+          case BlockFace.WEST -> bits |= WEST;
+          case BlockFace.UP -> bits |= UP;
+          case BlockFace.DOWN -> bits |= DOWN;
+          default -> {}
+        }
+      }
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & OPENABLE) != 0 && bd instanceof Openable o) {
+      var type = 0b1001;
+      if(o.isOpen()) {
+        out[off + n++] = encode(type, 1);
+      }
+    }
+
+    if((plan & RAIL) != 0 && bd instanceof Rail rail) {
+      var type = 0b1010;
+      var bits = switch(rail.getShape()) {
+      		case ASCENDING_EAST -> 1;
+      		case ASCENDING_NORTH -> 2;
+      		case ASCENDING_SOUTH -> 3;
+      		case ASCENDING_WEST -> 4;
+      		case EAST_WEST -> 5;
+      		case NORTH_EAST -> 6;
+      		case NORTH_SOUTH -> 7;
+      		case NORTH_WEST -> 8;
+      		case SOUTH_EAST -> 9;
+      		case SOUTH_WEST -> 10;
+      		default -> 5 /* Default to EAST_WEST */;
+      };
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & STAIRS) != 0 && bd instanceof Stairs stairs) {
+      var type = 0b1011;
+      var bits = switch(stairs.getShape()) {
+      		case INNER_LEFT -> 0;
+      		case INNER_RIGHT -> 1;
+      		case OUTER_LEFT -> 2;
+      		case OUTER_RIGHT -> 3;
+      		case STRAIGHT -> 4;
+      		default -> 4 /* Default to STRAIGHT */;
+      };
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & ATTACHABLE) != 0 && bd instanceof Attachable a) {
+      var type = 0b1100;
+      if(a.isAttached()) {
+        out[off + n++] = encode(type, 1);
+      }
+    }
+
+    if((plan & DOOR) != 0 && bd instanceof Door d) {
+      var type = 0b1101;
+      var bits = switch(d.getHinge()) {
+        case Hinge.LEFT -> 0;
+        case Hinge.RIGHT -> 1;
+      };
+
+      out[off + n++] = encode(type, bits);
+    }
+
+    if((plan & FARMLAND) != 0 && bd instanceof Farmland f) {
+      var type = 0b1110;
+      var bits = f.getMoisture();
+      out[off + n++] = encode(type, bits);
+    }
+    
+    return n;
+  }
+
+  private static int encodeDirection(BlockFace facing) {
+    return switch(facing) {
+    		case BlockFace.DOWN -> 0;
+    		case BlockFace.EAST -> 1;
+    		case BlockFace.EAST_NORTH_EAST -> 2;
+    		case BlockFace.EAST_SOUTH_EAST -> 3;
+    		case BlockFace.NORTH -> 4;
+    		case BlockFace.NORTH_EAST -> 5;
+    		case BlockFace.NORTH_NORTH_EAST -> 6;
+    		case BlockFace.NORTH_NORTH_WEST -> 7;
+    		case BlockFace.NORTH_WEST -> 8;
+    		case BlockFace.SOUTH -> 9;
+    		case BlockFace.SOUTH_EAST -> 10;
+    		case BlockFace.SOUTH_SOUTH_EAST -> 11;
+    		case BlockFace.SOUTH_SOUTH_WEST -> 12;
+    		case BlockFace.SOUTH_WEST -> 13;
+    		case BlockFace.UP -> 14;
+    		case BlockFace.WEST -> 15;
+    		case BlockFace.WEST_NORTH_WEST -> 16;
+    		case BlockFace.WEST_SOUTH_WEST -> 17;
+    		default -> 4 /* Default to NORTH */;
+        
+      };
+  }
+}
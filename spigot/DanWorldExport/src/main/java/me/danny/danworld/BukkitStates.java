@@ -0,0 +1,104 @@
+package me.danny.danworld;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bukkit.Material;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+
+import me.danny.danworld.core.StateRegistry;
+
+/**
+ * Maps Bukkit materials, block data and biomes to ids in the encoder's StateRegistry.
+ *
+ * There is one registry for the whole plugin, so ids stay the same from one export to the next.
+ * Materials without block data map straight from their ordinal. Builds only use a few hundred distinct
+ * block states, so the state of each BlockData is cached, like BlockDataEncoder used to cache its encoding.
+ */
+public final class BukkitStates {
+
+  public static final StateRegistry REGISTRY = new StateRegistry();
+
+  //Past this many states, new ones are still looked up, just not remembered
+  private static final int MAX_CACHED_STATES = 4096;
+
+  private static final Material[] MATERIALS = Material.values();
+  private static final Biome[] BIOMES = Biome.values();
+  //Material ordinal -> state without block data, -1 when not registered yet.
+  //Atomic so a thread reading an id also sees what the registry stored about it, the encode threads look those up next.
+  private static final AtomicIntegerArray MATERIAL_STATES = new AtomicIntegerArray(MATERIALS.length);
+  //Biome ordinal -> biome id, -1 when not registered yet
+  private static final AtomicIntegerArray BIOME_IDS = new AtomicIntegerArray(BIOMES.length);
+  private static final Map<BlockData, Integer> CACHE = new ConcurrentHashMap<>();
+  //Lookups of CACHE since the plugin started, for ExportMetrics
+  private static final LongAdder HITS = new LongAdder();
+  private static final LongAdder MISSES = new LongAdder();
+
+  static {
+    for(int i = 0; i < MATERIALS.length; i++) {
+      MATERIAL_STATES.set(i, -1);
+    }
+    for(int i = 0; i < BIOMES.length; i++) {
+      BIOME_IDS.set(i, -1);
+    }
+  }
+
+  private BukkitStates() {}
+
+  static long cacheHits() {
+    return HITS.sum();
+  }
+
+  static long cacheMisses() {
+    return MISSES.sum();
+  }
+
+  //State of a material with no block data
+  public static int stateOf(Material mat) {
+    var ordinal = mat.ordinal();
+    var state = MATERIAL_STATES.get(ordinal);
+    if(state == -1) {
+      //Racing threads get the same id from the registry, so there's no need to lock
+      state = REGISTRY.state(mat.getKey().getKey());
+      MATERIAL_STATES.set(ordinal, state);
+    }
+
+    return state;
+  }
+
+  public static int stateOf(BlockData bd) {
+    var mat = bd.getMaterial();
+    if(!BlockDataEncoder.hasBlockData(mat)) return stateOf(mat);
+
+    var cached = CACHE.get(bd);
+    if(cached != null) {
+      HITS.increment();
+      return cached;
+    }
+
+    MISSES.increment();
+    var data = new short[BlockDataEncoder.MAX_DATA_PER_BLOCK];
+    var n = BlockDataEncoder.encodeBlockData(bd, data, 0);
+    var state = REGISTRY.state(REGISTRY.material(mat.getKey().getKey()), data, 0, n);
+    //BlockData is immutable as far as we're concerned, the snapshot hands out a fresh one every time
+    if(CACHE.size() < MAX_CACHED_STATES) {
+      CACHE.put(bd, state);
+    }
+
+    return state;
+  }
+
+  public static int biomeOf(Biome biome) {
+    var ordinal = biome.ordinal();
+    var id = BIOME_IDS.get(ordinal);
+    if(id == -1) {
+      id = REGISTRY.biome(biome.getKey().toString());
+      BIOME_IDS.set(ordinal, id);
+    }
+
+    return id;
+  }
+}
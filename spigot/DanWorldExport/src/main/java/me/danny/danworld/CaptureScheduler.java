@@ -0,0 +1,204 @@
+package me.danny.danworld;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Captures the chunks of an export a few at a time, every tick, so even huge selections don't freeze the server.
+ *
+ * How many chunks a tick takes follows how busy the server is. The quota grows while ticks have time to spare,
+ * shrinks when it runs over the time budget, and nothing is captured at all while the server is falling behind.
+ * Chunks are loaded ahead of capturing them by a ChunkPreloader, a tick only captures chunks that are loaded already.
+ * Progress is reported every few seconds, with an estimate of how long is left.
+ */
+final class CaptureScheduler extends BukkitRunnable {
+
+  private static final double TICK_MS = 50;
+  //Ticks taking longer than this on average mean the server can't keep up with 20 TPS
+  private static final double OVERLOADED_TICK_MS = 55;
+  //Same, measured by the server itself where it can tell us, see mspt
+  private static final double OVERLOADED_MSPT = 45;
+  //Weight of the latest tick in the average tick length
+  private static final double SMOOTHING = 0.2;
+  private static final int MAX_QUOTA = 256;
+  //Every 5 seconds at 20 TPS
+  private static final int REPORT_TICKS = 100;
+  //Server#getAverageTickTime, Paper only. Null on Spigot, which only has the tick length we measure.
+  private static final MethodHandle AVERAGE_TICK_TIME = averageTickTime();
+
+  private final World world;
+  private final long[] keys;
+  private final long budgetNanos;
+  private final int window;
+  private final int maxLoading;
+  private final Consumer<String> progress;
+  private final BooleanSupplier cancelled;
+  private final Map<Long, CapturedRegion.CapturedChunk> chunks = new HashMap<>();
+  private final CompletableFuture<CapturedRegion> done = new CompletableFuture<>();
+
+  private ChunkPreloader preloader;
+  private int quota;
+  private volatile int next;
+  private volatile boolean backingOff;
+  private long started;
+  private long lastTick;
+  private double averageTickMs = TICK_MS;
+  private long ticks;
+  private long captureNanos;
+
+  /**
+   * Capture the chunks in `keys` (see CapturedRegion.chunksIn), starting at `quota` chunks a tick and never spending more than
+   * `budgetMillis` of a tick on it. Up to `window` chunks ahead are preloaded, `maxLoading` of them at a time.
+   * progress receives a line every few seconds while it runs. Once `cancelled` says so, capturing stops at the next tick.
+   */
+  CaptureScheduler(World world, long[] keys, long budgetMillis, int quota, int window, int maxLoading, Consumer<String> progress,
+                   BooleanSupplier cancelled) {
+    this.world = world;
+    this.keys = keys;
+    this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    this.window = window;
+    this.maxLoading = maxLoading;
+    this.quota = Math.max(1, Math.min(MAX_QUOTA, quota));
+    this.progress = progress;
+    this.cancelled = cancelled;
+  }
+
+  /**
+   * Start capturing next tick. Must be called from the server thread.
+   * The returned future completes on the server thread once every chunk is captured, or exceptionally if it was cancelled.
+   */
+  CompletableFuture<CapturedRegion> start(Plugin plugin) {
+    started = System.nanoTime();
+    preloader = new ChunkPreloader(world, keys, plugin, window, maxLoading);
+    progress.accept("Capturing %d chunks%s.".formatted(keys.length, ChunkPreloader.isAsync()? "" : ", loading missing ones a few a tick"));
+    runTaskTimer(plugin, 1, 1);
+    return done;
+  }
+
+  /**
+   * Nanoseconds of server thread time spent taking snapshots so far.
+   */
+  long captureNanos() {
+    return captureNanos;
+  }
+
+  boolean isCaptured() {
+    return done.isDone();
+  }
+
+  /**
+   * Chunks done out of the total, and how long the rest should take at the rate so far.
+   */
+  String progress() {
+    var captured = next;
+    var line = "Captured %d/%d chunks (%d%%)".formatted(captured, keys.length, keys.length == 0? 100 : captured * 100L / keys.length);
+    if(captured > 0 && captured < keys.length) {
+      //Counts the ticks spent backing off as well, so it stays honest while the server is busy
+      var nanosPerChunk = (System.nanoTime() - started) / (double) captured;
+      line += ", ETA %d s".formatted((long) (nanosPerChunk * (keys.length - captured) / TimeUnit.SECONDS.toNanos(1)));
+    }
+    return backingOff? line + ", paused while the server is busy." : line + ".";
+  }
+
+  @Override
+  public void run() {
+    if(cancelled.getAsBoolean()) {
+      cancel();
+      preloader.close();
+      done.completeExceptionally(new CancellationException("Capture cancelled"));
+      return;
+    }
+
+    var now = System.nanoTime();
+    if(lastTick != 0) averageTickMs += SMOOTHING * ((now - lastTick) / 1e6 - averageTickMs);
+    lastTick = now;
+    ticks++;
+
+    var mspt = mspt();
+    backingOff = averageTickMs > OVERLOADED_TICK_MS || mspt > OVERLOADED_MSPT;
+    if(backingOff) {
+      //Leave the whole tick to the server, and start small once it has caught up
+      quota = Math.max(1, quota / 2);
+    } else if(next < keys.length) {
+      captureSome(now, mspt);
+      //Failed, the future already says why
+      if(done.isDone()) return;
+    }
+
+    if(next == keys.length) {
+      cancel();
+      preloader.close();
+      backingOff = false;
+      done.complete(CapturedRegion.of(world, chunks));
+    } else if(ticks % REPORT_TICKS == 0) {
+      progress.accept(progress());
+    }
+  }
+
+  private void captureSome(long now, double mspt) {
+    //Only ever take half of what the tick has left, the server may need the rest for a spike
+    var budget = Double.isNaN(mspt)? budgetNanos : Math.min(budgetNanos, (long) ((TICK_MS - mspt) / 2 * 1e6));
+    var deadline = now + budget;
+
+    var captured = 0;
+    try {
+      preloader.fill(next, deadline);
+      //At least one chunk a tick, so a tiny budget still makes progress. Never one that would have to be loaded first.
+      while(next < keys.length && preloader.isReady(next) && (captured == 0 || captured < quota && System.nanoTime() < deadline)) {
+        var key = keys[next];
+        chunks.put(key, CapturedRegion.snapshot(world, key));
+        //Only the copies are kept, the chunk itself can go
+        preloader.release(next);
+        next++;
+        captured++;
+      }
+    } catch(RuntimeException e) {
+      cancel();
+      preloader.close();
+      done.completeExceptionally(e);
+      return;
+    } finally {
+      captureNanos += System.nanoTime() - now;
+    }
+
+    var elapsed = System.nanoTime() - now;
+    if(captured == quota && elapsed < budget / 2) {
+      quota = Math.min(MAX_QUOTA, quota * 2);
+    } else if(captured < quota && next < keys.length && preloader.isReady(next)) {
+      //Ran out of time, this many fit
+      quota = Math.max(1, captured);
+    }
+  }
+
+  //Milliseconds per tick averaged by the server, NaN if it doesn't say
+  private static double mspt() {
+    if(AVERAGE_TICK_TIME == null) return Double.NaN;
+    try {
+      return (double) AVERAGE_TICK_TIME.invoke(Bukkit.getServer());
+    } catch(Throwable _ignored) {
+      return Double.NaN;
+    }
+  }
+
+  private static MethodHandle averageTickTime() {
+    try {
+      return MethodHandles.publicLookup().findVirtual(Server.class, "getAverageTickTime", MethodType.methodType(double.class));
+    } catch(ReflectiveOperationException | RuntimeException _ignored) {
+      return null;
+    }
+  }
+}
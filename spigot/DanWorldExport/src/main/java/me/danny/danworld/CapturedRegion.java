@@ -0,0 +1,161 @@
+package me.danny.danworld;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * A read-only copy of every chunk an export touches, and of their tile entities and markers.
+ *
+ * Capturing has to happen on the server thread, but once it's done the snapshots are immutable,
+ * so everything reading from this class is safe to run on any thread.
+ */
+public final class CapturedRegion {
+
+  private static final BlockData VOID_AIR = Material.VOID_AIR.createBlockData();
+
+  /**
+   * What's kept of a chunk once it's captured.
+   */
+  record CapturedChunk(ChunkSnapshot snapshot, ChunkObjects objects) {}
+
+  //Keyed by chunkKey(chunkX, chunkZ)
+  private final Map<Long, CapturedChunk> chunks;
+  private final int minHeight;
+  private final int maxHeight;
+
+  private CapturedRegion(Map<Long, CapturedChunk> chunks, int minHeight, int maxHeight) {
+    this.chunks = chunks;
+    this.minHeight = minHeight;
+    this.maxHeight = maxHeight;
+  }
+
+  /**
+   * Snapshot every chunk in `keys`, see chunksIn. Must be called from the server thread. Chunks that aren't loaded will be loaded.
+   * Big regions should go through CaptureScheduler instead, which spreads this over many ticks.
+   */
+  public static CapturedRegion capture(World world, long[] keys) {
+    var chunks = new HashMap<Long, CapturedChunk>();
+    for(var key : keys) {
+      chunks.put(key, snapshot(world, key));
+    }
+
+    return of(world, chunks);
+  }
+
+  //Chunks keyed by chunkKey, taken from the given world
+  static CapturedRegion of(World world, Map<Long, CapturedChunk> chunks) {
+    return new CapturedRegion(chunks, world.getMinHeight(), world.getMaxHeight());
+  }
+
+  static CapturedChunk snapshot(World world, long key) {
+    var chunk = world.getChunkAt(chunkX(key), chunkZ(key));
+    //Biomes are needed, max block Y and temperature/rainfall are not.
+    return new CapturedChunk(chunk.getChunkSnapshot(false, true, false), ChunkObjects.capture(chunk));
+  }
+
+  /**
+   * Keys of every chunk overlapping the blocks [minX, minX + sizeX) x [minZ, minZ + sizeZ), in XZ order.
+   */
+  public static long[] chunksIn(int minX, int minZ, int sizeX, int sizeZ) {
+    var minChunkX = Math.floorDiv(minX, 16);
+    var minChunkZ = Math.floorDiv(minZ, 16);
+    var maxChunkX = Math.floorDiv(minX + sizeX - 1, 16);
+    var maxChunkZ = Math.floorDiv(minZ + sizeZ - 1, 16);
+
+    var keys = new long[(maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1)];
+    var i = 0;
+    for(int x = minChunkX; x <= maxChunkX; x++) {
+      for(int z = minChunkZ; z <= maxChunkZ; z++) {
+        keys[i++] = chunkKey(x, z);
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * Keys of only the chunks overlapping the given 16x16 columns of an export. Columns are numbered in XZ order
+   * from (minX, minZ), in a region `depth` columns deep.
+   */
+  public static long[] chunksIn(int minX, int minZ, int depth, BitSet columns) {
+    var keys = new LinkedHashSet<Long>();
+    for(int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+      var columnX = minX + 16 * (i / depth);
+      var columnZ = minZ + 16 * (i % depth);
+
+      //Columns start at the selection, not on chunk borders, so each one overlaps up to 4 chunks
+      for(int x = Math.floorDiv(columnX, 16); x <= Math.floorDiv(columnX + 15, 16); x++) {
+        for(int z = Math.floorDiv(columnZ, 16); z <= Math.floorDiv(columnZ + 15, 16); z++) {
+          keys.add(chunkKey(x, z));
+        }
+      }
+    }
+
+    return keys.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  public int size() {
+    return chunks.size();
+  }
+
+  public Material getType(int x, int y, int z) {
+    if(y < minHeight || y >= maxHeight) return Material.VOID_AIR;
+    return snapshotAt(x, z).getBlockType(x & 15, y, z & 15);
+  }
+
+  public BlockData getBlockData(int x, int y, int z) {
+    if(y < minHeight || y >= maxHeight) return VOID_AIR;
+    return snapshotAt(x, z).getBlockData(x & 15, y, z & 15);
+  }
+
+  public Biome getBiome(int x, int y, int z) {
+    //Biomes outside of the build height take the value of the nearest valid one, like World#getBiome
+    var clampedY = Math.max(minHeight, Math.min(maxHeight - 1, y));
+    return snapshotAt(x, z).getBiome(x & 15, clampedY, z & 15);
+  }
+
+  /**
+   * The objects in the 16x16 column starting at block (minX, minZ) that are in sel, see ChunkObjects.within.
+   */
+  ChunkObjects objectsIn(int minX, int minZ, Selection sel) {
+    var objects = new ArrayList<ChunkObjects>(4);
+    for(int x = minX >> 4; x <= (minX + 15) >> 4; x++) {
+      for(int z = minZ >> 4; z <= (minZ + 15) >> 4; z++) {
+        var chunk = chunks.get(chunkKey(x, z));
+        if(chunk != null) objects.add(chunk.objects().within(minX, minZ, sel));
+      }
+    }
+
+    return ChunkObjects.merge(objects);
+  }
+
+  private ChunkSnapshot snapshotAt(int x, int z) {
+    var chunk = chunks.get(chunkKey(x >> 4, z >> 4));
+    if(chunk == null) {
+      throw new IllegalArgumentException("Block (%d, %d) is outside of the captured region.".formatted(x, z));
+    }
+
+    return chunk.snapshot();
+  }
+
+  static long chunkKey(int chunkX, int chunkZ) {
+    return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+  }
+
+  static int chunkX(long key) {
+    return (int) (key >> 32);
+  }
+
+  static int chunkZ(long key) {
+    return (int) key;
+  }
+}
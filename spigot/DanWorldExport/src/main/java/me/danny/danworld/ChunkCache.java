@@ -0,0 +1,203 @@
+package me.danny.danworld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The encoded bytes of every chunk from the last export of a world, so the next export only has to encode the chunks that changed.
+ * This lives on disk rather than in memory, big worlds would need hundreds of MB otherwise.
+ *
+ * Layout: magic u32, export number u64, chunk count u32, (offset u64, length u32)[chunk count], then the uncompressed Chunk data of every chunk.
+ */
+final class ChunkCache {
+
+  private static final int MAGIC = 0x44574343; //DWCC
+  private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+  private static final int INDEX_ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+
+  private ChunkCache() {}
+
+  /**
+   * Up to maxBytes of chunk data from the cache, cut into samples of sampleSize bytes, picked evenly across the world.
+   * Unlike Reader, the cache can be from any export, stale chunks are still typical chunks. Empty when there's no cache.
+   * Used to train compression dictionaries.
+   */
+  static List<byte[]> samples(Path file, int sampleSize, int maxBytes) throws IOException {
+    var samples = new ArrayList<byte[]>();
+    if(!Files.exists(file)) return samples;
+
+    try(var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var header = ByteBuffer.allocate(HEADER_SIZE);
+      Reader.readFully(channel, header, 0);
+      if(header.getInt() != MAGIC) return samples;
+      header.getLong();
+      var chunks = header.getInt();
+
+      var index = ByteBuffer.allocate(chunks * INDEX_ENTRY_SIZE);
+      Reader.readFully(channel, index, HEADER_SIZE);
+      var dataStart = HEADER_SIZE + (long) chunks * INDEX_ENTRY_SIZE;
+      //Every nth chunk, so samples don't all come from one corner of the world
+      var step = Math.max(1, (int) Math.ceilDiv(channel.size() - dataStart, maxBytes));
+      var total = 0;
+      for(int i = 0; i < chunks && total < maxBytes; i += step) {
+        index.position(i * INDEX_ENTRY_SIZE);
+        var offset = index.getLong();
+        var length = Math.min(index.getInt(), maxBytes - total);
+
+        var chunk = ByteBuffer.allocate(length);
+        Reader.readFully(channel, chunk, offset);
+        for(int start = 0; start < length; start += sampleSize) {
+          samples.add(Arrays.copyOfRange(chunk.array(), start, Math.min(length, start + sampleSize)));
+        }
+        total += length;
+      }
+    }
+
+    return samples;
+  }
+
+  /**
+   * Reads chunks from an existing cache. Reads only use positional IO, so any number of threads can read at once.
+   */
+  static final class Reader implements Closeable {
+    private final FileChannel channel;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private Reader(FileChannel channel, long[] offsets, int[] lengths) {
+      this.channel = channel;
+      this.offsets = offsets;
+      this.lengths = lengths;
+    }
+
+    /**
+     * Open the cache written by export number `export`, which must hold `chunks` chunks.
+     * Throws if it's missing or was written by any other export, since its chunks could be stale.
+     */
+    static Reader open(Path file, long export, int chunks) throws IOException {
+      var channel = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if(header.getInt() != MAGIC || header.getLong() != export || header.getInt() != chunks) {
+          throw new IOException("Chunk cache is out of date, the next save will encode every chunk.");
+        }
+
+        var index = ByteBuffer.allocate(chunks * INDEX_ENTRY_SIZE);
+        readFully(channel, index, HEADER_SIZE);
+        var offsets = new long[chunks];
+        var lengths = new int[chunks];
+        for(int i = 0; i < chunks; i++) {
+          offsets[i] = index.getLong();
+          lengths[i] = index.getInt();
+        }
+
+        return new Reader(channel, offsets, lengths);
+      } catch(IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    void read(int chunk, ByteArrayOutputStream out) throws IOException {
+      var bytes = ByteBuffer.allocate(lengths[chunk]);
+      readFully(channel, bytes, offsets[chunk]);
+      out.write(bytes.array(), 0, bytes.limit());
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while(buffer.hasRemaining()) {
+        if(channel.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("Chunk cache is truncated.");
+        }
+      }
+      buffer.flip();
+    }
+  }
+
+  /**
+   * Writes a new cache next to the old one, chunks have to be appended in order.
+   * Nothing replaces the old cache until commit, closing without committing throws the new one away.
+   */
+  static final class Writer implements Closeable {
+    private final Path file;
+    private final Path tmp;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final long export;
+    private final long[] offsets;
+    private final int[] lengths;
+    private long position;
+    private int next;
+    private boolean committed;
+
+    Writer(Path file, long export, int chunks) throws IOException {
+      this.file = file;
+      this.export = export;
+      offsets = new long[chunks];
+      lengths = new int[chunks];
+
+      Files.createDirectories(file.getParent());
+      tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      //The index is filled in on commit
+      position = HEADER_SIZE + (long) chunks * INDEX_ENTRY_SIZE;
+      channel.position(position);
+      out = Channels.newOutputStream(channel);
+    }
+
+    void append(ByteArrayOutputStream chunk) throws IOException {
+      offsets[next] = position;
+      lengths[next] = chunk.size();
+      chunk.writeTo(out);
+      position += chunk.size();
+      next++;
+    }
+
+    void commit() throws IOException {
+      if(next != offsets.length) {
+        throw new IOException("Chunk cache is missing %d chunks.".formatted(offsets.length - next));
+      }
+
+      var header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * INDEX_ENTRY_SIZE);
+      header.putInt(MAGIC);
+      header.putLong(export);
+      header.putInt(offsets.length);
+      for(int i = 0; i < offsets.length; i++) {
+        header.putLong(offsets[i]);
+        header.putInt(lengths[i]);
+      }
+      header.flip();
+      channel.position(0);
+      while(header.hasRemaining()) {
+        channel.write(header);
+      }
+      channel.close();
+
+      WorldExport.moveIntoPlace(tmp, file);
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+      if(!committed) Files.deleteIfExists(tmp);
+    }
+  }
+}
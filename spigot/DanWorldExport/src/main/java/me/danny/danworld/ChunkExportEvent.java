@@ -0,0 +1,33 @@
+package me.danny.danworld;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for every chunk of an export, from encoding (or reading it from the cache) to compressing it.
+ * Disabled by default, there's one per chunk.
+ */
+@Name("me.danny.danworld.ChunkExport")
+@Label("DanWorld Chunk Export")
+@Category("DanWorld")
+@Enabled(false)
+@StackTrace(false)
+final class ChunkExportEvent extends Event {
+  @Label("Chunk X")
+  int x;
+
+  @Label("Chunk Z")
+  int z;
+
+  @Label("Cached")
+  boolean cached;
+
+  @Label("Size")
+  @DataAmount
+  int bytes;
+}
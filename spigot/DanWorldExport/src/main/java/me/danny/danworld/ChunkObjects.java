@@ -0,0 +1,151 @@
+package me.danny.danworld;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bukkit.Chunk;
+import org.bukkit.Nameable;
+import org.bukkit.block.Sign;
+import org.bukkit.block.sign.Side;
+import org.bukkit.entity.ArmorStand;
+import org.bukkit.entity.Display;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Marker;
+
+import me.danny.danworld.core.DanFormat;
+
+/**
+ * The tile entities and marker entities of a chunk, taken along with its snapshot. See Chunk objects in design.txt.
+ *
+ * They come from the chunk's own tile entity and entity lists, so nothing has to look at every block to find them.
+ * Only copies of what gets exported are kept, so like a snapshot this is safe to read from any thread.
+ */
+record ChunkObjects(List<Tile> tiles, List<MarkerEntity> markers) {
+
+  static final ChunkObjects NONE = new ChunkObjects(List.of(), List.of());
+
+  //Tile entities in YXZ order, like blocks, and markers by position, so the same objects always encode the same way
+  private static final Comparator<Tile> TILE_ORDER = Comparator.comparingInt(Tile::y).thenComparingInt(Tile::x).thenComparingInt(Tile::z);
+  private static final Comparator<MarkerEntity> MARKER_ORDER = Comparator.comparingDouble(MarkerEntity::x)
+    .thenComparingDouble(MarkerEntity::y).thenComparingDouble(MarkerEntity::z).thenComparing(MarkerEntity::key);
+
+  /**
+   * A tile entity at block (x, y, z) of the world. name is its custom name, null without one.
+   * lines is the text of a sign, front then back, and empty for anything else.
+   */
+  record Tile(int x, int y, int z, String key, String name, List<String> lines) {}
+
+  /**
+   * A marker, display entity or marker armor stand with a custom name or scoreboard tags, at (x, y, z) of the world.
+   * name is null without one.
+   */
+  record MarkerEntity(String key, String name, List<String> tags, double x, double y, double z, float yaw, float pitch) {}
+
+  /**
+   * Copy the objects of chunk. Must be called from the server thread.
+   */
+  static ChunkObjects capture(Chunk chunk) {
+    var tiles = new ArrayList<Tile>();
+    for(var state : chunk.getTileEntities()) {
+      var name = state instanceof Nameable nameable? nameable.getCustomName() : null;
+      List<String> lines = List.of();
+      if(state instanceof Sign sign) {
+        var both = new ArrayList<String>(8);
+        both.addAll(List.of(sign.getSide(Side.FRONT).getLines()));
+        both.addAll(List.of(sign.getSide(Side.BACK).getLines()));
+        lines = List.copyOf(both);
+      }
+      tiles.add(new Tile(state.getX(), state.getY(), state.getZ(), state.getType().getKey().toString(), name, lines));
+    }
+
+    var markers = new ArrayList<MarkerEntity>();
+    for(var entity : chunk.getEntities()) {
+      if(!isMarker(entity)) continue;
+
+      var name = entity.getCustomName();
+      var tags = entity.getScoreboardTags();
+      if(name == null && tags.isEmpty()) continue;
+
+      var loc = entity.getLocation();
+      markers.add(new MarkerEntity(entity.getType().getKey().toString(), name, tags.stream().sorted().toList(),
+        loc.getX(), loc.getY(), loc.getZ(), loc.getYaw(), loc.getPitch()));
+    }
+
+    if(tiles.isEmpty() && markers.isEmpty()) return NONE;
+    return new ChunkObjects(List.copyOf(tiles), List.copyOf(markers));
+  }
+
+  /**
+   * Only the objects in the 16x16 column starting at block (minX, minZ) and in sel, in the order they're written.
+   * Columns of an export start at its selection, so one can take objects from up to 4 chunks, see CapturedRegion.objectsIn.
+   */
+  ChunkObjects within(int minX, int minZ, Selection sel) {
+    if(this == NONE) return NONE;
+
+    var inTiles = tiles.stream()
+      .filter(t -> inColumn(t.x(), t.z(), minX, minZ) && sel.contains(t.x(), t.y(), t.z()))
+      .toList();
+    var inMarkers = markers.stream()
+      .filter(m -> inColumn(m.x(), m.z(), minX, minZ) && sel.contains(m.x(), m.y(), m.z()))
+      .toList();
+    return new ChunkObjects(inTiles, inMarkers);
+  }
+
+  /**
+   * Merge the objects of the given chunks, sorted the way they're written.
+   */
+  static ChunkObjects merge(List<ChunkObjects> objects) {
+    var tiles = new ArrayList<Tile>();
+    var markers = new ArrayList<MarkerEntity>();
+    for(var o : objects) {
+      tiles.addAll(o.tiles);
+      markers.addAll(o.markers);
+    }
+
+    tiles.sort(TILE_ORDER);
+    markers.sort(MARKER_ORDER);
+    return new ChunkObjects(tiles, markers);
+  }
+
+  /**
+   * Write the objects as the Chunk objects of the column starting at block (minX, minZ), relative to sel like extras are.
+   */
+  void write(DataOutputStream d, int minX, int minZ, Selection sel) throws IOException {
+    DanFormat.writeVarInt(d, tiles.size());
+    for(var tile : tiles) {
+      d.writeByte(tile.x() - minX);
+      d.writeByte(tile.z() - minZ);
+      DanFormat.writeVarInt(d, tile.y() - sel.min().getBlockY());
+      DanFormat.writeString(d, tile.key());
+      DanFormat.writeText(d, tile.name() == null? "" : tile.name());
+      d.writeByte(tile.lines().size());
+      for(var line : tile.lines()) {
+        DanFormat.writeText(d, line);
+      }
+    }
+
+    DanFormat.writeVarInt(d, markers.size());
+    for(var marker : markers) {
+      DanFormat.writeString(d, marker.key());
+      DanFormat.writeText(d, marker.name() == null? "" : marker.name());
+      DanFormat.writeVarInt(d, marker.tags().size());
+      for(var tag : marker.tags()) {
+        DanFormat.writeText(d, tag);
+      }
+      //The same bytes as a pos extra, so both are read the same way
+      d.write(ExtraUtils.encodeCoords(sel, marker.x(), marker.y(), marker.z(), marker.yaw(), marker.pitch()));
+    }
+  }
+
+  private static boolean inColumn(double x, double z, int minX, int minZ) {
+    return x >= minX && x < minX + 16 && z >= minZ && z < minZ + 16;
+  }
+
+  //Entities that only exist to mark a place or show something, placed by whoever built the map
+  private static boolean isMarker(Entity entity) {
+    return entity instanceof Marker || entity instanceof Display || entity instanceof ArmorStand stand && stand.isMarker();
+  }
+}
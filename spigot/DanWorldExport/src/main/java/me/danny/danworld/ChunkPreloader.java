@@ -0,0 +1,174 @@
+package me.danny.danworld;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Loads the chunks a CaptureScheduler is about to capture, a sliding window ahead of it, so capturing never has to stop
+ * the server thread to load or generate a chunk.
+ *
+ * On Paper chunks are loaded asynchronously, with a bounded number of loads in flight. Elsewhere there is no way to load
+ * a chunk off the server thread, so a few are loaded every tick within the capture budget instead.
+ * Every loaded chunk holds a plugin chunk ticket until it's captured, then the server is free to unload it again,
+ * so memory doesn't grow with the size of the selection. Server thread only.
+ *
+ * A plugin has at most one ticket per chunk, not one per request, so preloaders whose chunks overlap share it:
+ * the ticket is added by the first of them to hold the chunk and removed by the last to release it.
+ */
+final class ChunkPreloader {
+
+  private static final byte NOT_REQUESTED = 0;
+  private static final byte LOADING = 1;
+  //Loaded and ticketed
+  private static final byte LOADED = 2;
+  //Loading failed, capturing loads it the slow way
+  private static final byte FAILED = 3;
+
+  //Without async loading, at most this many chunks are loaded a tick
+  private static final int SYNC_LOADS_PER_TICK = 2;
+  //World#getChunkAtAsync(int, int, boolean), Paper only. Its futures complete on the server thread.
+  private static final MethodHandle GET_CHUNK_AT_ASYNC = getChunkAtAsync();
+  //Number of preloaders holding each chunk the plugin has a ticket for
+  private static final Map<Ticket, Integer> HOLDERS = new HashMap<>();
+
+  private final World world;
+  private final long[] keys;
+  private final Plugin plugin;
+  private final int window;
+  private final int maxInFlight;
+  private final byte[] states;
+
+  //Next key to request
+  private int requested;
+  private int inFlight;
+  private boolean closed;
+
+  /**
+   * Preload the chunks in `keys`, in order, keeping up to `window` of them loaded or loading ahead of the capture,
+   * and at most `maxInFlight` of them loading at once.
+   */
+  ChunkPreloader(World world, long[] keys, Plugin plugin, int window, int maxInFlight) {
+    this.world = world;
+    this.keys = keys;
+    this.plugin = plugin;
+    this.window = Math.max(1, window);
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.states = new byte[keys.length];
+  }
+
+  static boolean isAsync() {
+    return GET_CHUNK_AT_ASYNC != null;
+  }
+
+  /**
+   * Request chunks until the window ahead of `captured`, the index of the next chunk to capture, is full.
+   * Loading chunks synchronously stops at `deadline`.
+   */
+  void fill(int captured, long deadline) {
+    var syncLoads = 0;
+    while(requested < keys.length && requested < captured + window && inFlight < maxInFlight) {
+      var i = requested;
+      var x = CapturedRegion.chunkX(keys[i]);
+      var z = CapturedRegion.chunkZ(keys[i]);
+
+      if(world.isChunkLoaded(x, z)) {
+        //Already loaded, only needs to stay that way until it's captured
+        loaded(i);
+      } else if(GET_CHUNK_AT_ASYNC != null) {
+        if(!requestAsync(i, x, z)) states[i] = FAILED;
+      } else {
+        if(syncLoads == SYNC_LOADS_PER_TICK || System.nanoTime() >= deadline) return;
+        syncLoads++;
+        if(world.loadChunk(x, z, true)) {
+          loaded(i);
+        } else {
+          states[i] = FAILED;
+        }
+      }
+      requested++;
+    }
+  }
+
+  /**
+   * Whether the chunk at index i can be captured without loading it, or loading it failed and capturing has to try itself.
+   */
+  boolean isReady(int i) {
+    return states[i] == LOADED || states[i] == FAILED;
+  }
+
+  /**
+   * Let the server unload the chunk at index i again, it's been captured.
+   */
+  void release(int i) {
+    if(states[i] == LOADED) {
+      var ticket = new Ticket(world.getUID(), keys[i]);
+      if(HOLDERS.merge(ticket, -1, Integer::sum) == 0) {
+        HOLDERS.remove(ticket);
+        world.removePluginChunkTicket(CapturedRegion.chunkX(keys[i]), CapturedRegion.chunkZ(keys[i]), plugin);
+      }
+    }
+    states[i] = NOT_REQUESTED;
+  }
+
+  /**
+   * Release every chunk still held, and drop loads still in flight once they finish. Nothing can be requested afterwards.
+   */
+  void close() {
+    closed = true;
+    for(int i = 0; i < requested; i++) {
+      release(i);
+    }
+    requested = keys.length;
+  }
+
+  private boolean requestAsync(int i, int x, int z) {
+    CompletableFuture<?> load;
+    try {
+      load = (CompletableFuture<?>) GET_CHUNK_AT_ASYNC.invoke(world, x, z, true);
+    } catch(Throwable _ignored) {
+      return false;
+    }
+
+    states[i] = LOADING;
+    inFlight++;
+    load.whenComplete((chunk, err) -> {
+      inFlight--;
+      if(closed) return;
+
+      if(err == null && chunk != null) {
+        loaded(i);
+      } else {
+        states[i] = FAILED;
+      }
+    });
+    return true;
+  }
+
+  private void loaded(int i) {
+    //Holds the chunk until release, without this the server may unload it again before it's captured
+    if(HOLDERS.merge(new Ticket(world.getUID(), keys[i]), 1, Integer::sum) == 1) {
+      world.addPluginChunkTicket(CapturedRegion.chunkX(keys[i]), CapturedRegion.chunkZ(keys[i]), plugin);
+    }
+    states[i] = LOADED;
+  }
+
+  //A chunk of a world, see CapturedRegion.chunksIn for the key
+  private record Ticket(UUID world, long chunk) {}
+
+  private static MethodHandle getChunkAtAsync() {
+    try {
+      return MethodHandles.publicLookup().findVirtual(World.class, "getChunkAtAsync",
+        MethodType.methodType(CompletableFuture.class, int.class, int.class, boolean.class));
+    } catch(ReflectiveOperationException | RuntimeException _ignored) {
+      return null;
+    }
+  }
+}
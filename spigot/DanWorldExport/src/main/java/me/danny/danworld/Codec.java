@@ -0,0 +1,156 @@
+package me.danny.danworld;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import me.danny.danworld.core.DanHeader;
+
+/**
+ * How the frames of a framed .dan file are compressed. The id is the Codec byte in the header, see design.txt.
+ *
+ * Written as name[:level][+dict], i.e. "gzip", "deflate:1", "zstd:19+dict". level is only used while writing,
+ * readers don't need it. Only zstd can use a dictionary.
+ */
+public record Codec(int id, int level, boolean dictionary) {
+
+  public static final int NONE = DanHeader.NONE;
+  public static final int GZIP = DanHeader.GZIP;
+  public static final int DEFLATE = DanHeader.DEFLATE;
+  public static final int LZ4 = DanHeader.LZ4;
+  public static final int ZSTD = DanHeader.ZSTD;
+
+  //What every file was compressed with before codecs could be picked, and what readers expect of the stream layout
+  public static final Codec DEFAULT = new Codec(GZIP, Deflater.DEFAULT_COMPRESSION, false);
+
+  private static final String[] NAMES = { "none", "gzip", "deflate", "lz4", "zstd" };
+  //Same as the zstd command line tool
+  private static final int ZSTD_DEFAULT_LEVEL = 3;
+
+  /**
+   * Parse a codec written as name[:level][+dict]. Empty if it isn't one, or its level is out of range.
+   */
+  public static Optional<Codec> parse(String spec) {
+    if(spec == null) return Optional.empty();
+
+    var s = spec.toLowerCase(Locale.ROOT);
+    var dictionary = s.endsWith("+dict");
+    if(dictionary) s = s.substring(0, s.length() - "+dict".length());
+
+    var colon = s.indexOf(':');
+    var name = colon == -1? s : s.substring(0, colon);
+    var id = -1;
+    for(int i = 0; i < NAMES.length; i++) {
+      if(NAMES[i].equals(name)) id = i;
+    }
+    if(id == -1 || (dictionary && id != ZSTD)) return Optional.empty();
+
+    int level;
+    if(colon == -1) {
+      level = id == ZSTD? ZSTD_DEFAULT_LEVEL : Deflater.DEFAULT_COMPRESSION;
+    } else {
+      try {
+        level = Integer.parseInt(s.substring(colon + 1));
+      } catch(NumberFormatException _ignored) {
+        return Optional.empty();
+      }
+
+      var valid = switch(id) {
+        case GZIP, DEFLATE -> level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+        case ZSTD -> level >= 1 && level <= 22;
+        //No levels to pick from
+        default -> false;
+      };
+      if(!valid) return Optional.empty();
+    }
+
+    return Optional.of(new Codec(id, level, dictionary));
+  }
+
+  public String name() {
+    return NAMES[id];
+  }
+
+  /**
+   * Wrap out so everything written to it is compressed. Closing the returned stream finishes the frame and closes out.
+   * dict is only used by zstd codecs with a dictionary, and may be null for every other codec.
+   */
+  public OutputStream compress(OutputStream out, int bufferSize, ZstdDictCompress dict) throws IOException {
+    return switch(id) {
+      case NONE -> out;
+      case GZIP -> new GZIPOutputStream(out, bufferSize) {
+        {
+          def.setLevel(level);
+        }
+      };
+      case DEFLATE -> new DeflaterOutputStream(out, new Deflater(level), bufferSize) {
+        //Deflaters passed in aren't ended by close, and hold on to native memory until they are
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            def.end();
+          }
+        }
+      };
+      //Small blocks, the default 4 MB buffer would be allocated for every frame
+      case LZ4 -> new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+      case ZSTD -> {
+        var zstd = new ZstdOutputStream(out, level);
+        if(dict != null) zstd.setDict(dict);
+        yield zstd;
+      }
+      default -> throw new IllegalStateException("Unknown codec " + id);
+    };
+  }
+
+  /**
+   * Wrap in so everything read from it is decompressed, for frames written by a codec with this id.
+   * dictionary is the Zstandard dictionary from the file header, and may be empty.
+   */
+  public static InputStream decompress(int id, InputStream in, int bufferSize, byte[] dictionary) throws IOException {
+    return switch(id) {
+      case NONE -> in;
+      case GZIP -> new GZIPInputStream(in, bufferSize);
+      case DEFLATE -> new InflaterInputStream(in, new Inflater(), bufferSize) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inf.end();
+          }
+        }
+      };
+      case LZ4 -> new LZ4FrameInputStream(in);
+      case ZSTD -> {
+        var zstd = new ZstdInputStream(in);
+        if(dictionary.length > 0) zstd.setDict(dictionary);
+        yield zstd;
+      }
+      default -> throw new IOException("Unknown frame codec " + id);
+    };
+  }
+
+  @Override
+  public String toString() {
+    var levelled = (id == GZIP || id == DEFLATE) && level != Deflater.DEFAULT_COMPRESSION || id == ZSTD && level != ZSTD_DEFAULT_LEVEL;
+    return name() + (levelled? ":" + level : "") + (dictionary? "+dict" : "");
+  }
+}
@@ -0,0 +1,277 @@
+package me.danny.danworld;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import me.danny.danworld.core.DanFormat;
+import me.danny.danworld.core.DanHeader;
+import me.danny.danworld.core.SectionDecoder;
+import me.danny.danworld.core.SectionEncoder;
+import me.danny.danworld.core.SharedSections;
+import me.danny.danworld.core.StateRegistry;
+
+/**
+ * Reads the chunks of a .dan file one by one, in XZ order, in either layout. See design.txt.
+ *
+ * Only the header is read up front, along with the section table of framed version 5 files. Each chunk is handed out
+ * as a stream positioned at its Chunk data, which is only valid until the next chunk is asked for. Its sections are read
+ * with readSection, which takes care of sections shared between chunks.
+ *
+ * From version 7 framed files also have their section checksums read up front, and readSection fails on a section that
+ * doesn't match. Stream files are already covered by the CRC-32 at the end of their GZIP stream.
+ *
+ * The header, frame index, section table, extras and checksums are parsed by DanHeader and SharedSections in the core,
+ * like DanWorldReader does, so both read the format the same way.
+ */
+final class DanFileReader implements Closeable {
+
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+  //Decoded shared sections kept around, so sections repeated all over a world are only decoded once
+  private static final int DECODED_SECTIONS = 256;
+
+  private final DanHeader header;
+  private final int version;
+  private final int width;
+  private final int depth;
+
+  //Stream layout: the one stream every chunk is read from
+  private final DataInputStream stream;
+  //Framed layout: the file, and where each frame is
+  private final FileChannel channel;
+  private final int codec;
+  private final byte[] dictionary;
+  private final long[] offsets;
+  private final int[] lengths;
+  private DataInputStream frame;
+
+  //Version 5: every shared section seen so far, by table index
+  private SharedSections sections;
+  //Table index -> decoded states followed by biomes, least recently used first
+  private final Map<Integer, int[]> decoded = new LinkedHashMap<>(DECODED_SECTIONS, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+      return size() > DECODED_SECTIONS;
+    }
+  };
+
+  //Version 7, framed layout: the checksum of every section in the file, how many were checked so far, and of every table entry
+  private int[] checksums;
+  private int checked;
+  private int[] tableChecksums;
+
+  private int next;
+
+  private DanFileReader(DanHeader header, DataInputStream stream, FileChannel channel) {
+    this.header = header;
+    this.version = header.version();
+    this.width = header.width();
+    this.depth = header.depth();
+    this.stream = stream;
+    this.channel = channel;
+    this.codec = header.codec();
+    this.dictionary = header.dictionary();
+    this.offsets = header.offsets();
+    this.lengths = header.lengths();
+  }
+
+  static DanFileReader open(Path file) throws IOException {
+    var in = new BufferedInputStream(Files.newInputStream(file), IO_BUFFER_SIZE);
+    try {
+      if(DanHeader.isStream(in)) {
+        var d = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in, IO_BUFFER_SIZE), IO_BUFFER_SIZE));
+        var reader = new DanFileReader(DanHeader.readStream(d), d, null);
+        if(reader.version >= DanFormat.SHARED_SECTIONS_VERSION) reader.sections = new SharedSections();
+        return reader;
+      }
+    } catch(IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+
+    in.close();
+    return openFramed(file);
+  }
+
+  private static DanFileReader openFramed(Path file) throws IOException {
+    var channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      var header = DanHeader.readFramed(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), IO_BUFFER_SIZE)));
+      var reader = new DanFileReader(header, null, channel);
+      if(reader.version >= DanFormat.SHARED_SECTIONS_VERSION) {
+        byte[] table;
+        try(var in = reader.openFrame(header.tableFrame())) {
+          table = in.readAllBytes();
+        }
+        reader.sections = new SharedSections(table, table.length);
+      }
+      if(reader.version >= DanFormat.CHECKSUMS_VERSION) {
+        try(var in = reader.openFrame(header.checksumsFrame())) {
+          reader.checksums = header.readChecksums(in);
+        }
+        reader.tableChecksums = reader.sections.checksums();
+      }
+      return reader;
+    } catch(IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  int version() {
+    return version;
+  }
+
+  int dimension() {
+    return header.dimension();
+  }
+
+  int width() {
+    return width;
+  }
+
+  int depth() {
+    return depth;
+  }
+
+  boolean hasNextChunk() {
+    return next < width * depth;
+  }
+
+  /**
+   * The Chunk data of the next chunk. Reading past it is undefined.
+   */
+  DataInputStream nextChunk() throws IOException {
+    if(!hasNextChunk()) throw new IOException("No chunks left.");
+    var index = next++;
+    if(stream != null) return stream;
+
+    if(frame != null) frame.close();
+    frame = openFrame(index);
+    return frame;
+  }
+
+  /**
+   * Decode the next section of the chunk returned by nextChunk into states and biomes, see SectionDecoder.
+   */
+  void readSection(DataInputStream chunk, SectionDecoder decoder, StateRegistry registry, int[] states, int[] biomes) throws IOException {
+    if(version < DanFormat.SHARED_SECTIONS_VERSION) {
+      decoder.decode(chunk, version, registry, states, biomes);
+      return;
+    }
+
+    var id = sections.readRef(chunk, stream == null);
+    if(checksums != null) check(id);
+
+    var cached = decoded.get(id);
+    if(cached == null) {
+      var section = new ByteArrayInputStream(sections.bytes(), sections.offset(id), sections.length(id));
+      decoder.decode(new DataInputStream(section), version, registry, states, biomes);
+
+      cached = new int[SectionEncoder.SECTION_BLOCKS + SectionDecoder.BIOME_CELLS];
+      System.arraycopy(states, 0, cached, 0, SectionEncoder.SECTION_BLOCKS);
+      System.arraycopy(biomes, 0, cached, SectionEncoder.SECTION_BLOCKS, SectionDecoder.BIOME_CELLS);
+      decoded.put(id, cached);
+      return;
+    }
+
+    System.arraycopy(cached, 0, states, 0, SectionEncoder.SECTION_BLOCKS);
+    System.arraycopy(cached, SectionEncoder.SECTION_BLOCKS, biomes, 0, SectionDecoder.BIOME_CELLS);
+  }
+
+  /**
+   * The checksum of every section in the file, in XZ order then Y, see Checksums in design.txt. Null before version 7.
+   * The stream layout keeps them at its very end, so this reads through every chunk and the extras to get there,
+   * and no chunk can be read afterwards.
+   */
+  int[] checksums() throws IOException {
+    if(version < DanFormat.CHECKSUMS_VERSION || stream == null) return checksums;
+
+    while(hasNextChunk()) {
+      skipChunk(nextChunk());
+    }
+    header.readExtras(stream);
+    return header.readChecksums(stream);
+  }
+
+  /**
+   * Skip the Chunk objects that follow the sections of the chunk returned by nextChunk, from version 6.
+   */
+  void skipObjects(DataInputStream chunk) throws IOException {
+    if(version < DanFormat.OBJECTS_VERSION) return;
+
+    var tiles = DanFormat.readVarInt(chunk);
+    for(int i = 0; i < tiles; i++) {
+      //Position in the column, then height
+      chunk.skipNBytes(2);
+      DanFormat.readVarInt(chunk);
+      DanFormat.readString(chunk);
+      DanFormat.readText(chunk);
+      var lines = chunk.readUnsignedByte();
+      for(int line = 0; line < lines; line++) {
+        DanFormat.readText(chunk);
+      }
+    }
+
+    var markers = DanFormat.readVarInt(chunk);
+    for(int i = 0; i < markers; i++) {
+      DanFormat.readString(chunk);
+      DanFormat.readText(chunk);
+      var tags = DanFormat.readVarInt(chunk);
+      for(int tag = 0; tag < tags; tag++) {
+        DanFormat.readText(chunk);
+      }
+      //x, y, z, yaw and pitch
+      chunk.skipNBytes(3 * Double.BYTES + 2 * Float.BYTES);
+    }
+  }
+
+  //Chunk data without decoding it, from version 5
+  private void skipChunk(DataInputStream chunk) throws IOException {
+    //x and z
+    chunk.skipNBytes(2 * Short.BYTES);
+    var sections = chunk.readUnsignedByte();
+    for(int i = 0; i < sections; i++) {
+      if(DanFormat.readVarInt(chunk) == 0) chunk.skipNBytes(DanFormat.readVarInt(chunk));
+    }
+    skipObjects(chunk);
+  }
+
+  //Fail if the section the next checksum is for isn't table entry id
+  private void check(int id) throws IOException {
+    if(checked >= checksums.length) throw new IOException("There are more sections than checksums.");
+
+    if(tableChecksums[id] != checksums[checked]) {
+      var perChunk = checksums.length / (width * depth);
+      throw new IOException("Section %d of chunk %d doesn't match its checksum, the file is corrupt.".formatted(checked % perChunk, checked / perChunk));
+    }
+    checked++;
+  }
+
+  private DataInputStream openFrame(int index) throws IOException {
+    var bytes = ByteBuffer.allocate(lengths[index]);
+    while(bytes.hasRemaining()) {
+      if(channel.read(bytes, offsets[index] + bytes.position()) < 0) throw new IOException("File is truncated.");
+    }
+    var compressed = new ByteArrayInputStream(bytes.array());
+    return new DataInputStream(new BufferedInputStream(Codec.decompress(codec, compressed, IO_BUFFER_SIZE, dictionary), IO_BUFFER_SIZE));
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(stream != null) stream.close();
+    if(frame != null) frame.close();
+    if(channel != null) channel.close();
+  }
+}
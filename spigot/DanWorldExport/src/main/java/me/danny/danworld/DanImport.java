@@ -0,0 +1,321 @@
+package me.danny.danworld;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldedit.util.SideEffect;
+import com.sk89q.worldedit.util.SideEffectSet;
+import com.sk89q.worldedit.world.block.BlockState;
+
+import me.danny.danworld.core.SectionDecoder;
+import me.danny.danworld.core.SectionEncoder;
+import me.danny.danworld.core.StateRegistry;
+
+/**
+ * Places the blocks, block data and biomes of a .dan file back into a world, with its lowest corner at (x, y, z).
+ *
+ * The file is decoded on a worker thread, a bounded number of sections ahead. Placing them happens on the server thread,
+ * a few layers of a section at a time, for at most `budgetNanos` every tick, so even big imports don't lag the server.
+ * Blocks are written straight into the chunk sections through WorldEdit, skipping neighbour updates and physics,
+ * and clients are sent each chunk once its blocks are in.
+ */
+final class DanImport extends BukkitRunnable {
+
+  //Sections decoded ahead of placing them. Their arrays are recycled, so this is all the memory an import takes.
+  private static final int SECTIONS_AHEAD = 256;
+  //Blocks keep their light right, but nothing else reacts to them. Neighbours are placed by the same import anyway.
+  private static final SideEffectSet SIDE_EFFECTS = SideEffectSet.none().with(SideEffect.LIGHTING, SideEffect.State.ON);
+  //Namespaced key -> biome of this server
+  private static final Map<String, Biome> BIOMES = new HashMap<>();
+
+  static {
+    for(var biome : Biome.values()) {
+      if(biome != Biome.CUSTOM) BIOMES.put(biome.getKey().toString(), biome);
+    }
+  }
+
+  //A decoded section, with the target coordinates of its lowest corner. last is set on the last section of a chunk,
+  //empty on a stand-in for chunks without any sections.
+  private static final class Section {
+    final int[] states = new int[SectionEncoder.SECTION_BLOCKS];
+    final int[] biomes = new int[SectionDecoder.BIOME_CELLS];
+    int x;
+    int y;
+    int z;
+    boolean last;
+    boolean empty;
+  }
+
+  private final Path file;
+  private final World world;
+  private final com.sk89q.worldedit.world.World weWorld;
+  private final int x;
+  private final int y;
+  private final int z;
+  private final long budgetNanos;
+  private final Consumer<String> l;
+  private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+  private final StateRegistry registry = new StateRegistry();
+  private final BlockingQueue<Section> free = new ArrayBlockingQueue<>(SECTIONS_AHEAD);
+  //Never full, there are only SECTIONS_AHEAD sections to go around
+  private final BlockingQueue<Section> ready = new ArrayBlockingQueue<>(SECTIONS_AHEAD);
+  //Set by the decoding thread once every section is in ready, or it failed
+  private volatile boolean decoded;
+  private volatile boolean failed;
+  private volatile boolean cancelled;
+  private volatile int chunks;
+
+  //Server thread only from here on
+  //State id -> block to place, null for blocks that are skipped. Filled in as states are first seen.
+  private BlockState[] blocks = new BlockState[256];
+  private boolean[] converted = new boolean[256];
+  private Biome[] biomes = new Biome[64];
+  private Section current;
+  private int layer;
+  private int chunksPlaced;
+  private int nextReport = 10;
+  private long placedBlocks;
+  private long started;
+
+  DanImport(Path file, World world, int x, int y, int z, long budgetMillis, Consumer<String> l) {
+    this.file = file;
+    this.world = world;
+    this.weWorld = BukkitAdapter.adapt(world);
+    this.x = x;
+    this.y = y;
+    this.z = z;
+    this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    this.l = l;
+    for(int i = 0; i < SECTIONS_AHEAD; i++) {
+      free.add(new Section());
+    }
+  }
+
+  /**
+   * Start decoding on the executor and placing every tick. Must be called from the server thread.
+   * The returned future completes with whether every block was placed.
+   */
+  CompletableFuture<Boolean> start(Plugin plugin, ExecutorService executor) {
+    started = System.nanoTime();
+    executor.execute(this::decode);
+    runTaskTimer(plugin, 1, 1);
+    return done;
+  }
+
+  //Stops at the end of the current tick. Blocks already placed stay.
+  void cancelImport() {
+    cancelled = true;
+  }
+
+  private void decode() {
+    try(var reader = DanFileReader.open(file)) {
+      var version = reader.version();
+      if(version < 1 || version > DanWorld.CURRENT_VERSION) throw new IOException("Version %d can't be read.".formatted(version));
+
+      chunks = reader.width() * reader.depth();
+      l.accept("Importing %d chunks (%dx%d) of version %d.".formatted(chunks, reader.width(), reader.depth(), version));
+      var decoder = new SectionDecoder();
+      while(reader.hasNextChunk() && !cancelled) {
+        var d = reader.nextChunk();
+        var cx = d.readUnsignedShort();
+        var cz = d.readUnsignedShort();
+        var sections = d.readUnsignedByte();
+        if(sections == 0) {
+          reader.skipObjects(d);
+          //Nothing to place, but it still counts towards progress
+          var section = takeFree();
+          if(section == null) return;
+          section.empty = true;
+          section.last = true;
+          ready.add(section);
+          continue;
+        }
+
+        for(int sy = 0; sy < sections; sy++) {
+          var section = takeFree();
+          if(section == null) return;
+          reader.readSection(d, decoder, registry, section.states, section.biomes);
+          section.x = x + cx * 16;
+          section.y = y + sy * 16;
+          section.z = z + cz * 16;
+          section.last = sy == sections - 1;
+          section.empty = false;
+          ready.add(section);
+        }
+        //Only blocks are placed, tile entities and markers are left to whoever loads the map
+        reader.skipObjects(d);
+      }
+    } catch(IOException | RuntimeException e) {
+      l.accept("Failed to read %s: %s".formatted(file.getFileName(), e.getMessage()));
+      failed = true;
+    } catch(InterruptedException _ignored) {
+      failed = true;
+      Thread.currentThread().interrupt();
+    } finally {
+      decoded = true;
+    }
+  }
+
+  //Null when the import was cancelled while waiting
+  private Section takeFree() throws InterruptedException {
+    while(!cancelled) {
+      var section = free.poll(100, TimeUnit.MILLISECONDS);
+      if(section != null) return section;
+    }
+    return null;
+  }
+
+  @Override
+  public void run() {
+    if(cancelled) {
+      finish(false, "Import cancelled");
+      return;
+    }
+
+    var deadline = System.nanoTime() + budgetNanos;
+    do {
+      if(current == null) {
+        //Checked before polling, so nothing the decoder adds after its last poll is missed
+        var finished = decoded;
+        current = ready.poll();
+        if(current == null) {
+          if(finished) finish(!failed, failed? "Import failed" : "Imported");
+          return;
+        }
+        layer = 0;
+      }
+
+      //A layer at a time, a whole section can take longer than the budget on slow servers
+      if(!current.empty) placeLayer(current, layer);
+      if(current.empty || ++layer == 16) {
+        if(!current.empty) placeBiomes(current);
+        if(current.last) chunkPlaced(current);
+        free.add(current);
+        current = null;
+      }
+    } while(System.nanoTime() < deadline);
+  }
+
+  private void placeLayer(Section section, int ly) {
+    var wy = section.y + ly;
+    if(wy < world.getMinHeight() || wy >= world.getMaxHeight()) return;
+
+    var i = ly << 8;
+    for(int lx = 0; lx < 16; lx++) {
+      for(int lz = 0; lz < 16; lz++, i++) {
+        var block = block(section.states[i]);
+        if(block == null) continue;
+
+        try {
+          weWorld.setBlock(BlockVector3.at(section.x + lx, wy, section.z + lz), block, SIDE_EFFECTS);
+          placedBlocks++;
+        } catch(WorldEditException _ignored) {
+          //Only thrown by extents that refuse blocks, the world itself doesn't
+        }
+      }
+    }
+  }
+
+  //Biomes are stored per 4x4x4 cell, setting the lowest corner of a cell sets the whole cell
+  private void placeBiomes(Section section) {
+    var c = 0;
+    for(int cy = 0; cy < 16; cy += 4) {
+      for(int cx = 0; cx < 16; cx += 4) {
+        for(int cz = 0; cz < 16; cz += 4, c++) {
+          var wy = section.y + cy;
+          var biome = biome(section.biomes[c]);
+          if(biome == null || wy < world.getMinHeight() || wy >= world.getMaxHeight()) continue;
+          world.setBiome(section.x + cx, wy, section.z + cz, biome);
+        }
+      }
+    }
+  }
+
+  //Every section of a chunk is in, send the world chunks it covers to players and mark loaded DanWorlds there as changed
+  private void chunkPlaced(Section section) {
+    if(!section.empty) {
+      var touched = new HashSet<Long>();
+      for(int dx = 0; dx < 16; dx += 15) {
+        for(int dz = 0; dz < 16; dz += 15) {
+          var wx = section.x + dx;
+          var wz = section.z + dz;
+          if(touched.add(((long) (wx >> 4) << 32) | ((wz >> 4) & 0xFFFFFFFFL))) {
+            world.refreshChunk(wx >> 4, wz >> 4);
+          }
+        }
+      }
+      //Every block from the bottom of the import to the top of this chunk's last section may have changed
+      for(var danWorld : DanWorldCommand.loadedWorlds()) {
+        danWorld.markDirty(world, section.x, y, section.z, section.x + 15, section.y + 15, section.z + 15);
+      }
+    }
+
+    chunksPlaced++;
+    var total = chunks;
+    if(total > 0 && chunksPlaced * 100L / total >= nextReport) {
+      l.accept("Imported %d of %d chunks (%d%%).".formatted(chunksPlaced, total, chunksPlaced * 100L / total));
+      nextReport += 10;
+    }
+  }
+
+  private BlockState block(int state) {
+    if(state >= blocks.length) {
+      var size = Math.max(state + 1, blocks.length * 2);
+      blocks = Arrays.copyOf(blocks, size);
+      converted = Arrays.copyOf(converted, size);
+    }
+
+    if(!converted[state]) {
+      converted[state] = true;
+      var key = new String(registry.materialKey(registry.materialOf(state)), StandardCharsets.UTF_8);
+      var mat = Material.matchMaterial(key);
+      if(mat == null) {
+        l.accept("Skipping blocks of unknown material %s.".formatted(key));
+      } else if(mat != Material.VOID_AIR) {
+        //Void air only fills the parts of chunks that stuck out of the exported selection, the world keeps its blocks there
+        blocks[state] = BukkitAdapter.adapt(BlockDataDecoder.decode(mat, registry.data(state)));
+      }
+    }
+
+    return blocks[state];
+  }
+
+  private Biome biome(int id) {
+    if(id >= biomes.length) biomes = Arrays.copyOf(biomes, Math.max(id + 1, biomes.length * 2));
+    if(biomes[id] == null) {
+      var key = new String(registry.biomeKey(id), StandardCharsets.UTF_8);
+      //Unknown biomes keep whatever the world has there
+      biomes[id] = BIOMES.getOrDefault(key, Biome.CUSTOM);
+    }
+
+    return biomes[id] == Biome.CUSTOM? null : biomes[id];
+  }
+
+  private void finish(boolean success, String what) {
+    cancel();
+    cancelled = true;
+    l.accept("%s %d blocks in %d s.".formatted(what, placedBlocks, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started)));
+    done.complete(success);
+  }
+}
@@ -1,65 +1,80 @@
 package me.danny.danworld;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
-import java.util.zip.GZIPOutputStream;
 
-import org.bukkit.Axis;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.World.Environment;
-import org.bukkit.block.Biome;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
-import org.bukkit.block.data.Ageable;
-import org.bukkit.block.data.Attachable;
-import org.bukkit.block.data.Bisected;
-import org.bukkit.block.data.Directional;
-import org.bukkit.block.data.Levelled;
-import org.bukkit.block.data.MultipleFacing;
-import org.bukkit.block.data.Openable;
-import org.bukkit.block.data.Orientable;
-import org.bukkit.block.data.Rail;
-import org.bukkit.block.data.Rotatable;
-import org.bukkit.block.data.Waterlogged;
-import org.bukkit.block.data.type.Door;
-import org.bukkit.block.data.type.Door.Hinge;
-import org.bukkit.block.data.type.Farmland;
-import org.bukkit.block.data.type.Snow;
-import org.bukkit.block.data.type.Stairs;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import me.danny.danworld.core.ArrayBlockSource;
+import me.danny.danworld.core.DanFormat;
+
 public final class DanWorld {
-  public static final int CURRENT_VERSION = 1;
+  //See DanFormat for what changed in each version
+  public static final int CURRENT_VERSION = DanFormat.CURRENT_VERSION;
+
+  //How a .dan file is laid out on disk. Both hold the same chunk data.
+  public enum Layout {
+    //The whole file is a single GZIP stream, read from start to end
+    STREAM,
+    //Uncompressed header and chunk index, with every chunk compressed on its own so it can be read without the others
+    FRAMED
+  }
 
   public static Optional<DanWorld> loadFromFile(File file) {
     if(file == null || !file.exists()) {
       return Optional.empty();
     }
 
-    var yml = YamlConfiguration.loadConfiguration(file);
+    return fromYaml(YamlConfiguration.loadConfiguration(file), file);
+  }
+
+  /**
+   * A world from its project .yml, already parsed from `file`, i.e. by the WorldIndex. Its extras are only read once they're needed.
+   */
+  static Optional<DanWorld> fromYaml(YamlConfiguration yml, File file) {
     var version = yml.getInt("version");
 
     //This is protected against the yml file not existing.
-    //getInt returns 0 when the path is invalid, and CURRENT_VERSION is always != 0.
+    //getInt returns 0 when the path is invalid, and versions start at 1.
     //In this way, if the YML is blank, this will immediately cause the function to abort.
-    if(version != CURRENT_VERSION) {
+    //Projects saved by older versions are still valid, and get exported with the current version
+    //unless a format was picked for them.
+    if(version < 1 || version > CURRENT_VERSION) {
       System.err.println("Invalid version!");
       return Optional.empty();
     }
 
     var world = new DanWorld();
+    //Does range check
+    world.setVersion(yml.getInt("format", CURRENT_VERSION));
+    //Does validity check
+    world.setLayout(yml.getString("layout", Layout.STREAM.name()));
+    //Worlds without a codec of their own use the one in the plugin config
+    if(yml.contains("codec")) world.setCodec(yml.getString("codec"));
     //Does null check
     world.setName(yml.getString("name"));
     //Does null check
@@ -76,7 +91,10 @@ public final class DanWorld {
       world.setSelection(sel);
     }
 
+    world.extrasFile = ExtrasFile.of(file.toPath());
     if(yml.contains("extra")) {
+      //Saved before extras had a file of their own. They move there on the next save.
+      world.extra = new LinkedHashMap<>();
       for(var key : yml.getConfigurationSection("extra").getKeys(false)) {
         var savedData = yml.getByteList("extra." + key);
         var bytes = new byte[savedData.size()];
@@ -87,16 +105,25 @@ public final class DanWorld {
 
         world.setExtra(key, bytes);
       }
+    } else {
+      world.extra = null;
     }
     
     return Optional.of(world);
   }
 
-  public static void saveToFile(DanWorld world, File out) {
-    if(world == null) return;
+  /**
+   * Save the world's project to out, and its extras next to it if they changed. Must be called from the server thread.
+   * Everything is copied before returning, the files are written on the executor.
+   */
+  public static CompletableFuture<Void> saveToFileAsync(DanWorld world, File out, Executor executor) {
+    if(world == null) return CompletableFuture.completedFuture(null);
 
     var yml = new YamlConfiguration();
-    yml.set("version", world.version);
+    yml.set("version", CURRENT_VERSION);
+    yml.set("format", world.version);
+    yml.set("layout", world.layout.name());
+    if(world.codec != null) yml.set("codec", world.codec.toString());
     if(world.name != null) yml.set("name", world.name);
     if(world.dimension != null) yml.set("dimension", world.dimension.name());
     if(world.sel != null) {
@@ -108,38 +135,124 @@ public final class DanWorld {
       }
     }
 
-    if(!world.extra.isEmpty()) {
-      for(String key : world.extra.keySet()) {
-        var bytes = world.extra.get(key);
-        var bytesList = new ArrayList<Byte>();
-        for(byte b : bytes) {
-          bytesList.add(b);
-        }
-
-        yml.set("extra." + key, bytesList);
-      }
+    var text = yml.saveToString();
+    var extrasFile = ExtrasFile.of(out.toPath());
+    Map<String, byte[]> extra;
+    synchronized(world) {
+      //Unchanged extras are already in the file, unless the project moved
+      extra = world.extrasChanged || !extrasFile.equals(world.extrasFile)? new LinkedHashMap<>(world.extras()) : null;
+      world.extrasChanged = false;
     }
 
-    try {
-      yml.save(out);
-    } catch(Exception _ignored) {
-      System.err.println("Failed to save DanWorld project to YML config:");
-      _ignored.printStackTrace();
-    }
+    return CompletableFuture.runAsync(() -> {
+      try {
+        if(extra != null) ExtrasFile.write(extrasFile, extra);
+        var tmp = Files.createTempFile(out.getParentFile().toPath(), out.getName(), ".tmp");
+        try {
+          Files.writeString(tmp, text);
+          WorldExport.moveIntoPlace(tmp, out.toPath());
+        } finally {
+          Files.deleteIfExists(tmp);
+        }
+      } catch(IOException e) {
+        //Saved again next time
+        if(extra != null) world.extrasChanged = true;
+        throw new UncheckedIOException(e);
+      }
+      world.extrasFile = extrasFile;
+    }, executor);
   }
   
   private int version;
+  private Layout layout;
+  //Null when the world uses the codec in the plugin config
+  private Codec codec;
   private Environment dimension;
 
-  private Selection sel;
+  private volatile Selection sel;
 
+  //Null until read from extrasFile, see extras
   private Map<String, byte[]> extra;
+  private volatile Path extrasFile;
+  //Whether extras changed since they were last saved
+  private volatile boolean extrasChanged;
 
   private String name;
 
+  //Export chunks changed since the last export, numbered in XZ order like the file. Written from event handlers,
+  //read by the next export.
+  private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+  //Set when the chunk cache can't be used, i.e. nothing was exported yet, or the selection or version changed since
+  private volatile boolean allDirty;
+  //Whether blocks of the selection changed since the last export started, which allDirty alone can't tell
+  private volatile boolean edited;
+  //Number of exports started, the chunk cache remembers which one wrote it
+  private long exports;
+  private volatile ExportMetrics lastExport;
+  //Capturing the chunks of the last async export, verify or marker scan, which may be done already
+  private volatile CaptureScheduler capturing;
+
   public DanWorld() {
     version = CURRENT_VERSION;
-    extra = new HashMap<>();
+    layout = Layout.STREAM;
+    extra = new LinkedHashMap<>();
+    //Nothing tracked changes before the world was loaded, so the first export always encodes everything
+    allDirty = true;
+  }
+
+  /**
+   * Pick which version of the format the world is exported with. Defaults to CURRENT_VERSION.
+   * Returns false if the version isn't one that can be written.
+   */
+  public boolean setVersion(int version) {
+    if(version < 1 || version > CURRENT_VERSION) return false;
+    if(this.version != version) allDirty = true;
+    this.version = version;
+    return true;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Pick how the exported file is laid out, by name (case-insensitive). Defaults to STREAM.
+   * Returns false if there's no layout with that name.
+   */
+  public boolean setLayout(String name) {
+    if(name == null) return false;
+    try {
+      layout = Layout.valueOf(name.toUpperCase(Locale.ROOT));
+      return true;
+    } catch(IllegalArgumentException _ignored) {
+      return false;
+    }
+  }
+
+  public Layout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Pick how frames are compressed, written as name[:level][+dict], see Codec. Defaults to the codec in the plugin config.
+   * Returns false if it isn't a codec that can be written.
+   */
+  public boolean setCodec(String spec) {
+    var parsed = Codec.parse(spec);
+    parsed.ifPresent(c -> codec = c);
+    return parsed.isPresent();
+  }
+
+  public Codec getCodec() {
+    return codec != null? codec : defaultCodec();
+  }
+
+  private static Codec defaultCodec() {
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    var spec = plug.getConfig().getString("codec");
+    var parsed = Codec.parse(spec);
+    if(spec != null && parsed.isEmpty()) plug.getLogger().warning("Unknown codec %s in config.yml, using %s.".formatted(spec, Codec.DEFAULT));
+    return parsed.orElse(Codec.DEFAULT);
   }
 
   public void setDimension(Environment dim) {
@@ -161,12 +274,26 @@ public final class DanWorld {
     return (name == null || name.isBlank())? "<Unnamed world>" : name;
   }
 
-  public void setExtra(String key, byte[] data) {
-    extra.put(key, data);
+  public synchronized void setExtra(String key, byte[] data) {
+    extras().put(key, data);
+    extrasChanged = true;
+  }
+
+  public synchronized byte[] getExtra(String key) {
+    return extras().get(key);
   }
 
-  public byte[] getExtra(String key) {
-    return extra.get(key);
+  //Reads the extras file the first time extras are needed. An unreadable one is logged, and only replaced once extras are set again.
+  private synchronized Map<String, byte[]> extras() {
+    if(extra == null) {
+      try {
+        extra = ExtrasFile.read(extrasFile);
+      } catch(IOException e) {
+        genLogger(name).accept("Failed to read extras: " + e.getMessage());
+        extra = new LinkedHashMap<>();
+      }
+    }
+    return extra;
   }
 
   public Selection getSelection() {
@@ -174,458 +301,293 @@ public final class DanWorld {
   }
 
   public void setSelection(Selection newSel) {
-    sel = newSel == null? sel : newSel;
+    if(newSel == null) return;
+    sel = newSel;
+    allDirty = true;
   }
 
-  public boolean readyToExport() {
-    return name != null && sel != null;
+  /**
+   * Mark the block at (x, y, z) as changed, so the next export encodes its chunk again instead of using the cached one.
+   * Blocks outside of the selection are ignored. Safe to call from any thread.
+   */
+  public void markDirty(World world, int x, int y, int z) {
+    markDirty(world, x, y, z, x, y, z);
   }
 
-  public boolean exportWorld() {
-    if(!readyToExport()) return false;
-    
-    var l = genLogger(name);
-    
-    var width = Math.ceilDiv(Math.abs(sel.max().getBlockX() - sel.min().getBlockX()), 16);
-    var depth = Math.ceilDiv(Math.abs(sel.max().getBlockZ() - sel.min().getBlockZ()), 16);
-    
-    l.accept("Region to export is %dx%d (width x depth).".formatted(width, depth));
-
-    byte[] bytes;
-    try(var b = new ByteArrayOutputStream(); var gz = new GZIPOutputStream(b); var d = new DataOutputStream(gz)) {
-      writeString(d, "DanWorld");
-      d.writeByte((byte)version);
-      d.writeByte((byte) switch(getDimension()) {
-        case Environment.NORMAL -> 0;
-        case Environment.NETHER -> 1;
-        case Environment.THE_END -> 2;
-        default -> 0;
-      });
-      d.writeShort((short)width);
-      d.writeShort((short)depth);
-
-      
-      for(int x = 0; x < width; x++) {
-        for(int z = 0; z < depth; z++) {
-          writeChunk(l, d, 16 * x, 16 * z, sel);
-        }
+  /**
+   * Mark every block from (minX, minY, minZ) to (maxX, maxY, maxZ) as changed, see markDirty.
+   * Only the part of the box inside the selection counts, however little of it that is.
+   */
+  public void markDirty(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+    var sel = this.sel;
+    if(sel == null || !world.equals(sel.min().getWorld())) return;
+
+    var fromX = Math.max(minX, sel.min().getBlockX());
+    var fromY = Math.max(minY, sel.min().getBlockY());
+    var fromZ = Math.max(minZ, sel.min().getBlockZ());
+    var toX = Math.min(maxX, sel.max().getBlockX());
+    var toY = Math.min(maxY, sel.max().getBlockY());
+    var toZ = Math.min(maxZ, sel.max().getBlockZ());
+    if(fromX > toX || fromY > toY || fromZ > toZ) return;
+    edited = true;
+    if(allDirty) return;
+
+    //Export chunks start at the selection's corner, not on the world's chunk borders
+    var width = width(sel);
+    var depth = depth(sel);
+    var lastX = Math.min(width - 1, (toX - sel.min().getBlockX()) >> 4);
+    var lastZ = Math.min(depth - 1, (toZ - sel.min().getBlockZ()) >> 4);
+    for(int chunkX = (fromX - sel.min().getBlockX()) >> 4; chunkX <= lastX; chunkX++) {
+      for(int chunkZ = (fromZ - sel.min().getBlockZ()) >> 4; chunkZ <= lastZ; chunkZ++) {
+        dirty.add(chunkX * depth + chunkZ);
       }
-
-      writeExtra(l, d, extra);
-      
-      d.close();
-      bytes = b.toByteArray();
-    } catch(IOException e) {
-      l.accept("Failed to serialize to bytes: %s".formatted(e.getMessage()));
-      return false;
-    }
-    
-    var f = getFile(name);
-    try(var fw = new FileOutputStream(f)) {
-      fw.write(bytes);
-    } catch(Exception e) {
-      l.accept("Failed to save bytes to file: %s".formatted(e.getMessage()));
-      return false;
     }
-
-    l.accept("World saved successfully.");
-    return true;
   }
 
-  private static File getFile(String name) {
-    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
-    var f = new File(plug.getDataFolder(), name);
-    f.getParentFile().mkdirs();
-    return f;
+  /**
+   * Numbers from the last export started this session, which may still be running. Null if there wasn't one.
+   */
+  public ExportMetrics getLastExport() {
+    return lastExport;
   }
 
-  private static Consumer<String> genLogger(String name) {
-    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
-    return (msg) -> plug.getLogger().info("[Export of <%s>]: %s".formatted(name, msg));
+  /**
+   * How far capturing the chunks of the last async export, verify or marker scan got, see CaptureScheduler. Null once its capture is done.
+   */
+  public String getCaptureProgress() {
+    var scheduler = capturing;
+    return scheduler == null || scheduler.isCaptured()? null : scheduler.progress();
   }
 
-  private static void writeExtra(Consumer<String> l, DataOutputStream d, Map<String, byte[]> extra) throws IOException {
-    var len = extra.size();
-    l.accept("Writing %d extra KV entries.".formatted(len));
-    d.writeInt(len);
-
-    for(var key : extra.keySet()) {
-      writeString(d, key);
-      var bytes = extra.get(key);
-      d.writeShort((short) bytes.length);
-      for(byte by : bytes) {
-        d.writeByte(by);
-      }
+  /**
+   * Number of chunks the next export has to encode, or -1 if it has to encode all of them.
+   */
+  public int getDirtyChunks() {
+    return allDirty? -1 : dirty.size();
+  }
 
-      l.accept("Extra \"%s\" saved (%d bytes)".formatted(key, bytes.length));
-    }
+  /**
+   * Whether blocks of the selection changed since the world was loaded or its last export started.
+   * The changes an export failed to save count as not exported again.
+   */
+  public boolean hasUnexportedEdits() {
+    return edited;
   }
 
-  private static void writeChunk(Consumer<String> l, DataOutputStream d, int cx, int cz, Selection sel) throws IOException {
-    l.accept("Writing chunk (%d, %d)...".formatted(cx / 16, cz / 16));
-    d.writeShort(cx / 16);
-    d.writeShort(cz / 16);
-    
-    var numSections = Math.ceilDiv(sel.max().getBlockY() - sel.min().getBlockY(), 16);
-    d.writeByte((byte)numSections);
-    
-    l.accept("Chunk (%d, %d) has %d sections.".formatted(cx, cz, numSections));
-    for(int y = 0; y < numSections; y++) {
-      writeChunkSection(l, d, sel, cx, cz, y);
-    }
+  public boolean readyToExport() {
+    return name != null && sel != null;
   }
 
-  private static void writeChunkSection(Consumer<String> l, DataOutputStream d, Selection sel, int cx, int cz, int sectionY) throws IOException {
-    var world = sel.min().getWorld();
-    record Vec3(int x, int y, int z) {}
-
-    //Record all unique materials
-    var unique = new HashSet<String>();
-    //Keep blocks visited in order
-    var locs = new ArrayList<Vec3>();
-    //And map the location to a material key
-    var blocks = new HashMap<Vec3, String>();
-    var biomes = new HashMap<Vec3, Biome>();
-
-    var data = new HashMap<Vec3, List<Short>>();
-
-    //Localize block lookups to the current chunk
-    var baseX = sel.min().getBlockX() + cx;
-    var baseZ = sel.min().getBlockZ() + cz;
-    //And section Y (chunk sections)
-    var baseY = sel.min().getBlockY() + (sectionY * 16);
-
-    for(int y = 0; y < 16; y++) {
-      for(int x = 0; x < 16; x++) {
-        for(int z = 0; z < 16; z++) {
-          var v = new Vec3(x, y, z);
-          var block = world.getBlockAt(baseX + x, baseY + y, baseZ + z);
-          //minecraft:grass_block
-          //          ^^^^^^^^^^^
-          var matKey = block.getType().getKey().getKey();
-          var biome = world.getBiome(block.getLocation());
-
-          //If the current block is outside of the bounds of the selection, rather than skip it completely,
-          //encode it as an empty block.
-          //NOTE: Once I get around to doing block data, probably keep a flag so I don't set data for these blocks.
-          if(baseX + x > sel.max().getBlockX() || baseZ + z > sel.max().getBlockZ() || baseY + y > sel.max().getBlockY()) {
-            matKey = Material.VOID_AIR.getKey().getKey();
-            biome = Biome.PLAINS;
-          }
-          
-
-          locs.add(v);
-          blocks.put(v, matKey);
-          biomes.put(v, biome);
-          unique.add(matKey);
-
-          var blockData = encodeBlockData(block);
-          if(!blockData.isEmpty()) {
-            data.put(v, blockData);
-          }
-        }
-      }
+  /**
+   * Export the world to its .dan file, blocking until the file is written.
+   * Must be called from the server thread.
+   */
+  public boolean exportWorld() {
+    if(!readyToExport()) return false;
+    var export = planExport(getCodec(), () -> false);
+    var captureStart = System.nanoTime();
+    var region = CapturedRegion.capture(sel.min().getWorld(), export.chunksToCapture());
+    export.metrics().captured(System.nanoTime() - captureStart);
+    export.l().accept("Captured %d chunks.".formatted(region.size()));
+    var success = export.withRegion(region).get();
+    //The cache wasn't replaced, and the chunks this export took off the dirty set are lost
+    if(!success) {
+      allDirty = true;
+      edited = true;
     }
+    return success;
+  }
 
-    l.accept("Chunk section y %d block data retrieved. Serializing.".formatted(sectionY));
-    //Generate the palette. Order must be stable.
-    var palette = new ArrayList<>(unique);
-
-    d.writeByte(palette.size());
-    l.accept("Palette size being encoded is %d.".formatted(palette.size()));
-    l.accept("Palette is " + palette);
-    writeStrings(d, palette);
-
-    d.writeShort(locs.size());
-    l.accept("Saved %d blocks from this chunk section.".formatted(locs.size()));
-    for(var vec : locs) {
-      //Since iteration order is always xz per section, location data isn't needed
-      //Write only the palette index of this block. The world loader will be able to
-      //generate the location.
-      var pIdx = palette.indexOf(blocks.get(vec));
-      d.writeByte((byte)pIdx);
-    }
+  /**
+   * Export the world to its .dan file without holding up the server.
+   * Chunk snapshots are captured on the server thread over as many ticks as it takes, see CaptureScheduler.
+   * Must be called from the server thread. Encoding, compression and writing the file all happen on the provided executor.
+   * The returned future completes with whether the export succeeded.
+   */
+  public CompletableFuture<Boolean> exportWorldAsync(Executor executor) {
+    return exportWorldAsync(executor, getCodec());
+  }
 
-    l.accept("Saving biomes.");
-    for(var vec : locs) {
-      d.writeByte(toBiomeId(biomes.get(vec)));
-    }
+  /**
+   * Same as exportWorldAsync(executor), compressing with the given codec this time only.
+   */
+  public CompletableFuture<Boolean> exportWorldAsync(Executor executor, Codec codec) {
+    return exportWorldAsync(executor, codec, genLogger(name), () -> false);
+  }
 
-    l.accept("Saving block data from %d blocks.".formatted(data.size()));
-    d.writeShort((short) data.size());
-    for(var vec : data.keySet()) {
-      var vals = data.get(vec);
+  /**
+   * Same as exportWorldAsync(executor, codec), sending how far capturing got to progress every few seconds,
+   * i.e. to the player who started the export. Once `cancelled` says so the export stops, and completes with false
+   * or a CancellationException. Nothing it wrote so far is kept. See ExportJobs.
+   */
+  public CompletableFuture<Boolean> exportWorldAsync(Executor executor, Codec codec, Consumer<String> progress, BooleanSupplier cancelled) {
+    if(!readyToExport()) return CompletableFuture.completedFuture(false);
 
-      short blockDataBitfield = (short) (vec.x() << 12 | vec.y() << 8 | vec.z() << 4 | vals.size());
-      
-      d.writeShort(blockDataBitfield);
-      for(var bitfield : vals) {
-        d.writeShort(bitfield);
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    var export = planExport(codec, cancelled);
+    var scheduler = newCaptureScheduler(export.chunksToCapture(), progress, cancelled);
+    capturing = scheduler;
+
+    return scheduler.start(plug).thenApplyAsync(region -> {
+      export.metrics().captured(scheduler.captureNanos());
+      export.l().accept("Captured %d chunks.".formatted(region.size()));
+      return export.withRegion(region).get();
+    }, executor).whenComplete((success, err) -> {
+      //The cache wasn't replaced, and the chunks this export took off the dirty set are lost
+      if(err != null || !success) {
+        allDirty = true;
+        edited = true;
       }
-    }
-  }
-  
-  //Write strings in a UTF-8 length-prefixed format. I don't like DataOutputStream#writeUTF
-  private static void writeStrings(DataOutputStream d, List<String> strings) throws IOException {
-    for(var s : strings) {
-      writeString(d, s);
-    }
-  }
-
-  private static void writeString(DataOutputStream d, String str) throws IOException {
-    var b = str.getBytes(Charset.defaultCharset()); //Should always be UTF-8
-    d.writeByte(b.length);
-    d.write(b); //Should always be UTF-8
-  }
-
-  private static byte toBiomeId(Biome b) {    
-    return switch(b) {
-      case Biome.BADLANDS -> 0;
-      case Biome.BAMBOO_JUNGLE -> 1;
-      case Biome.BASALT_DELTAS -> 2;
-      case Biome.BEACH -> 3;
-      case Biome.BIRCH_FOREST -> 4;
-      case Biome.CHERRY_GROVE -> 5;
-      case Biome.COLD_OCEAN -> 6;
-      case Biome.CRIMSON_FOREST -> 7;
-      case Biome.DARK_FOREST -> 8;
-      case Biome.DEEP_COLD_OCEAN -> 9;
-      case Biome.DEEP_DARK -> 10;
-      case Biome.DEEP_FROZEN_OCEAN -> 11;
-      case Biome.DEEP_LUKEWARM_OCEAN -> 12;
-      case Biome.DEEP_OCEAN -> 13;
-      case Biome.DESERT -> 14;
-      case Biome.DRIPSTONE_CAVES -> 15;
-      case Biome.END_BARRENS -> 16;
-      case Biome.END_HIGHLANDS -> 17;
-      case Biome.END_MIDLANDS -> 18;
-      case Biome.ERODED_BADLANDS -> 19;
-      case Biome.FLOWER_FOREST -> 20;
-      case Biome.FOREST -> 21;
-      case Biome.FROZEN_OCEAN -> 22;
-      case Biome.FROZEN_PEAKS -> 23;
-      case Biome.FROZEN_RIVER -> 24;
-      case Biome.GROVE -> 25;
-      case Biome.ICE_SPIKES -> 26;
-      case Biome.JAGGED_PEAKS -> 27;
-      case Biome.JUNGLE -> 28;
-      case Biome.LUKEWARM_OCEAN -> 29;
-      case Biome.LUSH_CAVES -> 30;
-      case Biome.MANGROVE_SWAMP -> 31;
-      case Biome.MEADOW -> 32;
-      case Biome.MUSHROOM_FIELDS -> 33;
-      case Biome.NETHER_WASTES -> 34;
-      case Biome.OCEAN -> 35;
-      case Biome.OLD_GROWTH_BIRCH_FOREST -> 36;
-      case Biome.OLD_GROWTH_PINE_TAIGA -> 37;
-      case Biome.OLD_GROWTH_SPRUCE_TAIGA -> 38;
-      case Biome.PLAINS -> 39;
-      case Biome.RIVER -> 40;
-      case Biome.SAVANNA -> 41;
-      case Biome.SAVANNA_PLATEAU -> 42;
-      case Biome.SMALL_END_ISLANDS -> 43;
-      case Biome.SNOWY_BEACH -> 44;
-      case Biome.SNOWY_PLAINS -> 45;
-      case Biome.SNOWY_SLOPES -> 46;
-      case Biome.SNOWY_TAIGA -> 47;
-      case Biome.SOUL_SAND_VALLEY -> 48;
-      case Biome.SPARSE_JUNGLE -> 49;
-      case Biome.STONY_PEAKS -> 50;
-      case Biome.STONY_SHORE -> 51;
-      case Biome.SUNFLOWER_PLAINS -> 52;
-      case Biome.SWAMP -> 53;
-      case Biome.TAIGA -> 54;
-      case Biome.THE_END -> 55;
-      case Biome.THE_VOID -> 56;
-      case Biome.WARM_OCEAN -> 57;
-      case Biome.WARPED_FOREST -> 58;
-      case Biome.WINDSWEPT_FOREST -> 59;
-      case Biome.WINDSWEPT_GRAVELLY_HILLS -> 60;
-      case Biome.WINDSWEPT_HILLS -> 61;
-      case Biome.WINDSWEPT_SAVANNA -> 62;
-      case Biome.WOODED_BADLANDS -> 63;
-      
-      case Biome.CUSTOM -> toBiomeId(Biome.PLAINS);
-      default -> toBiomeId(Biome.PLAINS);
-    };
-  }
-
-  private static short encode(int type, int data) {
-    return (short) (type << 12 | data);
+    });
   }
-  
-  private static List<Short> encodeBlockData(Block block) {
-    var data = new ArrayList<Short>();
-    var bd = block.getBlockData();
-    
-    if(bd instanceof Orientable o) {
-      var type = 0b0000;
-      var bits = switch(o.getAxis()) {
-        case Axis.X -> 0;
-        case Axis.Y -> 1;
-        case Axis.Z -> 2;
-      };
-
-      data.add(encode(type, bits));
-    }
 
-    if(bd instanceof Ageable a) {
-      var type = 0b0001;
-      var bits = a.getAge();  
-      data.add(encode(type, bits));
-    }
+  /**
+   * Compare the selection in the live world with the world's .dan file, section by section, see WorldVerify.
+   * Capturing is spread over ticks like exportWorldAsync, sending how it's going to progress, and stops once `cancelled` says so.
+   * Must be called from the server thread, see ExportJobs.submitVerify. The file is read on the executor while capturing.
+   * Completes with the chunks that differ, as {x, z} in chunks from the corner of the selection, or fails if there's nothing to compare with.
+   */
+  public CompletableFuture<List<int[]>> verifyAsync(Executor executor, Consumer<String> progress, BooleanSupplier cancelled) {
+    if(!readyToExport()) return CompletableFuture.failedFuture(new IllegalStateException("World has no selection."));
+    var file = getFile(name);
+    if(!file.exists()) return CompletableFuture.failedFuture(new IllegalStateException("World hasn't been exported yet."));
 
-    if(bd instanceof Snow snow) {
-      var type = 0b0010;
-      var bits = snow.getLayers();
-      data.add(encode(type, bits));
-    }
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    var selection = sel;
+    var width = width(sel);
+    var depth = depth(sel);
+    var stored = CompletableFuture.supplyAsync(() -> {
+      try {
+        return WorldVerify.Stored.read(file.toPath());
+      } catch(IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, executor);
+
+    var keys = CapturedRegion.chunksIn(sel.min().getBlockX(), sel.min().getBlockZ(), width * 16, depth * 16);
+    //No point capturing the rest once the file turns out to be unreadable. Its error is the one the future fails with.
+    var scheduler = newCaptureScheduler(keys, progress, () -> cancelled.getAsBoolean() || stored.isCompletedExceptionally());
+    capturing = scheduler;
+    var capture = scheduler.start(plug);
+    var metrics = new ExportMetrics(name, genLogger(name), false);
+    return stored.thenCombineAsync(capture, (checksums, region) -> {
+      if(cancelled.getAsBoolean()) throw new CancellationException();
+      return WorldVerify.differing(checksums, region, selection, width, depth, metrics, plug.getEncodePool()).stream()
+        .map(i -> new int[] { i / depth, i % depth })
+        .toList();
+    }, executor);
+  }
 
-    if(bd instanceof Levelled le) {
-      var type = 0b0011;
-      var bits = le.getLevel();
-      data.add(encode(type, bits));
-    }
+  /**
+   * Find every block of the selection in markers, which maps each of them to the tag its markers get, see MarkerSet.scan.
+   * Capturing is spread over ticks like an export's and stops once `cancelled` says so, scanning happens on the executor.
+   * Must be called from the server thread, see ExportJobs.submitMarkerScan.
+   */
+  public CompletableFuture<MarkerSet> scanMarkersAsync(Map<Material, String> markers, Executor executor, Consumer<String> progress,
+                                                       BooleanSupplier cancelled) {
+    if(!readyToExport()) return CompletableFuture.failedFuture(new IllegalStateException("World has no selection."));
 
-    if(bd instanceof Bisected bisect) {
-      var type = 0b0100;
-      var bits = switch(bisect.getHalf()) {
-        case Bisected.Half.TOP -> 0;
-        case Bisected.Half.BOTTOM -> 1;
-      };
-      data.add(encode(type, bits));
-      
-    }
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    var selection = sel;
+    var keys = CapturedRegion.chunksIn(sel.min().getBlockX(), sel.min().getBlockZ(), width(sel) * 16, depth(sel) * 16);
+    var scheduler = newCaptureScheduler(keys, progress, cancelled);
+    capturing = scheduler;
+    return scheduler.start(plug).thenApplyAsync(region -> {
+      if(cancelled.getAsBoolean()) throw new CancellationException();
+      return MarkerSet.scan(region, selection, Map.copyOf(markers));
+    }, executor);
+  }
 
-    if(bd instanceof Directional dir) {
-      var type = 0b0101;
-      var bits = encodeDirection(dir.getFacing());
-      data.add(encode(type, bits));
-    }
+  /**
+   * Save the blocks of the whole selection as a recording, for the encoder benchmarks in DanWorldCore.
+   * Capturing is spread over ticks like an export's, sending how it's going to progress. Must be called from the server thread.
+   * Copying and writing happen on the executor. The returned future completes with the recording file.
+   */
+  public CompletableFuture<File> recordSectionsAsync(Executor executor, Consumer<String> progress) {
+    if(!readyToExport()) return CompletableFuture.failedFuture(new IllegalStateException("World has no selection."));
 
-    if(bd instanceof Waterlogged w) {
-      var type = 0b0110;
-      if(w.isWaterlogged()) {
-        data.add(encode(type, 1));
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    var width = width(sel);
+    var depth = depth(sel);
+    var height = Math.ceilDiv(sel.max().getBlockY() - sel.min().getBlockY(), 16);
+    var keys = CapturedRegion.chunksIn(sel.min().getBlockX(), sel.min().getBlockZ(), width * 16, depth * 16);
+    var selection = sel;
+    var file = getFile("recordings/" + name + ".sections");
+
+    return newCaptureScheduler(keys, progress, () -> false).start(plug).thenApplyAsync(region -> {
+      var recording = ArrayBlockSource.copyOf(new RegionBlockSource(region, selection), width, height, depth);
+      try(var d = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+        recording.write(d);
+      } catch(IOException e) {
+        throw new UncheckedIOException(e);
       }
-    }
+      return file;
+    }, executor);
+  }
 
-    if(bd instanceof Rotatable r) {
-      var type = 0b0111;
-      var bits = encodeDirection(r.getRotation());
-      data.add(encode(type, bits));
-    }
+  //Copy everything the export needs, so the world can keep being edited while it's written. Its chunks still have to be captured.
+  private WorldExport planExport(Codec codec, BooleanSupplier cancelled) {
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    var l = genLogger(name);
+    var metrics = new ExportMetrics(name, l, plug.getConfig().getBoolean("verbose-logging"));
+    lastExport = metrics;
+    
+    var width = width(sel);
+    var depth = depth(sel);
+    
+    l.accept("Region to export is %dx%d (width x depth).".formatted(width, depth));
 
-    if(bd instanceof MultipleFacing mf) {
-      var type = 0b1000;
-      final int NORTH = 1;
-      final int SOUTH = 2;
-      final int EAST = 4;
-      final int WEST = 8;
-      final int UP = 16;
-      final int DOWN = 32;
-
-      int bits = 0;
-      for(var face : mf.getFaces()) {
-        switch(face) {
-          case BlockFace.NORTH -> bits |= NORTH;
-          case BlockFace.SOUTH -> bits |= SOUTH;
-          case BlockFace.EAST -> bits |= EAST;
-          case BlockFace.WEST -> bits |= WEST;
-          case BlockFace.UP -> bits |= UP;
-          case BlockFace.DOWN -> bits |= DOWN;
-          default -> {}
-        }
+    //Only chunks changed since the last export have to be captured, the rest come from its cache
+    edited = false;
+    BitSet changed = null;
+    if(!allDirty) {
+      changed = new BitSet(width * depth);
+      for(var chunk : dirty) {
+        if(dirty.remove(chunk)) changed.set(chunk);
       }
-      data.add(encode(type, bits));
+    } else {
+      dirty.clear();
+      allDirty = false;
     }
 
-    if(bd instanceof Openable o) {
-      var type = 0b1001;
-      if(o.isOpen()) {
-        data.add(encode(type, 1));
-      }
-    }
+    var previewFile = plug.getConfig().getBoolean("preview", true)? getFile(name + ".preview") : null;
+    var thumbnailSize = plug.getConfig().getInt("preview-png-size", 256);
+    return new WorldExport(l, metrics, getFile(name), getCacheFile(name), previewFile, thumbnailSize, ++exports, changed, version, layout, codec,
+      getDimension(), width, depth, sel, null, copyExtras(), plug.getEncodePool(), cancelled);
+  }
 
-    if(bd instanceof Rail rail) {
-      var type = 0b1010;
-      var bits = switch(rail.getShape()) {
-      		case ASCENDING_EAST -> 1;
-      		case ASCENDING_NORTH -> 2;
-      		case ASCENDING_SOUTH -> 3;
-      		case ASCENDING_WEST -> 4;
-      		case EAST_WEST -> 5;
-      		case NORTH_EAST -> 6;
-      		case NORTH_SOUTH -> 7;
-      		case NORTH_WEST -> 8;
-      		case SOUTH_EAST -> 9;
-      		case SOUTH_WEST -> 10;
-      		default -> 5 /* Default to EAST_WEST */;
-      };
-      data.add(encode(type, bits));
-    }
+  private CaptureScheduler newCaptureScheduler(long[] keys, Consumer<String> progress, BooleanSupplier cancelled) {
+    var config = JavaPlugin.getPlugin(DanWorldExportPlugin.class).getConfig();
+    return new CaptureScheduler(sel.min().getWorld(), keys, config.getLong("capture-tick-budget-ms", 5), config.getInt("capture-chunks-per-tick", 8),
+      config.getInt("preload-window", 64), config.getInt("preload-concurrency", 8), progress, cancelled);
+  }
 
-    if(bd instanceof Stairs stairs) {
-      var type = 0b1011;
-      var bits = switch(stairs.getShape()) {
-      		case INNER_LEFT -> 0;
-      		case INNER_RIGHT -> 1;
-      		case OUTER_LEFT -> 2;
-      		case OUTER_RIGHT -> 3;
-      		case STRAIGHT -> 4;
-      		default -> 4 /* Default to STRAIGHT */;
-      };
-      data.add(encode(type, bits));
-    }
+  private synchronized Map<String, byte[]> copyExtras() {
+    return new HashMap<>(extras());
+  }
 
-    if(bd instanceof Attachable a) {
-      var type = 0b1100;
-      if(a.isAttached()) {
-        data.add(encode(type, 1));
-      }
-    }
+  private static int width(Selection sel) {
+    return Math.ceilDiv(Math.abs(sel.max().getBlockX() - sel.min().getBlockX()), 16);
+  }
 
-    if(bd instanceof Door d) {
-      var type = 0b1101;
-      var bits = switch(d.getHinge()) {
-        case Hinge.LEFT -> 0;
-        case Hinge.RIGHT -> 1;
-      };
+  private static int depth(Selection sel) {
+    return Math.ceilDiv(Math.abs(sel.max().getBlockZ() - sel.min().getBlockZ()), 16);
+  }
 
-      data.add(encode(type, bits));
-    }
+  private static File getFile(String name) {
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    var f = new File(plug.getDataFolder(), name);
+    f.getParentFile().mkdirs();
+    return f;
+  }
 
-    if(bd instanceof Farmland f) {
-      var type = 0b1110;
-      var bits = f.getMoisture();
-      data.add(encode(type, bits));
-    }
-    
-    return data;
-  }
-
-  private static int encodeDirection(BlockFace facing) {
-    return switch(facing) {
-    		case BlockFace.DOWN -> 0;
-    		case BlockFace.EAST -> 1;
-    		case BlockFace.EAST_NORTH_EAST -> 2;
-    		case BlockFace.EAST_SOUTH_EAST -> 3;
-    		case BlockFace.NORTH -> 4;
-    		case BlockFace.NORTH_EAST -> 5;
-    		case BlockFace.NORTH_NORTH_EAST -> 6;
-    		case BlockFace.NORTH_NORTH_WEST -> 7;
-    		case BlockFace.NORTH_WEST -> 8;
-    		case BlockFace.SOUTH -> 9;
-    		case BlockFace.SOUTH_EAST -> 10;
-    		case BlockFace.SOUTH_SOUTH_EAST -> 11;
-    		case BlockFace.SOUTH_SOUTH_WEST -> 12;
-    		case BlockFace.SOUTH_WEST -> 13;
-    		case BlockFace.UP -> 14;
-    		case BlockFace.WEST -> 15;
-    		case BlockFace.WEST_NORTH_WEST -> 16;
-    		case BlockFace.WEST_SOUTH_WEST -> 17;
-    		default -> 4 /* Default to NORTH */;
-        
-      };
+  private static File getCacheFile(String name) {
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    return new File(plug.getDataFolder(), "cache/" + name + ".chunks");
+  }
+
+  private static Consumer<String> genLogger(String name) {
+    var plug = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    return (msg) -> plug.getLogger().info("[Export of <%s>]: %s".formatted(name, msg));
   }
 }
@@ -5,12 +5,18 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -25,9 +31,13 @@ import net.md_5.bungee.api.ChatColor;
 
 public final class DanWorldCommand implements CommandExecutor {
 
-	private static final Map<String, DanWorld> loaded = new HashMap<>();
-	private static final Map<UUID, String> active = new HashMap<>();
-	private static final Set<String> modified = new HashSet<>();
+	//Read by the dirty chunk listener and export jobs as well as commands, so all of these are thread safe
+	private static final Map<String, DanWorld> loaded = new ConcurrentHashMap<>();
+	private static final Map<UUID, String> active = new ConcurrentHashMap<>();
+	private static final Set<String> modified = ConcurrentHashMap.newKeySet();
+	private static final Map<UUID, DanImport> imports = new ConcurrentHashMap<>();
+	//Chunks listed by verify, the rest are only counted
+	private static final int VERIFY_LISTED = 10;
 	
 	@Override
 	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
@@ -41,11 +51,22 @@ public final class DanWorldCommand implements CommandExecutor {
 	  	sender.sendMessage("load <world> - Set your active world");
 	  	sender.sendMessage("status - Display active world");
 	  	sender.sendMessage("new <name> - Start a new world, must have a WE selection");
-	  	sender.sendMessage("save - Export active world to .dan");
+	  	sender.sendMessage("save [codec] - Export active world to .dan, optionally with another codec this time");
+	  	sender.sendMessage("cancel [job] - Stop the active world's save, verify or marker scan, or the job with that number");
 	  	sender.sendMessage("rd - Redefine the active world's bounds");
 	  	sender.sendMessage("set - Define an extra in the world");
+	  	sender.sendMessage("format <version> - Pick the .dan version the active world exports with");
+	  	sender.sendMessage("layout <stream|framed> - Pick whether chunks are compressed together or one by one");
+	  	sender.sendMessage("codec <none|gzip|deflate|lz4|zstd>[:level][+dict] - Pick how framed chunks are compressed");
+	  	sender.sendMessage("stats - Show timings and sizes of the active world's last export");
+	  	sender.sendMessage("verify - List the chunks of the active world that changed since its last export");
+	  	sender.sendMessage("record - Record the active world's sections for the encoder benchmarks");
 	  	sender.sendMessage(ChatColor.LIGHT_PURPLE + "Static:");
 	  	sender.sendMessage("list - List available worlds");
+	  	sender.sendMessage("jobs - List queued and running saves, verifies and marker scans");
+	  	sender.sendMessage("saveall - Save every loaded world with unsaved changes");
+	  	sender.sendMessage("import <file> [budget-ms] - Place a .dan file's blocks with its corner at your feet");
+	  	sender.sendMessage("import cancel - Stop your running import");
 	  	
 	  	return true; 
     }
@@ -53,12 +74,22 @@ public final class DanWorldCommand implements CommandExecutor {
 		var cmdArgs = Arrays.copyOfRange(args, 1, args.length);
 		switch(args[0].toLowerCase()) {
 			case "rd" -> redef(p);
-			case "save" -> save(p);
+			case "save" -> save(p, cmdArgs);
+			case "saveall" -> saveAll(p);
+			case "jobs" -> jobs(p);
+			case "cancel" -> cancel(p, cmdArgs);
 			case "status" -> status(p);
 			case "load" -> load(p, cmdArgs);
 			case "new" -> newWorld(p, cmdArgs);
 			case "list" -> listWorlds(p);
+			case "import" -> importFile(p, cmdArgs);
 			case "set" -> setExtra(p, cmdArgs);
+			case "format" -> format(p, cmdArgs);
+			case "layout" -> layout(p, cmdArgs);
+			case "codec" -> codec(p, cmdArgs);
+			case "stats" -> stats(p);
+			case "record" -> record(p);
+			case "verify" -> verify(p);
 			default -> p.sendMessage("Unknown subcommand.");
 		}
 		
@@ -75,10 +106,16 @@ public final class DanWorldCommand implements CommandExecutor {
 		if(args.length < 3) {
 			p.sendMessage("Usage: set pos <key> x y z yaw pitch");
 			p.sendMessage("Usage: set str <key> <string...>");
+			p.sendMessage("Usage: set markers <key> <block[=tag]...>");
 			return;
 		}
 
 		String key = args[1];
+		if(args[0].equalsIgnoreCase("markers")) {
+			setMarkers(p, world, key, Arrays.copyOfRange(args, 2, args.length));
+			return;
+		}
+
 		byte[] value;
 		switch(args[0].toLowerCase()) {
 			case "pos" -> {
@@ -96,7 +133,7 @@ public final class DanWorldCommand implements CommandExecutor {
 				value = ExtraUtils.encodeString(String.join(" ", Arrays.copyOfRange(args, 2, args.length)));
 			}
 			default -> {
-				p.sendMessage("Unknown extra type. Only pos and str are supported.");
+				p.sendMessage("Unknown extra type. Only pos, str and markers are supported.");
 				return;
 			}
 		}
@@ -105,6 +142,210 @@ public final class DanWorldCommand implements CommandExecutor {
 		p.sendMessage("%s -> %s".formatted(key, Arrays.toString(value)));
 	}
 
+	//Blocks are given as <block> or <block>=<tag>, markers of a block without a tag are tagged with its key
+	private void setMarkers(Player p, DanWorld world, String key, String[] blocks) {
+		var markers = new LinkedHashMap<Material, String>();
+		for(var block : blocks) {
+			var split = block.indexOf('=');
+			var name = split < 0? block : block.substring(0, split);
+			var material = Material.matchMaterial(name);
+			if(material == null || !material.isBlock()) {
+				p.sendMessage("Unknown block " + name + ".");
+				return;
+			}
+			markers.put(material, split < 0? material.getKey().toString() : block.substring(split + 1));
+		}
+
+		if(!world.readyToExport()) {
+			p.sendMessage("%s has no selection to scan.".formatted(world.getName()));
+			return;
+		}
+
+		//A job like saves, so it never captures alongside a save of the same world
+		var job = JavaPlugin.getPlugin(DanWorldExportPlugin.class).getExportJobs().submitMarkerScan(world, markers, p::sendMessage);
+		if(job.isEmpty()) {
+			p.sendMessage("%s is busy with another job, see jobs.".formatted(world.getName()));
+			return;
+		}
+		p.sendMessage("Scanning %s for markers as job #%d.".formatted(world.getName(), job.get().id()));
+
+		//Completes on the server thread
+		job.get().result().whenComplete((set, err) -> {
+			if(err instanceof CancellationException) {
+				p.sendMessage("Marker scan of %s cancelled, %s is unchanged.".formatted(world.getName(), key));
+				return;
+			}
+			if(err != null) {
+				p.sendMessage("Couldn't scan %s: %s".formatted(world.getName(), err.getMessage()));
+				return;
+			}
+
+			var value = set.encode();
+			world.setExtra(key, value);
+			p.sendMessage("%s -> %d markers tagged %s (%d bytes)".formatted(key, set.size(), set.tags(), value.length));
+		});
+	}
+
+	private void format(Player p, String[] args) {
+		var world = getWorld(p);
+		if(world == null) {
+			p.sendMessage("You don't have an active DanWorld.");
+			return;
+		}
+
+		if(args.length != 1) {
+			p.sendMessage("Usage: format <version>");
+			p.sendMessage("%s exports with version %d.".formatted(world.getName(), world.getVersion()));
+			return;
+		}
+
+		int version;
+		try {
+			version = Integer.parseInt(args[0]);
+		} catch(NumberFormatException _ignored) {
+			version = -1;
+		}
+
+		if(!world.setVersion(version)) {
+			p.sendMessage("Versions 1 to %d are supported.".formatted(DanWorld.CURRENT_VERSION));
+			return;
+		}
+
+		modified.add(world.getName());
+		p.sendMessage("%s will export with version %d.".formatted(world.getName(), version));
+	}
+
+	private void layout(Player p, String[] args) {
+		var world = getWorld(p);
+		if(world == null) {
+			p.sendMessage("You don't have an active DanWorld.");
+			return;
+		}
+
+		if(args.length != 1) {
+			p.sendMessage("Usage: layout <stream|framed>");
+			p.sendMessage("%s exports with the %s layout.".formatted(world.getName(), world.getLayout().name().toLowerCase()));
+			return;
+		}
+
+		if(!world.setLayout(args[0])) {
+			p.sendMessage("Unknown layout. Only stream and framed are supported.");
+			return;
+		}
+
+		modified.add(world.getName());
+		p.sendMessage("%s will export with the %s layout.".formatted(world.getName(), world.getLayout().name().toLowerCase()));
+	}
+
+	private void codec(Player p, String[] args) {
+		var world = getWorld(p);
+		if(world == null) {
+			p.sendMessage("You don't have an active DanWorld.");
+			return;
+		}
+
+		if(args.length != 1) {
+			p.sendMessage("Usage: codec <none|gzip|deflate|lz4|zstd>[:level][+dict]");
+			p.sendMessage("%s exports with the %s codec.".formatted(world.getName(), world.getCodec()));
+			return;
+		}
+
+		if(!world.setCodec(args[0])) {
+			p.sendMessage("Unknown codec. Levels go from 0 to 9 for gzip and deflate, and 1 to 22 for zstd. Only zstd takes +dict.");
+			return;
+		}
+
+		modified.add(world.getName());
+		p.sendMessage("%s will export with the %s codec.".formatted(world.getName(), world.getCodec()));
+		if(world.getLayout() == DanWorld.Layout.STREAM && world.getCodec().id() != Codec.GZIP) {
+			p.sendMessage("The stream layout is always GZIP, use layout framed for this codec to apply.");
+		}
+	}
+
+	private void stats(Player p) {
+		var world = getWorld(p);
+		if(world == null) {
+			p.sendMessage("You don't have an active DanWorld.");
+			return;
+		}
+
+		var metrics = world.getLastExport();
+		if(metrics == null) {
+			p.sendMessage("%s hasn't been saved since it was loaded.".formatted(world.getName()));
+			return;
+		}
+
+		metrics.summary().forEach(p::sendMessage);
+	}
+
+	private void record(Player p) {
+		var world = getWorld(p);
+		if(world == null) {
+			p.sendMessage("You don't have an active DanWorld.");
+			return;
+		}
+
+		p.sendMessage("Recording sections. Monitor console for progress.");
+		var plugin = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+		world.recordSectionsAsync(plugin.getExportExecutor(), p::sendMessage).whenComplete((file, err) -> {
+			Bukkit.getScheduler().runTask(plugin, () -> {
+				if(err == null) {
+					p.sendMessage("Recorded to " + file.getPath() + ". Benchmark it with -Pdanworld.recording=<file>.");
+				} else {
+					plugin.getLogger().warning("Recording of <%s> failed: %s".formatted(world.getName(), err));
+					p.sendMessage("Recording failed.");
+				}
+			});
+		});
+	}
+
+	private void verify(Player p) {
+		var world = getWorld(p);
+		if(world == null) {
+			p.sendMessage("You don't have an active DanWorld.");
+			return;
+		}
+
+		if(!world.readyToExport()) {
+			p.sendMessage("%s has no selection to verify.".formatted(world.getName()));
+			return;
+		}
+
+		var start = System.nanoTime();
+		var sel = world.getSelection();
+		//A job like saves, so it never captures alongside a save of the same world
+		var job = JavaPlugin.getPlugin(DanWorldExportPlugin.class).getExportJobs().submitVerify(world, p::sendMessage);
+		if(job.isEmpty()) {
+			p.sendMessage("%s is busy with another job, see jobs.".formatted(world.getName()));
+			return;
+		}
+		p.sendMessage("Comparing %s with its last export as job #%d.".formatted(world.getName(), job.get().id()));
+
+		//Completes on the server thread
+		job.get().result().whenComplete((differing, err) -> {
+			if(err instanceof CancellationException) {
+				p.sendMessage("Verify of %s cancelled.".formatted(world.getName()));
+				return;
+			}
+			if(err != null) {
+				p.sendMessage("Couldn't verify %s: %s".formatted(world.getName(), err.getMessage()));
+				return;
+			}
+
+			var seconds = (System.nanoTime() - start) / 1e9;
+			if(differing.isEmpty()) {
+				p.sendMessage("%s matches its last export (%.1f s).".formatted(world.getName(), seconds));
+				return;
+			}
+
+			p.sendMessage("%d chunks of %s changed since its last export (%.1f s):".formatted(differing.size(), world.getName(), seconds));
+			for(var chunk : differing.subList(0, Math.min(differing.size(), VERIFY_LISTED))) {
+				p.sendMessage("  chunk (%d, %d) at block %d, %d".formatted(chunk[0], chunk[1], sel.min().getBlockX() + chunk[0] * 16, sel.min().getBlockZ() + chunk[1] * 16));
+			}
+			if(differing.size() > VERIFY_LISTED) p.sendMessage("  and %d more.".formatted(differing.size() - VERIFY_LISTED));
+		});
+	}
+
 	private void newWorld(Player p, String[] args) {
 		if(args.length != 1) {
 			p.sendMessage("Usage: new <name>");
@@ -135,16 +376,71 @@ public final class DanWorldCommand implements CommandExecutor {
 		loaded.put(world.getName(), world);
 	}
 	
+	private void importFile(Player p, String[] args) {
+		if(args.length == 1 && args[0].equalsIgnoreCase("cancel")) {
+			var running = imports.get(p.getUniqueId());
+			if(running == null) {
+				p.sendMessage("You don't have an import running.");
+			} else {
+				running.cancelImport();
+				p.sendMessage("Cancelling import. Blocks placed so far stay.");
+			}
+			return;
+		}
+
+		if(args.length < 1 || args.length > 2) {
+			p.sendMessage("Usage: import <file> [budget-ms]");
+			return;
+		}
+
+		if(imports.containsKey(p.getUniqueId())) {
+			p.sendMessage("You already have an import running, cancel it with import cancel.");
+			return;
+		}
+
+		var plugin = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+		long budget = plugin.getConfig().getLong("import-tick-budget-ms", 10);
+		if(args.length == 2) {
+			try {
+				budget = Long.parseLong(args[1]);
+			} catch(NumberFormatException _ignored) {
+				budget = -1;
+			}
+			if(budget < 1 || budget > 50) {
+				p.sendMessage("The budget must be between 1 and 50 ms per tick.");
+				return;
+			}
+		}
+
+		var name = args[0].endsWith(".dan") ? args[0] : args[0] + ".dan";
+		var file = new File(getWorldFolder(), name);
+		if(!file.isFile()) {
+			p.sendMessage("File not found.");
+			return;
+		}
+
+		var at = p.getLocation();
+		var job = new DanImport(file.toPath(), p.getWorld(), at.getBlockX(), at.getBlockY(), at.getBlockZ(), budget,
+			msg -> plugin.getLogger().info("[Import of <%s>]: %s".formatted(name, msg)));
+		imports.put(p.getUniqueId(), job);
+		p.sendMessage("Importing %s, %d ms per tick. Monitor console for progress.".formatted(name, budget));
+		//Completes on the server thread, from the import's last tick
+		job.start(plugin, plugin.getImportExecutor()).whenComplete((success, err) -> {
+			imports.remove(p.getUniqueId());
+			p.sendMessage(err == null && success ? "Imported " + name + "." : "Import of " + name + " stopped, see console.");
+		});
+	}
+
 	private void listWorlds(Player p) {
-		var folder = getWorldFolder();
+		var index = JavaPlugin.getPlugin(DanWorldExportPlugin.class).getWorldIndex();
 
 		var output = new ArrayList<String>();
-		for(var maybeWorld : folder.list()) {
-			if(!maybeWorld.endsWith(".dan.yml")) continue;
-
-			var splitAt = maybeWorld.indexOf(".yml");
-			String name = maybeWorld.substring(0, splitAt);
-			output.add("%s%s".formatted(loaded.containsKey(name) ? "@" : "", name));
+		var entries = new ArrayList<>(index.entries());
+		entries.sort(Comparator.comparing(WorldIndex.Entry::name));
+		for(var entry : entries) {
+			var name = entry.name();
+			//Size in chunks, and a * for worlds that were never exported
+			output.add("%s%s(%dx%d)%s".formatted(loaded.containsKey(name) ? "@" : "", name, entry.width(), entry.depth(), entry.lastExport() == 0 ? "*" : ""));
 		}
 		
 		p.sendMessage(String.join(" ", output));
@@ -160,7 +456,11 @@ public final class DanWorldCommand implements CommandExecutor {
 		if(!name.endsWith(".dan")) name += ".dan";
 		
 		var worldFile = getWorldFile(name);
-		var maybeWorld = DanWorld.loadFromFile(worldFile);
+		//Already parsed by the index, unless it was only just saved
+		var index = JavaPlugin.getPlugin(DanWorldExportPlugin.class).getWorldIndex();
+		var maybeWorld = index.get(name)
+			.flatMap(entry -> DanWorld.fromYaml(entry.yml(), worldFile))
+			.or(() -> DanWorld.loadFromFile(worldFile));
 		if(maybeWorld.isEmpty()) {
 			p.sendMessage("World not found.");
 			return;
@@ -183,6 +483,12 @@ public final class DanWorldCommand implements CommandExecutor {
 
 		var m = modified.contains(world.getName());
 		p.sendMessage("World %s[%s] dimension %s".formatted(m ? "*" : "", world.getName(), world.getDimension()));
+
+		var dirty = world.getDirtyChunks();
+		p.sendMessage(dirty < 0 ? "The next save encodes every chunk." : "The next save encodes %d changed chunks.".formatted(dirty));
+
+		var capture = world.getCaptureProgress();
+		if(capture != null) p.sendMessage(capture);
 	}
 
 	private void redef(Player p) {
@@ -213,23 +519,113 @@ public final class DanWorldCommand implements CommandExecutor {
     p.sendMessage("World redefined");
 	}
 
-	private void save(Player p) {
+	private void save(Player p, String[] args) {
 		var world = getWorld(p);
 		if(world == null) {
 			p.sendMessage("You don't have an active DanWorld.");
 			return;
 		}
-		
-    p.sendMessage("Attempting to save. Monitor console for progress.");
-
-    DanWorld.saveToFile(world, new File(getWorldFolder(), world.getName() + ".yml"));
-    if(world.exportWorld()) {
-    	p.sendMessage("Success! World saved to " + world.getName() + ".dan in the plugin's folder.");
-    	modified.remove(world.getName());
-    } else {
-    	p.sendMessage("Save failed.");
-    }
-		
+
+		var codec = args.length == 1? Codec.parse(args[0]) : Optional.of(world.getCodec());
+		if(codec.isEmpty()) {
+			p.sendMessage("Unknown codec. Usage: save [codec]");
+			return;
+		}
+
+		if(!world.readyToExport()) {
+			p.sendMessage("%s has no selection to save.".formatted(world.getName()));
+			return;
+		}
+
+		if(queueSave(p, world, codec.get())) {
+			p.sendMessage("Attempting to save. Monitor console for progress.");
+		} else {
+			p.sendMessage("%s is already being saved, verified or scanned, see jobs.".formatted(world.getName()));
+		}
+	}
+
+	private void saveAll(Player p) {
+		var queued = 0;
+		for(var world : loaded.values()) {
+			var changed = modified.contains(world.getName()) || world.hasUnexportedEdits();
+			if(changed && world.readyToExport() && queueSave(p, world, world.getCodec())) queued++;
+		}
+
+		p.sendMessage(queued == 0 ? "Nothing to save." : "Saving %d worlds, see jobs for progress.".formatted(queued));
+	}
+
+	//Save the project, and queue its export. False if the world already has a job.
+	private boolean queueSave(Player p, DanWorld world, Codec codec) {
+    var plugin = JavaPlugin.getPlugin(DanWorldExportPlugin.class);
+    //Capturing reports from the server thread, straight to the player
+    var job = plugin.getExportJobs().submit(world, codec, p::sendMessage);
+    if(job.isEmpty()) return false;
+
+    var projectFile = getWorldFile(world.getName());
+    DanWorld.saveToFileAsync(world, projectFile, plugin.getIoExecutor()).whenComplete((_void, err) -> {
+    	if(err != null) {
+    		plugin.getLogger().warning("Saving project <%s> failed: %s".formatted(world.getName(), err));
+    	} else {
+    		//Listed right away, rather than once the watcher gets to it
+    		plugin.getWorldIndex().refresh(projectFile.toPath());
+    	}
+    });
+
+    //Completes on the server thread
+    job.get().result().whenComplete((success, err) -> {
+    	if(err == null && success) {
+    		p.sendMessage("Success! World saved to " + world.getName() + ".dan in the plugin's folder.");
+    		modified.remove(world.getName());
+    	} else if(job.get().isCancelled()) {
+    		p.sendMessage("Save of %s cancelled, its last export is untouched.".formatted(world.getName()));
+    	} else {
+    		p.sendMessage("Save failed.");
+    	}
+    });
+    return true;
+	}
+
+	private void jobs(Player p) {
+		var jobs = JavaPlugin.getPlugin(DanWorldExportPlugin.class).getExportJobs().list();
+		if(jobs.isEmpty()) {
+			p.sendMessage("No jobs are queued or running.");
+			return;
+		}
+
+		jobs.forEach(job -> p.sendMessage(job.describe()));
+	}
+
+	private void cancel(Player p, String[] args) {
+		var jobs = JavaPlugin.getPlugin(DanWorldExportPlugin.class).getExportJobs();
+		Optional<ExportJobs.Job<?>> job;
+		if(args.length == 1) {
+			try {
+				job = jobs.get(Integer.parseInt(args[0].startsWith("#") ? args[0].substring(1) : args[0]));
+			} catch(NumberFormatException _ignored) {
+				p.sendMessage("Usage: cancel [job]");
+				return;
+			}
+		} else {
+			var world = getWorld(p);
+			if(world == null) {
+				p.sendMessage("You don't have an active DanWorld.");
+				return;
+			}
+			job = jobs.get(world.getName());
+		}
+
+		if(job.isEmpty()) {
+			p.sendMessage("No such job is queued or running, see jobs.");
+			return;
+		}
+
+		jobs.cancel(job.get());
+		p.sendMessage("Cancelling #%d. Anything it wrote so far is discarded.".formatted(job.get().id()));
+	}
+
+	//Worlds whose chunks are tracked for changes
+	static Collection<DanWorld> loadedWorlds() {
+		return loaded.values();
 	}
 
 	private static DanWorld getWorld(Player p) {
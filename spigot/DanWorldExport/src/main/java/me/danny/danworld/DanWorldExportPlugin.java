@@ -1,11 +1,98 @@
 package me.danny.danworld;
 
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.bukkit.plugin.java.JavaPlugin;
 
+import com.sk89q.worldedit.WorldEdit;
+
 public final class DanWorldExportPlugin extends JavaPlugin {
 
+    //Exports are encoded and written here so they never hold up the server thread, one thread per export that may run at once
+    private ExecutorService exportExecutor;
+    //Queues, runs and cancels every export
+    private ExportJobs exportJobs;
+    //Chunks of an export are encoded in parallel here. One core is left free for the server thread.
+    private ForkJoinPool encodePool;
+    //Imports decode .dan files here, ahead of the server thread placing their blocks
+    private ExecutorService importExecutor;
+    //Project files are written here, so saving them never waits on the disk
+    private ExecutorService ioExecutor;
+    //Every project in the data folder, kept up to date as their files change
+    private WorldIndex worldIndex;
+    //Tracks which chunks of loaded worlds changed, so saves only encode those
+    private DirtyChunkListener dirtyChunkListener;
+
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        var maxExports = Math.max(1, getConfig().getInt("max-concurrent-exports", 2));
+        var exportThreads = new AtomicInteger();
+        exportExecutor = Executors.newFixedThreadPool(maxExports, r -> new Thread(r, "DanWorld Export " + exportThreads.incrementAndGet()));
+        exportJobs = new ExportJobs(this, exportExecutor, maxExports);
+        importExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "DanWorld Import"));
+        encodePool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        ioExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "DanWorld IO"));
+        try {
+            worldIndex = new WorldIndex(getDataFolder().toPath(), msg -> getLogger().info(msg));
+        } catch(IOException e) {
+            getLogger().severe("Can't watch the plugin folder for worlds: " + e.getMessage());
+            getServer().getPluginManager().disablePlugin(this);
+            return;
+        }
+        worldIndex.start();
         getCommand("danworld").setExecutor(new DanWorldCommand()); 
+
+        dirtyChunkListener = new DirtyChunkListener();
+        getServer().getPluginManager().registerEvents(dirtyChunkListener, this);
+        WorldEdit.getInstance().getEventBus().register(dirtyChunkListener);
+    }
+
+    @Override
+    public void onDisable() {
+        //Queued exports never start. Running ones stop at their next chunk and delete what they wrote.
+        exportJobs.cancelAll();
+        exportExecutor.shutdown();
+        encodePool.shutdown();
+        //Imports can't go on without the server thread placing their blocks
+        importExecutor.shutdownNow();
+        //Same as exports, a project being written is finished first
+        ioExecutor.shutdown();
+        if(worldIndex != null) {
+            try {
+                worldIndex.close();
+            } catch(IOException _ignored) {
+                //Only stops the watcher thread, nothing to clean up
+            }
+        }
+        if(dirtyChunkListener != null) WorldEdit.getInstance().getEventBus().unregister(dirtyChunkListener);
+    }
+
+    public ExecutorService getExportExecutor() {
+        return exportExecutor;
+    }
+
+    ExportJobs getExportJobs() {
+        return exportJobs;
+    }
+
+    public ExecutorService getImportExecutor() {
+        return importExecutor;
+    }
+
+    public ExecutorService getIoExecutor() {
+        return ioExecutor;
+    }
+
+    WorldIndex getWorldIndex() {
+        return worldIndex;
+    }
+
+    public ForkJoinPool getEncodePool() {
+        return encodePool;
     }
 }
@@ -0,0 +1,192 @@
+package me.danny.danworld;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockGrowEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.BlockSpreadEvent;
+import org.bukkit.event.block.LeavesDecayEvent;
+import org.bukkit.event.block.SignChangeEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.entity.EntityTeleportEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.WorldEditException;
+import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.event.extent.EditSessionEvent;
+import com.sk89q.worldedit.extent.AbstractDelegateExtent;
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldedit.util.eventbus.Subscribe;
+import com.sk89q.worldedit.world.biome.BiomeType;
+import com.sk89q.worldedit.world.block.BlockStateHolder;
+
+/**
+ * Marks chunks of loaded DanWorlds as changed whenever a block in their selection might have changed,
+ * so saving only has to encode those chunks again. Markers placed or moved count too, since chunks hold their objects.
+ *
+ * Being wrong in the safe direction is fine, a chunk marked for nothing only costs encoding it.
+ * Missing a change is not, so every event here runs at MONITOR, after anything that could cancel it.
+ * Renaming, tagging or removing a marker fires no event, those only show up once something else in its chunk changes.
+ */
+public final class DirtyChunkListener implements Listener {
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPlace(BlockPlaceEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBreak(BlockBreakEvent e) {
+    mark(e.getBlock());
+  }
+
+  //Covers blocks updating their shape when a neighbour changes, i.e. fences and stairs
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPhysics(BlockPhysicsEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onFlow(BlockFromToEvent e) {
+    mark(e.getToBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBurn(BlockBurnEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onFade(BlockFadeEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onForm(BlockFormEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onSpread(BlockSpreadEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onGrow(BlockGrowEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onDecay(LeavesDecayEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onSign(SignChangeEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityChange(EntityChangeBlockEvent e) {
+    mark(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntitySpawn(EntitySpawnEvent e) {
+    mark(e.getLocation());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityTeleport(EntityTeleportEvent e) {
+    mark(e.getFrom());
+    if(e.getTo() != null) mark(e.getTo());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPistonExtend(BlockPistonExtendEvent e) {
+    mark(e.getBlock());
+    for(var block : e.getBlocks()) {
+      mark(block);
+      mark(block.getRelative(e.getDirection()));
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPistonRetract(BlockPistonRetractEvent e) {
+    mark(e.getBlock());
+    mark(e.getBlock().getRelative(e.getDirection()));
+    for(var block : e.getBlocks()) {
+      mark(block);
+      mark(block.getRelative(e.getDirection()));
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockExplode(BlockExplodeEvent e) {
+    mark(e.getBlock());
+    e.blockList().forEach(this::mark);
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityExplode(EntityExplodeEvent e) {
+    e.blockList().forEach(this::mark);
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onStructureGrow(StructureGrowEvent e) {
+    for(var state : e.getBlocks()) {
+      mark(state.getWorld(), state.getX(), state.getY(), state.getZ());
+    }
+  }
+
+  //WorldEdit writes blocks without firing any Bukkit events, so its edits are watched by wrapping the extent it writes through
+  @Subscribe
+  public void onEditSession(EditSessionEvent e) {
+    if(e.getStage() != EditSession.Stage.BEFORE_CHANGE || e.getWorld() == null) return;
+
+    var world = BukkitAdapter.adapt(e.getWorld());
+    e.setExtent(new AbstractDelegateExtent(e.getExtent()) {
+      @Override
+      public <T extends BlockStateHolder<T>> boolean setBlock(BlockVector3 pos, T block) throws WorldEditException {
+        mark(world, pos.getBlockX(), pos.getBlockY(), pos.getBlockZ());
+        return super.setBlock(pos, block);
+      }
+
+      @Override
+      public boolean setBiome(BlockVector3 pos, BiomeType biome) {
+        mark(world, pos.getBlockX(), pos.getBlockY(), pos.getBlockZ());
+        return super.setBiome(pos, biome);
+      }
+    });
+  }
+
+  private void mark(Block block) {
+    mark(block.getWorld(), block.getX(), block.getY(), block.getZ());
+  }
+
+  private void mark(Location loc) {
+    mark(loc.getWorld(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+  }
+
+  private void mark(World world, int x, int y, int z) {
+    for(var danWorld : DanWorldCommand.loadedWorlds()) {
+      danWorld.markDirty(world, x, y, z);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package me.danny.danworld;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed once an export is done, with the same numbers as /danworld stats.
+ */
+@Name("me.danny.danworld.Export")
+@Label("DanWorld Export")
+@Category("DanWorld")
+@Description("A DanWorld exported to its .dan file")
+@StackTrace(false)
+final class ExportEvent extends Event {
+  @Label("World")
+  String world;
+
+  @Label("Success")
+  boolean success;
+
+  @Label("Capture")
+  @Timespan(Timespan.MILLISECONDS)
+  long captureMillis;
+
+  @Label("Encode")
+  @Description("Added up across the encoding threads")
+  @Timespan(Timespan.MILLISECONDS)
+  long encodeMillis;
+
+  @Label("Compress")
+  @Description("Added up across the encoding threads, only the framed layout compresses there")
+  @Timespan(Timespan.MILLISECONDS)
+  long compressMillis;
+
+  @Label("Write")
+  @Timespan(Timespan.MILLISECONDS)
+  long writeMillis;
+
+  @Label("Total")
+  @Timespan(Timespan.MILLISECONDS)
+  long totalMillis;
+
+  @Label("Encoded Chunks")
+  long encodedChunks;
+
+  @Label("Cached Chunks")
+  long cachedChunks;
+
+  @Label("Sections")
+  long sections;
+
+  @Label("Blocks per Second")
+  double blocksPerSecond;
+
+  @Label("Bytes per Section")
+  double bytesPerSection;
+
+  @Label("Average Palette Size")
+  double averagePalette;
+
+  @Label("Max Palette Size")
+  long maxPalette;
+
+  @Label("Distinct Sections")
+  @Description("Sections stored in the section table from version 5, each used by one or more chunks")
+  long distinctSections;
+
+  @Label("Block Data Cache Hit Rate")
+  double stateCacheHitRate;
+
+  @Label("File Size")
+  @DataAmount
+  long fileBytes;
+}
@@ -0,0 +1,237 @@
+package me.danny.danworld;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Every export of the plugin goes through here, along with everything else that captures a world over ticks: verifies and marker scans.
+ * At most `maxRunning` jobs run at once, the rest wait in a queue, and a world never has two jobs at the same time:
+ * two exports would take the same changed chunks and write the same files, and two captures of a world would spend
+ * twice the capture budget of a tick on it.
+ *
+ * Jobs are submitted, cancelled and finished on the server thread. Listing them is safe from anywhere.
+ */
+final class ExportJobs {
+
+  /**
+   * What a job does once it's its turn. Runs on the server thread, using executor for anything that shouldn't.
+   * Once `cancelled` says so it should stop, and fail or complete with whatever it has.
+   */
+  @FunctionalInterface
+  interface Task<T> {
+    CompletableFuture<T> start(Executor executor, BooleanSupplier cancelled);
+  }
+
+  /**
+   * One job of a world, from being queued until it's done, it failed, or it was cancelled.
+   */
+  static final class Job<T> {
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private final int id = IDS.incrementAndGet();
+    private final DanWorld world;
+    //i.e. the codec of an export, or verify
+    private final String kind;
+    //What it's doing once it's done capturing
+    private final String working;
+    private final Task<T> task;
+    //Completes on the server thread with what the task completed with, or fails with why it didn't, a CancellationException if cancelled
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private volatile boolean started;
+    private volatile boolean cancelled;
+
+    private Job(DanWorld world, String kind, String working, Task<T> task) {
+      this.world = world;
+      this.kind = kind;
+      this.working = working;
+      this.task = task;
+    }
+
+    int id() {
+      return id;
+    }
+
+    DanWorld world() {
+      return world;
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    CompletableFuture<T> result() {
+      return result;
+    }
+
+    /**
+     * What the job is doing right now, i.e. "#3 spawn.dan (zstd) capturing: Captured 10/40 chunks (25%), ETA 12 s."
+     */
+    String describe() {
+      String what;
+      if(cancelled) {
+        what = "cancelling";
+      } else if(!started) {
+        what = "queued";
+      } else {
+        var capture = world.getCaptureProgress();
+        what = capture == null? working : "capturing: " + capture;
+      }
+      return "#%d %s (%s) %s".formatted(id, world.getName(), kind, what);
+    }
+  }
+
+  private final Plugin plugin;
+  private final ExecutorService executor;
+  private final int maxRunning;
+  //Queued or running, by world name. Doubles as the lock keeping a world to one job at a time.
+  private final Map<String, Job<?>> jobs = new ConcurrentHashMap<>();
+  private final Queue<Job<?>> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger running = new AtomicInteger();
+
+  /**
+   * Run up to maxRunning jobs at once, encoding and writing them on executor, which needs at least that many threads.
+   */
+  ExportJobs(Plugin plugin, ExecutorService executor, int maxRunning) {
+    this.plugin = plugin;
+    this.executor = executor;
+    this.maxRunning = Math.max(1, maxRunning);
+  }
+
+  /**
+   * Queue an export of world, starting it right away if there's room. progress receives how capturing is going.
+   * The job completes with whether the file was written. Empty if the world already has a job.
+   */
+  Optional<Job<Boolean>> submit(DanWorld world, Codec codec, Consumer<String> progress) {
+    return submit(world, codec.toString(), "encoding", (executor, cancelled) -> world.exportWorldAsync(executor, codec, progress, cancelled));
+  }
+
+  /**
+   * Queue a comparison of world with its last export, see DanWorld.verifyAsync. Empty if the world already has a job.
+   */
+  Optional<Job<List<int[]>>> submitVerify(DanWorld world, Consumer<String> progress) {
+    return submit(world, "verify", "comparing", (executor, cancelled) -> world.verifyAsync(executor, progress, cancelled));
+  }
+
+  /**
+   * Queue a scan of world for markers, see DanWorld.scanMarkersAsync. Empty if the world already has a job.
+   */
+  Optional<Job<MarkerSet>> submitMarkerScan(DanWorld world, Map<Material, String> markers, Consumer<String> progress) {
+    return submit(world, "markers", "scanning", (executor, cancelled) -> world.scanMarkersAsync(markers, executor, progress, cancelled));
+  }
+
+  private <T> Optional<Job<T>> submit(DanWorld world, String kind, String working, Task<T> task) {
+    if(!world.readyToExport()) return Optional.empty();
+
+    var job = new Job<>(world, kind, working, task);
+    if(jobs.putIfAbsent(world.getName(), job) != null) return Optional.empty();
+
+    queue.add(job);
+    pump();
+    return Optional.of(job);
+  }
+
+  /**
+   * The job queued or running for the world called name.
+   */
+  Optional<Job<?>> get(String name) {
+    return Optional.ofNullable(jobs.get(name));
+  }
+
+  /**
+   * The job with the given id, if it's queued or running.
+   */
+  Optional<Job<?>> get(int id) {
+    return jobs.values().stream().filter(job -> job.id == id).findAny();
+  }
+
+  /**
+   * Every queued and running job, oldest first.
+   */
+  List<Job<?>> list() {
+    var list = new ArrayList<>(jobs.values());
+    list.sort(Comparator.comparingInt(Job::id));
+    return list;
+  }
+
+  /**
+   * Stop a job. A queued job is dropped right away. A running one stops capturing at the next tick, or encoding at the next chunk,
+   * and deletes what it wrote so far. Either way the world's last export and chunk cache are left as they were.
+   */
+  void cancel(Job<?> job) {
+    job.cancelled = true;
+    if(queue.remove(job)) finished(job, null, new CancellationException());
+  }
+
+  /**
+   * Cancel every job and drop the queue, for when the plugin is disabled.
+   */
+  void cancelAll() {
+    for(var job : jobs.values()) {
+      cancel(job);
+    }
+  }
+
+  //Start queued jobs while there's room
+  private void pump() {
+    while(running.get() < maxRunning) {
+      var job = queue.poll();
+      if(job == null) return;
+
+      running.incrementAndGet();
+      job.started = true;
+      start(job);
+    }
+  }
+
+  private <T> void start(Job<T> job) {
+    CompletableFuture<T> future;
+    try {
+      future = job.task.start(executor, job::isCancelled);
+    } catch(RuntimeException e) {
+      future = CompletableFuture.failedFuture(e);
+    }
+
+    future.whenComplete((value, err) -> {
+      if(err != null && !job.cancelled) plugin.getLogger().warning("Job #%d (%s) of <%s> failed: %s".formatted(job.id, job.kind, job.world.getName(), err));
+      if(Bukkit.isPrimaryThread()) {
+        ranToEnd(job, value, err);
+      } else if(plugin.isEnabled()) {
+        //Encoding finishes on a worker thread, hop back to the server thread to start the next job
+        Bukkit.getScheduler().runTask(plugin, () -> ranToEnd(job, value, err));
+      }
+    });
+  }
+
+  private <T> void ranToEnd(Job<T> job, T value, Throwable err) {
+    running.decrementAndGet();
+    finished(job, value, err);
+    pump();
+  }
+
+  private <T> void finished(Job<T> job, T value, Throwable err) {
+    jobs.remove(job.world.getName(), job);
+    if(err != null) {
+      job.result.completeExceptionally(err instanceof CompletionException && err.getCause() != null? err.getCause() : err);
+    } else {
+      job.result.complete(value);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package me.danny.danworld;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import me.danny.danworld.core.EncodeListener;
+
+/**
+ * Numbers for a single export, filled in from every thread taking part in it.
+ *
+ * Only a summary is logged when the export is done. The same numbers are committed as an ExportEvent for JFR,
+ * and shown by /danworld stats. Per chunk and per section messages only reach the console when
+ * verbose-logging is turned on in the config, since they flood it on big exports.
+ */
+public final class ExportMetrics implements EncodeListener {
+
+  private final String world;
+  private final Consumer<String> l;
+  private final boolean verbose;
+
+  //Phase timings in nanoseconds. Encode and compress are added up across the encoding threads,
+  //so together they can be more than the export took.
+  private volatile long captureNanos;
+  private final LongAdder encodeNanos = new LongAdder();
+  private final LongAdder compressNanos = new LongAdder();
+  //Time the writing thread spends writing chunks. In the stream layout this includes compressing them.
+  private final LongAdder writeNanos = new LongAdder();
+  private volatile long totalNanos;
+  private volatile long started;
+
+  private final LongAdder encodedChunks = new LongAdder();
+  private final LongAdder cachedChunks = new LongAdder();
+  private final LongAdder sections = new LongAdder();
+  private final LongAdder sectionBytes = new LongAdder();
+  private final LongAdder paletteEntries = new LongAdder();
+  private final LongAccumulator maxPalette = new LongAccumulator(Math::max, 0);
+  //Sections saved as a single state, runs and packed indices, by the version 4 block encoding
+  private final LongAdder[] blockEncodings = { new LongAdder(), new LongAdder(), new LongAdder() };
+
+  //Sections the chunks refer to, and how many of them are distinct, from version 5. Written once by the writing thread.
+  private volatile long sharedSections;
+  private volatile long distinctSections;
+
+  //Block state cache of BukkitStates, counted from the start of the export
+  private volatile long stateHitsAtStart;
+  private volatile long stateMissesAtStart;
+  private volatile long stateHits;
+  private volatile long stateMisses;
+
+  private volatile long fileBytes;
+  private volatile boolean finished;
+  private volatile boolean success;
+
+  public ExportMetrics(String world, Consumer<String> l, boolean verbose) {
+    this.world = world;
+    this.l = l;
+    this.verbose = verbose;
+  }
+
+  @Override
+  public boolean isVerbose() {
+    return verbose;
+  }
+
+  /**
+   * Log a message only when verbose logging is on. The message is only formatted then too.
+   */
+  @Override
+  public void verbose(String format, Object... args) {
+    if(verbose) l.accept(args.length == 0? format : format.formatted(args));
+  }
+
+  void captured(long nanos) {
+    captureNanos = nanos;
+  }
+
+  void start() {
+    started = System.nanoTime();
+    stateHitsAtStart = BukkitStates.cacheHits();
+    stateMissesAtStart = BukkitStates.cacheMisses();
+  }
+
+  void chunk(boolean cached, long encodeNanos, long compressNanos) {
+    (cached? cachedChunks : encodedChunks).increment();
+    this.encodeNanos.add(encodeNanos);
+    this.compressNanos.add(compressNanos);
+  }
+
+  void written(long nanos) {
+    writeNanos.add(nanos);
+  }
+
+  //encoding is the version 4 block encoding, or -1 for versions that don't pick one
+  @Override
+  public void section(int bytes, int paletteSize, int encoding) {
+    sections.increment();
+    sectionBytes.add(bytes);
+    paletteEntries.add(paletteSize);
+    maxPalette.accumulate(paletteSize);
+    if(encoding >= 0) blockEncodings[encoding].increment();
+  }
+
+  void deduplicated(long sections, long distinct) {
+    sharedSections = sections;
+    distinctSections = distinct;
+  }
+
+  void finish(boolean success, long fileBytes) {
+    totalNanos = System.nanoTime() - started;
+    stateHits = BukkitStates.cacheHits() - stateHitsAtStart;
+    stateMisses = BukkitStates.cacheMisses() - stateMissesAtStart;
+    this.fileBytes = fileBytes;
+    this.success = success;
+    finished = true;
+
+    l.accept("%s in %d ms: %d chunks encoded, %d cached, %.0f blocks/s, %d bytes."
+      .formatted(success? "Exported" : "Export failed", millis(captureNanos + totalNanos), encodedChunks.sum(), cachedChunks.sum(),
+        blocksPerSecond(), fileBytes));
+    commitEvent();
+  }
+
+  private void commitEvent() {
+    var event = new ExportEvent();
+    if(!event.shouldCommit()) return;
+
+    event.world = world;
+    event.success = success;
+    event.captureMillis = millis(captureNanos);
+    event.encodeMillis = millis(encodeNanos.sum());
+    event.compressMillis = millis(compressNanos.sum());
+    event.writeMillis = millis(writeNanos.sum());
+    event.totalMillis = millis(captureNanos + totalNanos);
+    event.encodedChunks = encodedChunks.sum();
+    event.cachedChunks = cachedChunks.sum();
+    event.sections = sections.sum();
+    event.blocksPerSecond = blocksPerSecond();
+    event.bytesPerSection = bytesPerSection();
+    event.averagePalette = averagePalette();
+    event.maxPalette = maxPalette.get();
+    event.distinctSections = distinctSections;
+    event.stateCacheHitRate = stateCacheHitRate();
+    event.fileBytes = fileBytes;
+    event.commit();
+  }
+
+  /**
+   * Human readable lines for /danworld stats.
+   */
+  public List<String> summary() {
+    var lines = new ArrayList<String>();
+    if(!finished) {
+      lines.add("Export of %s is still running: %d chunks encoded, %d cached so far."
+        .formatted(world, encodedChunks.sum(), cachedChunks.sum()));
+      return lines;
+    }
+
+    lines.add("Export of %s %s, %d bytes.".formatted(world, success? "succeeded" : "failed", fileBytes));
+    lines.add("Time: %d ms total, capture %d ms, encode %d ms, compress %d ms, write %d ms"
+      .formatted(millis(captureNanos + totalNanos), millis(captureNanos), millis(encodeNanos.sum()), millis(compressNanos.sum()), millis(writeNanos.sum())));
+    lines.add("Chunks: %d encoded, %d from cache (%.0f%% hit rate)"
+      .formatted(encodedChunks.sum(), cachedChunks.sum(), 100 * chunkCacheHitRate()));
+    lines.add("Sections: %d, %.1f bytes each, %.0f blocks/s".formatted(sections.sum(), bytesPerSection(), blocksPerSecond()));
+    lines.add("Palettes: %.1f states on average, %d at most".formatted(averagePalette(), maxPalette.get()));
+    lines.add("Block encodings: %d single, %d runs, %d packed"
+      .formatted(blockEncodings[0].sum(), blockEncodings[1].sum(), blockEncodings[2].sum()));
+    if(sharedSections > 0) {
+      lines.add("Section table: %d distinct of %d sections (%.0f%% were repeats)"
+        .formatted(distinctSections, sharedSections, 100.0 * (sharedSections - distinctSections) / sharedSections));
+    }
+    lines.add("Block state cache: %.0f%% hit rate".formatted(100 * stateCacheHitRate()));
+    return lines;
+  }
+
+  //Only counts blocks that were actually encoded, cached chunks are free
+  private double blocksPerSecond() {
+    return totalNanos == 0? 0 : sections.sum() * 4096.0 / (totalNanos / 1e9);
+  }
+
+  private double bytesPerSection() {
+    var count = sections.sum();
+    return count == 0? 0 : (double) sectionBytes.sum() / count;
+  }
+
+  private double averagePalette() {
+    var count = sections.sum();
+    return count == 0? 0 : (double) paletteEntries.sum() / count;
+  }
+
+  private double chunkCacheHitRate() {
+    var total = encodedChunks.sum() + cachedChunks.sum();
+    return total == 0? 0 : (double) cachedChunks.sum() / total;
+  }
+
+  private double stateCacheHitRate() {
+    var total = stateHits + stateMisses;
+    return total == 0? 0 : (double) stateHits / total;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+}
@@ -0,0 +1,82 @@
+package me.danny.danworld;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import me.danny.danworld.core.DanFormat;
+
+/**
+ * The extras of a DanWorld, kept next to its .yml in a file of their own so loading the project doesn't have to parse them.
+ *
+ * Magic 0x44574558 (DWEX), a version byte, a VarInt count, then every extra as a DanString key, a VarInt length and its bytes.
+ */
+final class ExtrasFile {
+
+  private static final int MAGIC = 0x44574558; //DWEX
+  private static final int VERSION = 1;
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+  private ExtrasFile() {}
+
+  /**
+   * Where the extras of the project saved to yml are kept.
+   */
+  static Path of(Path yml) {
+    var name = yml.getFileName().toString();
+    var base = name.endsWith(".yml")? name.substring(0, name.length() - ".yml".length()) : name;
+    return yml.resolveSibling(base + ".extras");
+  }
+
+  /**
+   * Every extra in file, in the order they were saved. Empty if there is no file.
+   */
+  static Map<String, byte[]> read(Path file) throws IOException {
+    var extra = new LinkedHashMap<String, byte[]>();
+    if(!Files.exists(file)) return extra;
+
+    try(var d = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), IO_BUFFER_SIZE))) {
+      if(d.readInt() != MAGIC) throw new IOException("Not a DanWorld extras file.");
+      var version = d.readUnsignedByte();
+      if(version != VERSION) throw new IOException("Extras version %d can't be read.".formatted(version));
+
+      var count = DanFormat.readVarInt(d);
+      for(int i = 0; i < count; i++) {
+        var key = DanFormat.readString(d);
+        var bytes = new byte[DanFormat.readVarInt(d)];
+        d.readFully(bytes);
+        extra.put(key, bytes);
+      }
+    }
+
+    return extra;
+  }
+
+  /**
+   * Replace file with the given extras. Written to a temporary file first, so a failed save keeps the old extras.
+   */
+  static void write(Path file, Map<String, byte[]> extra) throws IOException {
+    var tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try(var d = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), IO_BUFFER_SIZE))) {
+        d.writeInt(MAGIC);
+        d.writeByte(VERSION);
+        DanFormat.writeVarInt(d, extra.size());
+        for(var entry : extra.entrySet()) {
+          DanFormat.writeString(d, entry.getKey());
+          DanFormat.writeVarInt(d, entry.getValue().length);
+          d.write(entry.getValue());
+        }
+      }
+      WorldExport.moveIntoPlace(tmp, file);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package me.danny.danworld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.Directional;
+import org.bukkit.block.data.Rotatable;
+
+import me.danny.danworld.core.DanFormat;
+
+/**
+ * Any number of positions saved as a single extra, each with a tag, see Marker set in design.txt.
+ * A map with thousands of spawns or checkpoints stores them as one value instead of one pos extra each.
+ *
+ * Every coordinate is stored in its own array, so loaders read each of them with one bulk copy.
+ * Tags are stored once, in a dictionary, and markers refer to them by index.
+ */
+public final class MarkerSet {
+
+  private static final int MAGIC = 0x44574D53; //DWMS
+  private static final int VERSION = 1;
+  private static final int MAX_TAGS = 0xFFFF + 1;
+  //f64 x, y, z, f32 yaw, pitch, u16 tag
+  private static final int MARKER_SIZE = 3 * Double.BYTES + 2 * Float.BYTES + Short.BYTES;
+  private static final int INITIAL_SIZE = 64;
+
+  private final List<String> tags = new ArrayList<>();
+  private final Map<String, Integer> tagIds = new HashMap<>();
+  private int size;
+  private double[] x = new double[INITIAL_SIZE];
+  private double[] y = new double[INITIAL_SIZE];
+  private double[] z = new double[INITIAL_SIZE];
+  private float[] yaw = new float[INITIAL_SIZE];
+  private float[] pitch = new float[INITIAL_SIZE];
+  private short[] tag = new short[INITIAL_SIZE];
+
+  /**
+   * Scan every block of sel in region, a capture of its chunks, for the blocks in markers, which maps each of them to
+   * the tag its markers get. Markers stand on solid blocks and inside the rest, like pressure plates, and face the way
+   * their block does, if it has a facing.
+   */
+  static MarkerSet scan(CapturedRegion region, Selection sel, Map<Material, String> markers) {
+    var set = new MarkerSet();
+    var offset = ExtraUtils.Coords.negateOffset(sel);
+    var min = sel.min();
+    var max = sel.max();
+    for(int bx = min.getBlockX(); bx <= max.getBlockX(); bx++) {
+      for(int bz = min.getBlockZ(); bz <= max.getBlockZ(); bz++) {
+        for(int by = min.getBlockY(); by <= max.getBlockY(); by++) {
+          var type = region.getType(bx, by, bz);
+          var markerTag = markers.get(type);
+          if(markerTag == null) continue;
+
+          var facing = switch(region.getBlockData(bx, by, bz)) {
+            case Directional directional -> directional.getFacing();
+            case Rotatable rotatable -> rotatable.getRotation();
+            default -> BlockFace.SOUTH;
+          };
+          var standY = type.isSolid()? by + 1 : by;
+          set.add(bx + 0.5 - offset.x(), standY - offset.y(), bz + 0.5 - offset.z(), yawOf(facing), 0, markerTag);
+        }
+      }
+    }
+    return set;
+  }
+
+  /**
+   * Add a marker at (x, y, z) from the lowest corner of the selection.
+   */
+  public void add(double x, double y, double z, float yaw, float pitch, String tag) {
+    var id = tagIds.get(tag);
+    if(id == null) {
+      if(tags.size() == MAX_TAGS) throw new IllegalStateException("A marker set can't have more than %d tags.".formatted(MAX_TAGS));
+      id = tags.size();
+      tags.add(tag);
+      tagIds.put(tag, id);
+    }
+
+    if(size == this.x.length) {
+      var grown = size * 2;
+      this.x = Arrays.copyOf(this.x, grown);
+      this.y = Arrays.copyOf(this.y, grown);
+      this.z = Arrays.copyOf(this.z, grown);
+      this.yaw = Arrays.copyOf(this.yaw, grown);
+      this.pitch = Arrays.copyOf(this.pitch, grown);
+      this.tag = Arrays.copyOf(this.tag, grown);
+    }
+    this.x[size] = x;
+    this.y[size] = y;
+    this.z[size] = z;
+    this.yaw[size] = yaw;
+    this.pitch[size] = pitch;
+    this.tag[size] = (short) (int) id;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The distinct tags, in the order their first markers were added.
+   */
+  public List<String> tags() {
+    return List.copyOf(tags);
+  }
+
+  /**
+   * The value of the extra. The tag dictionary goes through a DataOutputStream, every array after it is one bulk copy.
+   */
+  public byte[] encode() {
+    var header = new ByteArrayOutputStream();
+    try(var d = new DataOutputStream(header)) {
+      d.writeInt(MAGIC);
+      d.writeByte(VERSION);
+      DanFormat.writeVarInt(d, tags.size());
+      for(var t : tags) {
+        DanFormat.writeText(d, t);
+      }
+      d.writeInt(size);
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    var bytes = ByteBuffer.allocate(header.size() + size * MARKER_SIZE);
+    bytes.put(header.toByteArray());
+    bytes.asDoubleBuffer().put(x, 0, size);
+    bytes.position(bytes.position() + size * Double.BYTES);
+    bytes.asDoubleBuffer().put(y, 0, size);
+    bytes.position(bytes.position() + size * Double.BYTES);
+    bytes.asDoubleBuffer().put(z, 0, size);
+    bytes.position(bytes.position() + size * Double.BYTES);
+    bytes.asFloatBuffer().put(yaw, 0, size);
+    bytes.position(bytes.position() + size * Float.BYTES);
+    bytes.asFloatBuffer().put(pitch, 0, size);
+    bytes.position(bytes.position() + size * Float.BYTES);
+    bytes.asShortBuffer().put(tag, 0, size);
+    return bytes.array();
+  }
+
+  //Minecraft's yaw of something looking towards face: 0 is south, 90 west
+  private static float yawOf(BlockFace face) {
+    return (float) Math.toDegrees(Math.atan2(-face.getModX(), face.getModZ()));
+  }
+}
@@ -0,0 +1,176 @@
+package me.danny.danworld;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * GZIP like pigz does it: what's written is cut into blocks, and every block is deflated on the pool into a GZIP member
+ * of its own. Members are written in order, so the output is one multi-member GZIP file that GZIPInputStream, gzip -d and
+ * flate2's MultiGzDecoder read like any other. See Stream layout in design.txt.
+ *
+ * Members don't share a dictionary, so they can be inflated in parallel too. Every member says how long it is in a "DW"
+ * subfield of its FEXTRA header, so readers find the next one without inflating the one before. Decoders ignore
+ * subfields they don't know.
+ *
+ * Not thread safe, only the pool's threads run alongside the one writing.
+ */
+final class ParallelGzipOutputStream extends OutputStream {
+
+  //Big enough that restarting the window every block costs well under a percent, small enough for a few per thread
+  static final int BLOCK_SIZE = 256 * 1024;
+
+  private static final int HEADER_SIZE = 10;
+  private static final int EXTRA_SIZE = 2 + 4 + Integer.BYTES;
+  private static final int TRAILER_SIZE = 8;
+  private static final int FEXTRA = 4;
+  //Raw deflate, the GZIP header and trailer are written here
+  private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+  private final OutputStream out;
+  private final int level;
+  private final ForkJoinPool pool;
+  private final int maxInFlight;
+  private final ArrayDeque<Future<byte[]>> inFlight;
+  //Blocks whose members were written, reused for the next ones
+  private final ArrayDeque<byte[]> spare;
+  private byte[] block = new byte[BLOCK_SIZE];
+  private int size;
+  private boolean wroteMember;
+  private boolean closed;
+
+  ParallelGzipOutputStream(OutputStream out, int level, ForkJoinPool pool) {
+    this.out = out;
+    this.level = level;
+    this.pool = pool;
+    this.maxInFlight = pool.getParallelism() * 2;
+    this.inFlight = new ArrayDeque<>(maxInFlight);
+    this.spare = new ArrayDeque<>(maxInFlight);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if(size == block.length) submit();
+    block[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while(len > 0) {
+      if(size == block.length) submit();
+      var n = Math.min(len, block.length - size);
+      System.arraycopy(b, off, block, size, n);
+      size += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  //Doesn't cut the block short, that would only make members smaller. Members that are done are passed on.
+  @Override
+  public void flush() throws IOException {
+    while(!inFlight.isEmpty() && inFlight.peek().isDone()) {
+      writeOldest();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) return;
+    closed = true;
+
+    try(out) {
+      //An empty stream is still one member
+      if(size > 0 || (!wroteMember && inFlight.isEmpty())) submit();
+      while(!inFlight.isEmpty()) {
+        writeOldest();
+      }
+    } finally {
+      inFlight.forEach(member -> member.cancel(true));
+    }
+  }
+
+  private void submit() throws IOException {
+    var input = block;
+    var length = size;
+    inFlight.add(pool.submit(() -> {
+      var member = member(input, length, level);
+      synchronized(spare) {
+        spare.add(input);
+      }
+      return member;
+    }));
+    synchronized(spare) {
+      block = spare.isEmpty()? new byte[BLOCK_SIZE] : spare.poll();
+    }
+    size = 0;
+
+    while(inFlight.size() > maxInFlight) {
+      writeOldest();
+    }
+  }
+
+  private void writeOldest() throws IOException {
+    try {
+      out.write(inFlight.poll().get());
+      wroteMember = true;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing.");
+    } catch(ExecutionException e) {
+      throw new IOException("Failed to compress: " + e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  //A whole GZIP member holding the first length bytes of input
+  private static byte[] member(byte[] input, int length, int level) {
+    var deflater = DEFLATERS.get();
+    deflater.reset();
+    deflater.setLevel(level);
+    deflater.setInput(input, 0, length);
+    deflater.finish();
+
+    //Incompressible blocks grow by a few bytes for every stored block of deflate
+    var member = new byte[HEADER_SIZE + EXTRA_SIZE + length + length / 1024 + 64 + TRAILER_SIZE];
+    var pos = HEADER_SIZE + EXTRA_SIZE;
+    while(!deflater.finished()) {
+      if(pos == member.length - TRAILER_SIZE) member = Arrays.copyOf(member, member.length * 2);
+      pos += deflater.deflate(member, pos, member.length - TRAILER_SIZE - pos);
+    }
+
+    var crc = new CRC32();
+    crc.update(input, 0, length);
+    var total = pos + TRAILER_SIZE;
+    //Magic, deflate, FEXTRA, then no modification time, extra flags or OS, like GZIPOutputStream
+    member[0] = (byte) 0x1f;
+    member[1] = (byte) 0x8b;
+    member[2] = 8;
+    member[3] = FEXTRA;
+    littleEndianShort(member, HEADER_SIZE, EXTRA_SIZE - 2);
+    member[HEADER_SIZE + 2] = 'D';
+    member[HEADER_SIZE + 3] = 'W';
+    littleEndianShort(member, HEADER_SIZE + 4, Integer.BYTES);
+    littleEndianInt(member, HEADER_SIZE + 6, total);
+    littleEndianInt(member, pos, (int) crc.getValue());
+    littleEndianInt(member, pos + 4, length);
+    return Arrays.copyOf(member, total);
+  }
+
+  private static void littleEndianShort(byte[] b, int pos, int value) {
+    b[pos] = (byte) value;
+    b[pos + 1] = (byte) (value >> 8);
+  }
+
+  private static void littleEndianInt(byte[] b, int pos, int value) {
+    littleEndianShort(b, pos, value);
+    littleEndianShort(b, pos + 2, value >> 16);
+  }
+}
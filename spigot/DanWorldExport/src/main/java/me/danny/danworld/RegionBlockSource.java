@@ -0,0 +1,86 @@
+package me.danny.danworld;
+
+import org.bukkit.Material;
+import org.bukkit.block.Biome;
+
+import me.danny.danworld.core.BlockSource;
+import me.danny.danworld.core.StateRegistry;
+
+/**
+ * Feeds the blocks of a captured region to the encoder, relative to the lowest corner of the selection.
+ *
+ * Chunks at the edge of a selection stick out past it. Rather than skip those blocks completely,
+ * they're encoded as void air in plains.
+ */
+final class RegionBlockSource implements BlockSource {
+
+  private final CapturedRegion region;
+  private final int baseX;
+  private final int baseY;
+  private final int baseZ;
+  private final int maxX;
+  private final int maxY;
+  private final int maxZ;
+
+  RegionBlockSource(CapturedRegion region, Selection sel) {
+    this.region = region;
+    baseX = sel.min().getBlockX();
+    baseY = sel.min().getBlockY();
+    baseZ = sel.min().getBlockZ();
+    maxX = sel.max().getBlockX();
+    maxY = sel.max().getBlockY();
+    maxZ = sel.max().getBlockZ();
+  }
+
+  @Override
+  public StateRegistry registry() {
+    return BukkitStates.REGISTRY;
+  }
+
+  @Override
+  public void blocks(int x, int y, int z, int[] states) {
+    var voidAir = BukkitStates.stateOf(Material.VOID_AIR);
+    var i = 0;
+    for(int by = 0; by < 16; by++) {
+      for(int bx = 0; bx < 16; bx++) {
+        for(int bz = 0; bz < 16; bz++, i++) {
+          var wx = baseX + x + bx;
+          var wy = baseY + y + by;
+          var wz = baseZ + z + bz;
+
+          if(outside(wx, wy, wz)) {
+            states[i] = voidAir;
+            continue;
+          }
+
+          //Most materials have no block data at all, don't bother fetching it for them
+          var type = region.getType(wx, wy, wz);
+          states[i] = BlockDataEncoder.hasBlockData(type)? BukkitStates.stateOf(region.getBlockData(wx, wy, wz)) : BukkitStates.stateOf(type);
+        }
+      }
+    }
+  }
+
+  //Each step x step x step cell takes the biome of its lowest corner
+  @Override
+  public void biomes(int x, int y, int z, int step, int[] biomes) {
+    var plains = BukkitStates.biomeOf(Biome.PLAINS);
+    var i = 0;
+    for(int by = 0; by < 16; by += step) {
+      for(int bx = 0; bx < 16; bx += step) {
+        for(int bz = 0; bz < 16; bz += step, i++) {
+          var wx = baseX + x + bx;
+          var wy = baseY + y + by;
+          var wz = baseZ + z + bz;
+
+          biomes[i] = outside(wx, wy, wz)? plains : BukkitStates.biomeOf(region.getBiome(wx, wy, wz));
+        }
+      }
+    }
+  }
+
+  //Chunks only ever stick out past the max corner
+  private boolean outside(int x, int y, int z) {
+    return x > maxX || y > maxY || z > maxZ;
+  }
+}
@@ -0,0 +1,149 @@
+package me.danny.danworld;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import me.danny.danworld.core.DanFormat;
+
+/**
+ * Stores every distinct section of a version 5 export once, see Shared sections in design.txt.
+ *
+ * Chunks are encoded with each section prefixed by its length, so they can be hashed on the encoding threads.
+ * The writing thread then swaps every section for a reference into the table, in XZ order, so the output is the same
+ * however the chunks were encoded. Sections are told apart by a 128 bit SHA-256 prefix, not compared byte by byte,
+ * so the table doesn't have to keep every section in memory.
+ */
+final class SectionTable {
+
+  //Bytes before the first section of Chunk data: x, z and the number of sections
+  static final int CHUNK_HEADER_SIZE = 2 + 2 + 1;
+
+  record Digest(long high, long low) {}
+
+  private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch(NoSuchAlgorithmException e) {
+      //Every Java platform has to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  });
+
+  //Digest -> table index
+  private final Map<Digest, Integer> ids = new HashMap<>();
+  //Framed layout: where new sections go. Null in the stream layout, which stores them in the chunk that uses them first.
+  private final DataOutputStream table;
+  private long sections;
+
+  SectionTable(DataOutputStream table) {
+    this.table = table;
+  }
+
+  /**
+   * Add the digest of every section of chunk, Chunk data of `length` bytes with length-prefixed sections, to out.
+   * Safe to call from any thread.
+   */
+  static void digests(byte[] chunk, int length, List<Digest> out) throws IOException {
+    var sha = SHA_256.get();
+    var pos = CHUNK_HEADER_SIZE;
+    var sections = chunk[CHUNK_HEADER_SIZE - 1] & 0xFF;
+    for(int i = 0; i < sections; i++) {
+      var len = varInt(chunk, pos);
+      pos += DanFormat.varIntSize(len);
+      if(len > length - pos) throw new IOException("Section is longer than its chunk.");
+
+      sha.update(chunk, pos, len);
+      var hash = ByteBuffer.wrap(sha.digest());
+      out.add(new Digest(hash.getLong(), hash.getLong()));
+      pos += len;
+    }
+  }
+
+  /**
+   * Put the CRC-32 of every section of chunk, Chunk data of `length` bytes with length-prefixed sections, in out.
+   * Returns how many there are. Safe to call from any thread.
+   */
+  static int checksums(byte[] chunk, int length, int[] out) throws IOException {
+    var crc = new CRC32();
+    var pos = CHUNK_HEADER_SIZE;
+    var sections = chunk[CHUNK_HEADER_SIZE - 1] & 0xFF;
+    for(int i = 0; i < sections; i++) {
+      var len = varInt(chunk, pos);
+      pos += DanFormat.varIntSize(len);
+      if(len > length - pos) throw new IOException("Section is longer than its chunk.");
+
+      crc.reset();
+      crc.update(chunk, pos, len);
+      out[i] = (int) crc.getValue();
+      pos += len;
+    }
+    return sections;
+  }
+
+  /**
+   * Write chunk, `length` bytes of Chunk data, to out with every section replaced by its reference.
+   * digests are the ones added by digests(chunk, ...). Whatever follows the sections is copied as is.
+   */
+  void write(byte[] chunk, int length, List<Digest> digests, DataOutputStream out) throws IOException {
+    out.write(chunk, 0, CHUNK_HEADER_SIZE);
+    var pos = CHUNK_HEADER_SIZE;
+    for(var digest : digests) {
+      var len = varInt(chunk, pos);
+      pos += DanFormat.varIntSize(len);
+      sections++;
+
+      var id = ids.get(digest);
+      if(id == null) {
+        id = ids.size();
+        ids.put(digest, id);
+        if(table == null) {
+          //Readers add it to their table as they come across it
+          DanFormat.writeVarInt(out, 0);
+          DanFormat.writeVarInt(out, len);
+          out.write(chunk, pos, len);
+          pos += len;
+          continue;
+        }
+
+        DanFormat.writeVarInt(table, len);
+        table.write(chunk, pos, len);
+      }
+
+      DanFormat.writeVarInt(out, id + 1);
+      pos += len;
+    }
+    out.write(chunk, pos, length - pos);
+  }
+
+  /**
+   * Sections written so far, counting every time one was used.
+   */
+  long sections() {
+    return sections;
+  }
+
+  /**
+   * Distinct sections written so far, each stored once.
+   */
+  int distinct() {
+    return ids.size();
+  }
+
+  //VarInt at pos of a chunk this exporter wrote
+  private static int varInt(byte[] bytes, int pos) {
+    var value = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+      var b = bytes[pos++];
+      value |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) break;
+    }
+    return value;
+  }
+}
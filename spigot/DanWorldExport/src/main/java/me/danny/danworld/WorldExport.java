@@ -0,0 +1,524 @@
+package me.danny.danworld;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.bukkit.World.Environment;
+
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+import me.danny.danworld.DanWorld.Layout;
+import me.danny.danworld.core.BlockSource;
+import me.danny.danworld.core.DanFormat;
+import me.danny.danworld.core.SectionEncoder;
+
+/**
+ * A single export of a DanWorld to its .dan file.
+ *
+ * Everything in here was copied from the world when the export started, so it can run on any thread
+ * while the world keeps being edited.
+ * When `changed` is null every chunk is encoded, otherwise only the chunks set in it are, and the rest
+ * come from the chunk cache written by export number `number - 1`. Either way, a new cache is written for the next export.
+ * Once `cancelled` says so, encoding stops and nothing is written, the old file and cache stay as they were.
+ * Unless previewFile is null, a WorldPreview of the export is written there once the file is, see WorldPreview.
+ */
+record WorldExport(Consumer<String> l, ExportMetrics metrics, File file, File cacheFile, File previewFile, int thumbnailSize, long number, BitSet changed, int version, Layout layout,
+                   Codec codec, Environment dimension, int width, int depth, Selection sel, CapturedRegion region, Map<String, byte[]> extra,
+                   ForkJoinPool encodePool, BooleanSupplier cancelled) implements Supplier<Boolean> {
+
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+  //Big enough for a typical chunk, so the recycled buffers rarely have to grow
+  private static final int CHUNK_BUFFER_SIZE = 256 * 1024;
+  //Chunk data stores the number of sections in a u8
+  static final int MAX_SECTIONS = 255;
+  //Section encoders keep scratch space around between sections, one per encoding thread
+  private static final ThreadLocal<SectionEncoder> ENCODERS = ThreadLocal.withInitial(SectionEncoder::new);
+
+  //Zstandard dictionaries are trained on pieces of the chunks of the last export. Pieces about the size of a section
+  //teach it the palettes and block encodings that repeat across sections, rather than whole chunks.
+  private static final int DICTIONARY_SAMPLE_SIZE = 4 * 1024;
+  private static final int DICTIONARY_SAMPLES_BYTES = 4 * 1024 * 1024;
+  private static final int DICTIONARY_SIZE = 64 * 1024;
+  //Frame offset (u64) and length (u32)
+  private static final int INDEX_ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+
+  /**
+   * Keys of the chunks this export reads, for CapturedRegion. Only those overlapping changed columns, unless every column is encoded.
+   */
+  long[] chunksToCapture() {
+    var minX = sel.min().getBlockX();
+    var minZ = sel.min().getBlockZ();
+    return changed == null? CapturedRegion.chunksIn(minX, minZ, width * 16, depth * 16) : CapturedRegion.chunksIn(minX, minZ, depth, changed);
+  }
+
+  /**
+   * The same export, reading its blocks from region.
+   */
+  WorldExport withRegion(CapturedRegion region) {
+    return new WorldExport(l, metrics, file, cacheFile, previewFile, thumbnailSize, number, changed, version, layout, codec, dimension, width, depth, sel, region, extra, encodePool, cancelled);
+  }
+
+  @Override
+  public Boolean get() {
+    metrics.start();
+    var success = export();
+    metrics.finish(success, success? file.length() : 0);
+    return success;
+  }
+
+  private boolean export() {
+    //Write to a temporary file next to the real one, so a failed export never leaves a truncated .dan behind
+    Path tmp;
+    try {
+      tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+    } catch(IOException e) {
+      l.accept("Failed to create temporary file: %s".formatted(e.getMessage()));
+      return false;
+    }
+
+    var preview = previewFile == null? null : WorldPreview.start(previewFile.toPath(), number, width, depth, changed != null);
+    boolean written;
+    try(var cached = changed == null? null : ChunkCache.Reader.open(cacheFile.toPath(), number - 1, width * depth);
+        var cache = new ChunkCache.Writer(cacheFile.toPath(), number, width * depth)) {
+      if(changed != null) {
+        l.accept("Encoding %d changed chunks, the other %d are cached.".formatted(changed.cardinality(), width * depth - changed.cardinality()));
+      }
+
+      written = switch(layout) {
+        case STREAM -> writeStream(tmp, cached, cache, preview);
+        case FRAMED -> writeFramed(tmp, cached, cache, preview);
+      };
+      //Saved before the file is moved into place. If that fails, the world goes back to encoding everything, so this cache is never read.
+      if(written) cache.commit();
+    } catch(IOException | RuntimeException e) {
+      l.accept("Failed to write export: %s".formatted(e.getMessage()));
+      written = false;
+    }
+
+    try {
+      if(!written) {
+        Files.deleteIfExists(tmp);
+        return false;
+      }
+
+      moveIntoPlace(tmp, file.toPath());
+    } catch(IOException e) {
+      l.accept("Failed to save bytes to file: %s".formatted(e.getMessage()));
+      try {
+        Files.deleteIfExists(tmp);
+      } catch(IOException _ignored) {}
+      return false;
+    }
+
+    if(preview != null) {
+      try {
+        preview.write(previewFile.toPath(), number, thumbnailSize);
+      } catch(IOException e) {
+        //The export itself is fine, the next one writes a new preview
+        l.accept("Failed to write preview: %s".formatted(e.getMessage()));
+      }
+    }
+    return true;
+  }
+
+  //The whole file is one GZIP stream, readers tell the layouts apart by its magic.
+  //It's deflated in blocks on the encode pool, each a GZIP member of its own, see ParallelGzipOutputStream.
+  private boolean writeStream(Path tmp, ChunkCache.Reader cached, ChunkCache.Writer cache, WorldPreview preview) throws IOException {
+    var streamCodec = codec;
+    if(codec.id() != Codec.GZIP) {
+      l.accept("The stream layout is always GZIP, %s only applies to the framed layout.".formatted(codec));
+      streamCodec = Codec.DEFAULT;
+    }
+
+    try(var out = Files.newOutputStream(tmp);
+        var gz = new ParallelGzipOutputStream(out, streamCodec.level(), encodePool);
+        var d = new DataOutputStream(new BufferedOutputStream(gz, IO_BUFFER_SIZE))) {
+      DanFormat.writeString(d, "DanWorld");
+      d.writeByte((byte)version);
+      d.writeByte(dimensionId(dimension));
+      d.writeShort((short)width);
+      d.writeShort((short)depth);
+
+      var checksums = new Checksums();
+      ChunkSink sink;
+      if(version >= DanFormat.SHARED_SECTIONS_VERSION) {
+        var table = new SectionTable(null);
+        sink = (i, chunk) -> {
+          table.write(chunk.raw().array(), chunk.raw().size(), chunk.digests(), d);
+          if(version >= DanFormat.CHECKSUMS_VERSION) checksums.add(chunk);
+        };
+        if(!writeChunks(false, null, cached, cache, preview, sink)) return false;
+        metrics.deduplicated(table.sections(), table.distinct());
+      } else {
+        sink = (i, chunk) -> chunk.raw().writeTo(d);
+        if(!writeChunks(false, null, cached, cache, preview, sink)) return false;
+      }
+      writeExtra(metrics, d, extra, version);
+      if(version >= DanFormat.CHECKSUMS_VERSION) checksums.writeTo(d);
+    }
+
+    return true;
+  }
+
+  //Uncompressed header and chunk index, followed by every chunk compressed on its own, and then the extras.
+  //Readers can seek straight to the chunks they want.
+  //From version 5 every distinct section is stored once in a frame after the extras, and chunk frames refer to them.
+  //From version 7 the checksums of every section are in the last frame.
+  private boolean writeFramed(Path tmp, ChunkCache.Reader cached, ChunkCache.Writer cache, WorldPreview preview) throws IOException {
+    var total = width * depth;
+    var shared = version >= DanFormat.SHARED_SECTIONS_VERSION;
+    var checked = version >= DanFormat.CHECKSUMS_VERSION;
+    var entries = total + 1 + (shared? 1 : 0) + (checked? 1 : 0);
+    var offsets = new long[entries];
+    var lengths = new int[entries];
+
+    var dictionary = codec.dictionary()? trainDictionary() : new byte[0];
+    try(var channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        var dict = dictionary.length == 0? null : new ZstdDictCompress(dictionary, codec.level())) {
+      var header = new ByteArrayOutputStream();
+      var d = new DataOutputStream(header);
+      DanFormat.writeString(d, "DanWorld");
+      d.writeByte((byte)version);
+      d.writeByte(codec.id());
+      if(codec.id() == Codec.ZSTD) {
+        //Readers need the dictionary to decompress any frame, so it's kept in the file rather than next to it
+        d.writeInt(dictionary.length);
+        d.write(dictionary);
+      }
+      d.writeByte(dimensionId(dimension));
+      d.writeShort((short)width);
+      d.writeShort((short)depth);
+      d.flush();
+
+      //Frames go after the index, which is filled in once their offsets are known
+      var indexStart = header.size();
+      channel.write(ByteBuffer.wrap(header.toByteArray()));
+      channel.position(indexStart + (long) entries * INDEX_ENTRY_SIZE);
+
+      //Not buffered: every frame is handed over as a single array anyway
+      var out = Channels.newOutputStream(channel);
+      //Sections are added as chunks first use them, compressed as they go, so only the compressed table is held in memory
+      var tableFrame = new ByteArrayOutputStream();
+      var tableOut = shared? new DataOutputStream(codec.compress(tableFrame, IO_BUFFER_SIZE, dict)) : null;
+      var table = new SectionTable(tableOut);
+      var checksums = new Checksums();
+      //With shared sections, a chunk's frame depends on every chunk before it, so frames are compressed here in order
+      var written = writeChunks(!shared, dict, cached, cache, preview, (i, chunk) -> {
+        if(shared) {
+          try(var frame = new DataOutputStream(codec.compress(chunk.frame(), IO_BUFFER_SIZE, dict))) {
+            table.write(chunk.raw().array(), chunk.raw().size(), chunk.digests(), frame);
+          }
+          if(checked) checksums.add(chunk);
+        }
+        offsets[i] = channel.position();
+        lengths[i] = chunk.frame().size();
+        chunk.frame().writeTo(out);
+      });
+      if(!written) {
+        if(tableOut != null) tableOut.close();
+        return false;
+      }
+
+      offsets[total] = channel.position();
+      var extraFrame = new ByteArrayOutputStream();
+      try(var compressed = new DataOutputStream(codec.compress(extraFrame, IO_BUFFER_SIZE, dict))) {
+        writeExtra(metrics, compressed, extra, version);
+      }
+      lengths[total] = extraFrame.size();
+      extraFrame.writeTo(out);
+
+      if(shared) {
+        tableOut.close();
+        offsets[total + 1] = channel.position();
+        lengths[total + 1] = tableFrame.size();
+        tableFrame.writeTo(out);
+        metrics.deduplicated(table.sections(), table.distinct());
+      }
+
+      if(checked) {
+        offsets[entries - 1] = channel.position();
+        var checksumFrame = new ByteArrayOutputStream();
+        try(var compressed = new DataOutputStream(codec.compress(checksumFrame, IO_BUFFER_SIZE, dict))) {
+          checksums.writeTo(compressed);
+        }
+        lengths[entries - 1] = checksumFrame.size();
+        checksumFrame.writeTo(out);
+      }
+
+      var index = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+      for(int i = 0; i < entries; i++) {
+        index.putLong(offsets[i]);
+        index.putInt(lengths[i]);
+      }
+      index.flip();
+      channel.position(indexStart);
+      while(index.hasRemaining()) {
+        channel.write(index);
+      }
+    }
+
+    return true;
+  }
+
+  //Empty when there's no chunk cache to learn from yet, i.e. the first export. Frames are then compressed without one.
+  private byte[] trainDictionary() {
+    var start = System.nanoTime();
+    try {
+      var samples = ChunkCache.samples(cacheFile.toPath(), DICTIONARY_SAMPLE_SIZE, DICTIONARY_SAMPLES_BYTES);
+      if(samples.isEmpty()) {
+        l.accept("No chunks to train a dictionary on yet, exporting without one.");
+        return new byte[0];
+      }
+
+      var trainer = new ZstdDictTrainer(DICTIONARY_SAMPLES_BYTES, DICTIONARY_SIZE);
+      samples.forEach(trainer::addSample);
+      var dictionary = trainer.trainSamples();
+      metrics.verbose("Trained a %d byte dictionary on %d samples in %d ms.", dictionary.length, samples.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return dictionary;
+    } catch(IOException | RuntimeException e) {
+      //Too few or too uniform samples make training fail, frames are fine without a dictionary
+      l.accept("Failed to train a dictionary, exporting without one: %s".formatted(e.getMessage()));
+      return new byte[0];
+    }
+  }
+
+  private interface ChunkSink {
+    void accept(int index, ChunkBuffers chunk) throws IOException;
+  }
+
+  //Recycled between chunks. raw holds the Chunk data, frame the compressed copy in the framed layout.
+  //From version 5 raw has every section prefixed by its length, section is scratch space for encoding one,
+  //and digests tell the SectionTable which sections it has seen before.
+  //From version 7 checksums holds the CRC-32 of each section, one for every digest.
+  private record ChunkBuffers(RawBuffer raw, ByteArrayOutputStream frame, ByteArrayOutputStream section, List<SectionTable.Digest> digests,
+                              int[] checksums) {
+    ChunkBuffers() {
+      this(new RawBuffer(), new ByteArrayOutputStream(), new ByteArrayOutputStream(), new ArrayList<>(), new int[MAX_SECTIONS]);
+    }
+
+    void reset() {
+      raw.reset();
+      frame.reset();
+      section.reset();
+      digests.clear();
+    }
+  }
+
+  //The checksum of every section written so far, in XZ order then Y, see Checksums in design.txt
+  private static final class Checksums {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream d = new DataOutputStream(bytes);
+
+    void add(ChunkBuffers chunk) throws IOException {
+      for(int i = 0; i < chunk.digests().size(); i++) {
+        d.writeInt(chunk.checksums()[i]);
+      }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      DanFormat.writeVarInt(out, bytes.size() / Integer.BYTES);
+      bytes.writeTo(out);
+    }
+  }
+
+  //Hands out its array, so sections can be hashed and copied out of a chunk without copying the whole chunk first
+  private static final class RawBuffer extends ByteArrayOutputStream {
+    RawBuffer() {
+      super(CHUNK_BUFFER_SIZE);
+    }
+
+    byte[] array() {
+      return buf;
+    }
+  }
+
+  //Chunks are independent of each other, so they're encoded in parallel, then stitched back together in XZ order.
+  //The output is the same as encoding them one by one. Only a bounded window of chunks is in flight at once,
+  //and their buffers are recycled, so memory use doesn't grow with the size of the region.
+  private boolean writeChunks(boolean compress, ZstdDictCompress dict, ChunkCache.Reader cached, ChunkCache.Writer cache, WorldPreview preview,
+                              ChunkSink sink) throws IOException {
+    var total = width * depth;
+    var maxInFlight = encodePool.getParallelism() * 4;
+    var inFlight = new ArrayDeque<Future<ChunkBuffers>>(maxInFlight);
+    var buffers = new ArrayDeque<ChunkBuffers>(maxInFlight);
+
+    var next = 0;
+    var done = 0;
+    try {
+      while(next < total || !inFlight.isEmpty()) {
+        if(cancelled.getAsBoolean()) {
+          inFlight.forEach(chunk -> chunk.cancel(true));
+          l.accept("Export cancelled after %d of %d chunks.".formatted(done, total));
+          return false;
+        }
+
+        while(next < total && inFlight.size() < maxInFlight) {
+          var buffer = buffers.isEmpty()? new ChunkBuffers() : buffers.poll();
+          var index = next;
+          inFlight.add(encodePool.submit(() -> produceChunk(buffer, index, compress, dict, cached, preview)));
+          next++;
+        }
+
+        var buffer = inFlight.poll().get();
+        var start = System.nanoTime();
+        sink.accept(done++, buffer);
+        cache.append(buffer.raw());
+        metrics.written(System.nanoTime() - start);
+        buffer.reset();
+        buffers.add(buffer);
+      }
+    } catch(InterruptedException | ExecutionException e) {
+      inFlight.forEach(chunk -> chunk.cancel(true));
+      var cause = e.getCause() == null? e : e.getCause();
+      l.accept("Failed to encode chunk: %s".formatted(cause.getMessage()));
+      return false;
+    }
+
+    return true;
+  }
+
+  private ChunkBuffers produceChunk(ChunkBuffers buffer, int index, boolean compress, ZstdDictCompress dict, ChunkCache.Reader cached,
+                                    WorldPreview preview) throws IOException {
+    var event = new ChunkExportEvent();
+    event.begin();
+
+    var start = System.nanoTime();
+    var fromCache = cached != null && !changed.get(index);
+    //XZ order: z is the inner loop
+    var cx = 16 * (index / depth);
+    var cz = 16 * (index % depth);
+    if(fromCache) {
+      cached.read(index, buffer.raw());
+      if(preview != null) preview.cached(cx, cz, buffer.raw().array(), buffer.raw().size(), version);
+    } else {
+      var d = new DataOutputStream(buffer.raw());
+      writeChunk(metrics, d, buffer.section(), region, cx, cz, sel, version, preview);
+      d.flush();
+    }
+    if(version >= DanFormat.SHARED_SECTIONS_VERSION) SectionTable.digests(buffer.raw().array(), buffer.raw().size(), buffer.digests());
+    if(version >= DanFormat.CHECKSUMS_VERSION) SectionTable.checksums(buffer.raw().array(), buffer.raw().size(), buffer.checksums());
+
+    var encoded = System.nanoTime();
+    if(compress) {
+      try(var frame = codec.compress(buffer.frame(), IO_BUFFER_SIZE, dict)) {
+        buffer.raw().writeTo(frame);
+      }
+    }
+    metrics.chunk(fromCache, encoded - start, System.nanoTime() - encoded);
+
+    event.end();
+    if(event.shouldCommit()) {
+      event.x = index / depth;
+      event.z = index % depth;
+      event.cached = fromCache;
+      event.bytes = buffer.raw().size();
+      event.commit();
+    }
+    return buffer;
+  }
+
+  //From version 5 sections are written to `section` first, to prefix them with their length.
+  //From version 6 the chunk's objects follow its sections. preview, unless it's null, takes the top blocks of the chunk.
+  static void writeChunk(ExportMetrics m, DataOutputStream d, ByteArrayOutputStream section, CapturedRegion region, int cx, int cz, Selection sel,
+                                 int version, WorldPreview preview) throws IOException {
+    m.verbose("Writing chunk (%d, %d)...", cx / 16, cz / 16);
+    d.writeShort(cx / 16);
+    d.writeShort(cz / 16);
+
+    var numSections = Math.ceilDiv(sel.max().getBlockY() - sel.min().getBlockY(), 16);
+    d.writeByte((byte)numSections);
+
+    m.verbose("Chunk (%d, %d) has %d sections.", cx, cz, numSections);
+    var encoder = ENCODERS.get();
+    BlockSource source = new RegionBlockSource(region, sel);
+    if(preview != null) source = preview.observe(source, cx, cz);
+    if(version < DanFormat.SHARED_SECTIONS_VERSION) {
+      for(int y = 0; y < numSections; y++) {
+        encoder.encode(m, d, source, cx, y * 16, cz, version);
+      }
+      return;
+    }
+
+    var sd = new DataOutputStream(section);
+    for(int y = 0; y < numSections; y++) {
+      section.reset();
+      encoder.encode(m, sd, source, cx, y * 16, cz, version);
+      sd.flush();
+      DanFormat.writeVarInt(d, section.size());
+      section.writeTo(d);
+    }
+
+    if(version >= DanFormat.OBJECTS_VERSION) {
+      var minX = sel.min().getBlockX() + cx;
+      var minZ = sel.min().getBlockZ() + cz;
+      var objects = region.objectsIn(minX, minZ, sel);
+      m.verbose("Chunk (%d, %d) has %d tile entities and %d markers.", cx / 16, cz / 16, objects.tiles().size(), objects.markers().size());
+      objects.write(d, minX, minZ, sel);
+    }
+  }
+
+  private static void writeExtra(ExportMetrics m, DataOutputStream d, Map<String, byte[]> extra, int version) throws IOException {
+    var len = extra.size();
+    m.verbose("Writing %d extra KV entries.", len);
+    d.writeInt(len);
+
+    for(var key : extra.keySet()) {
+      DanFormat.writeString(d, key);
+      var bytes = extra.get(key);
+      //Up to version 2 the length is a u16, so big values like marker sets need version 3
+      if(version >= 3) {
+        DanFormat.writeVarInt(d, bytes.length);
+      } else if(bytes.length > 0xFFFF) {
+        throw new IOException("Extra \"%s\" is %d bytes, only version 3 onwards can save more than 65535.".formatted(key, bytes.length));
+      } else {
+        d.writeShort((short) bytes.length);
+      }
+      d.write(bytes);
+
+      m.verbose("Extra \"%s\" saved (%d bytes)", key, bytes.length);
+    }
+  }
+
+  private static byte dimensionId(Environment dimension) {
+    return (byte) switch(dimension) {
+      case Environment.NORMAL -> 0;
+      case Environment.NETHER -> 1;
+      case Environment.THE_END -> 2;
+      default -> 0;
+    };
+  }
+
+  static void moveIntoPlace(Path from, Path to) throws IOException {
+    try {
+      Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch(AtomicMoveNotSupportedException _ignored) {
+      //Some filesystems can't replace atomically. The temporary file is complete at this point, so a plain move is still safe.
+      Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package me.danny.danworld;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.bukkit.World.Environment;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Every DanWorld project in the plugin folder, read once and kept in memory, so listing and loading them doesn't touch the disk.
+ *
+ * A thread watches the folder and re-reads projects as their .yml files change, including changes made outside the server.
+ * Their .dan files are watched too, for when each was last exported.
+ */
+final class WorldIndex implements Closeable {
+
+  private static final String PROJECT_SUFFIX = ".dan.yml";
+  private static final String EXPORT_SUFFIX = ".dan";
+
+  /**
+   * What the index knows about a project. width and depth are in chunks, 0 without a selection.
+   * lastExport is in epoch milliseconds, 0 if it was never exported. yml is the parsed project, see DanWorld.fromYaml.
+   */
+  record Entry(String name, Environment dimension, String selWorld, int width, int depth, long lastExport, YamlConfiguration yml) {
+
+    Entry withLastExport(long lastExport) {
+      return new Entry(name, dimension, selWorld, width, depth, lastExport, yml);
+    }
+  }
+
+  private final Path folder;
+  private final Consumer<String> l;
+  //Keyed by world name, i.e. "spawn.dan"
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final WatchService watcher;
+  private final Thread thread;
+
+  WorldIndex(Path folder, Consumer<String> l) throws IOException {
+    this.folder = folder;
+    this.l = l;
+    Files.createDirectories(folder);
+    watcher = folder.getFileSystem().newWatchService();
+    //Registered before the first scan, so nothing changed during it is missed
+    folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    thread = new Thread(this::watch, "DanWorld Index");
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * The project called name, if its .yml was read. Worlds saved moments ago may not be in here yet.
+   */
+  Optional<Entry> get(String name) {
+    return Optional.ofNullable(entries.get(name));
+  }
+
+  Collection<Entry> entries() {
+    return entries.values();
+  }
+
+  /**
+   * Read path again, if it's a project or export. Called by the watcher, and after saving so the index doesn't have to wait for it.
+   */
+  void refresh(Path path) {
+    var fileName = path.getFileName().toString();
+    if(fileName.endsWith(PROJECT_SUFFIX)) {
+      var name = fileName.substring(0, fileName.length() - ".yml".length());
+      if(Files.isRegularFile(path)) {
+        var entry = read(name, path);
+        if(entry != null) entries.put(name, entry);
+      } else {
+        entries.remove(name);
+      }
+    } else if(fileName.endsWith(EXPORT_SUFFIX)) {
+      entries.computeIfPresent(fileName, (name, entry) -> entry.withLastExport(lastModified(path)));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watcher.close();
+  }
+
+  private void watch() {
+    scan();
+    try {
+      while(true) {
+        var key = watcher.take();
+        for(var event : key.pollEvents()) {
+          if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            //Events were dropped, nothing for it but to read everything again
+            scan();
+          } else {
+            refresh(folder.resolve((Path) event.context()));
+          }
+        }
+        key.reset();
+      }
+    } catch(ClosedWatchServiceException | InterruptedException _ignored) {
+      //Plugin disabled
+    }
+  }
+
+  private void scan() {
+    try(var files = Files.newDirectoryStream(folder, "*" + PROJECT_SUFFIX)) {
+      var seen = new HashSet<String>();
+      for(var file : files) {
+        refresh(file);
+        var fileName = file.getFileName().toString();
+        seen.add(fileName.substring(0, fileName.length() - ".yml".length()));
+      }
+      entries.keySet().retainAll(seen);
+    } catch(IOException e) {
+      l.accept("Failed to list worlds: " + e.getMessage());
+    }
+    l.accept("Indexed %d worlds.".formatted(entries.size()));
+  }
+
+  private Entry read(String name, Path file) {
+    var yml = YamlConfiguration.loadConfiguration(file.toFile());
+    //Same check as loading it, anything else is a half-written or foreign file
+    var version = yml.getInt("version");
+    if(version < 1 || version > DanWorld.CURRENT_VERSION) return null;
+
+    Environment dimension;
+    try {
+      dimension = Environment.valueOf(yml.getString("dimension", Environment.NORMAL.name()));
+    } catch(IllegalArgumentException _ignored) {
+      dimension = Environment.NORMAL;
+    }
+
+    var min = blockCoords(yml.getString("selMin"));
+    var max = blockCoords(yml.getString("selMax"));
+    var width = min == null || max == null? 0 : Math.ceilDiv(Math.abs(max[0] - min[0]), 16);
+    var depth = min == null || max == null? 0 : Math.ceilDiv(Math.abs(max[2] - min[2]), 16);
+
+    return new Entry(name, dimension, yml.getString("selWorld"), width, depth, lastModified(file.resolveSibling(name)), yml);
+  }
+
+  //x:y:z as written by Selection.intoStrings, null if it isn't
+  private static int[] blockCoords(String s) {
+    if(s == null) return null;
+    var parts = s.split(":");
+    if(parts.length != 3) return null;
+    try {
+      return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) };
+    } catch(NumberFormatException _ignored) {
+      return null;
+    }
+  }
+
+  private static long lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis();
+    } catch(IOException _ignored) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package me.danny.danworld;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.bukkit.Material;
+
+import me.danny.danworld.core.BlockSource;
+import me.danny.danworld.core.DanFormat;
+import me.danny.danworld.core.SectionDecoder;
+import me.danny.danworld.core.SectionEncoder;
+import me.danny.danworld.core.StateRegistry;
+
+/**
+ * A top-down view of an export: the height and map colour of the top block of every column, see Preview in design.txt.
+ * Map browsers can show every map from these without reading a single .dan file.
+ *
+ * Columns are filled in from the blocks the encoder already fetches, so there's no extra pass over the world.
+ * Every chunk only touches its own columns, so chunks can be encoded in parallel. Chunks taken from the chunk cache
+ * keep their columns from the last export's preview, or are decoded from the cache when it doesn't have them.
+ *
+ * The top block is the highest one a vanilla map would show, air, glass and the like are looked through.
+ */
+final class WorldPreview {
+
+  private static final int MAGIC = 0x44575056; //DWPV
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = Integer.BYTES + 1 + Long.BYTES + 2 * Short.BYTES;
+  //Height of a column without any block a map shows
+  private static final short NO_BLOCK = -1;
+  //Map colour of blocks maps look through
+  private static final int SEE_THROUGH = 0;
+  private static final int UNKNOWN = -1;
+  //Brightness of a column higher than, level with and lower than the one north of it, like vanilla maps
+  private static final int[] SHADES = { 255, 220, 180 };
+  //Cached chunks are decoded on the encoding threads
+  private static final ThreadLocal<SectionDecoder> DECODERS = ThreadLocal.withInitial(SectionDecoder::new);
+
+  //Material id of BukkitStates.REGISTRY -> its map colour as 0RGB, UNKNOWN until it's looked up
+  private static volatile int[] materialColours = new int[0];
+
+  private final int width;
+  private final int depth;
+  //Columns in XZ order, heights from the bottom of the selection
+  private final short[] heights;
+  private final int[] colours;
+  //Whether the columns of every chunk are already those of the last export, so cached chunks don't need decoding
+  private final boolean fromLast;
+
+  private WorldPreview(int width, int depth, boolean fromLast) {
+    this.width = width;
+    this.depth = depth;
+    this.heights = new short[width * 16 * depth * 16];
+    this.colours = new int[heights.length];
+    this.fromLast = fromLast;
+  }
+
+  /**
+   * An empty preview of `width` by `depth` chunks for export number `export`. When chunks will come from the chunk cache,
+   * the preview the last export wrote to file is read first, if it's there.
+   */
+  static WorldPreview start(Path file, long export, int width, int depth, boolean cachedChunks) {
+    if(cachedChunks) {
+      var preview = new WorldPreview(width, depth, true);
+      try {
+        if(preview.read(file, export - 1)) return preview;
+      } catch(IOException _ignored) {
+        //Cached chunks are decoded instead
+      }
+    }
+
+    var preview = new WorldPreview(width, depth, false);
+    Arrays.fill(preview.heights, NO_BLOCK);
+    return preview;
+  }
+
+  /**
+   * Where the thumbnail of a preview saved to file goes.
+   */
+  static Path thumbnailOf(Path file) {
+    var name = file.getFileName().toString();
+    var base = name.endsWith(".preview")? name.substring(0, name.length() - ".preview".length()) : name;
+    return file.resolveSibling(base + ".png");
+  }
+
+  /**
+   * source, taking the top of every column of the chunk at block (cx, cz) of the export from the blocks the encoder asks for.
+   * Its sections have to be asked for bottom up.
+   */
+  BlockSource observe(BlockSource source, int cx, int cz) {
+    clear(cx, cz);
+    return new BlockSource() {
+      @Override
+      public StateRegistry registry() {
+        return source.registry();
+      }
+
+      @Override
+      public void blocks(int x, int y, int z, int[] states) {
+        source.blocks(x, y, z, states);
+        section(x, y, z, states);
+      }
+
+      @Override
+      public void biomes(int x, int y, int z, int step, int[] biomes) {
+        source.biomes(x, y, z, step, biomes);
+      }
+    };
+  }
+
+  /**
+   * Fill in the chunk at block (cx, cz) of the export, taken from the chunk cache as `length` bytes of Chunk data in raw.
+   * Only decodes it when the last export's preview wasn't there to take it from.
+   */
+  void cached(int cx, int cz, byte[] raw, int length, int version) throws IOException {
+    if(fromLast) return;
+
+    clear(cx, cz);
+    var in = new DataInputStream(new ByteArrayInputStream(raw, 0, length));
+    in.skipNBytes(SectionTable.CHUNK_HEADER_SIZE - 1);
+    var sections = in.readUnsignedByte();
+    var decoder = DECODERS.get();
+    var states = new int[SectionEncoder.SECTION_BLOCKS];
+    var biomes = new int[SectionDecoder.BIOME_CELLS];
+    for(int y = 0; y < sections; y++) {
+      //The cache keeps every section prefixed by its length from version 5
+      if(version >= DanFormat.SHARED_SECTIONS_VERSION) DanFormat.readVarInt(in);
+      decoder.decode(in, version, BukkitStates.REGISTRY, states, biomes);
+      section(cx, y * 16, cz, states);
+    }
+  }
+
+  /**
+   * Replace file with this preview of export number `export`, and its thumbnail with one at most thumbnailSize pixels
+   * wide and deep, unless that's 0.
+   */
+  void write(Path file, long export, int thumbnailSize) throws IOException {
+    var bytes = ByteBuffer.allocate(HEADER_SIZE + heights.length * (Short.BYTES + Integer.BYTES));
+    bytes.putInt(MAGIC);
+    bytes.put((byte) VERSION);
+    bytes.putLong(export);
+    bytes.putShort((short) width);
+    bytes.putShort((short) depth);
+    bytes.asShortBuffer().put(heights);
+    bytes.position(bytes.position() + heights.length * Short.BYTES);
+    bytes.asIntBuffer().put(colours);
+    bytes.position(bytes.capacity());
+    bytes.flip();
+
+    var tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try(var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while(bytes.hasRemaining()) {
+          channel.write(bytes);
+        }
+      }
+      WorldExport.moveIntoPlace(tmp, file);
+
+      if(thumbnailSize > 0 && heights.length > 0) {
+        ImageIO.write(thumbnail(thumbnailSize), "png", tmp.toFile());
+        WorldExport.moveIntoPlace(tmp, thumbnailOf(file));
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  //Fills the columns from file if it's the preview of export number `export` with the same size
+  private boolean read(Path file, long export) throws IOException {
+    if(!Files.exists(file)) return false;
+
+    try(var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var bytes = ByteBuffer.allocate(HEADER_SIZE + heights.length * (Short.BYTES + Integer.BYTES));
+      while(bytes.hasRemaining()) {
+        if(channel.read(bytes) < 0) return false;
+      }
+      bytes.flip();
+
+      if(bytes.getInt() != MAGIC || bytes.get() != VERSION || bytes.getLong() != export) return false;
+      if(bytes.getShort() != (short) width || bytes.getShort() != (short) depth) return false;
+      bytes.asShortBuffer().get(heights);
+      bytes.position(bytes.position() + heights.length * Short.BYTES);
+      bytes.asIntBuffer().get(colours);
+      return true;
+    }
+  }
+
+  //Nothing in the columns of the chunk at block (cx, cz) yet
+  private void clear(int cx, int cz) {
+    var sizeZ = depth * 16;
+    for(int x = cx; x < cx + 16; x++) {
+      Arrays.fill(heights, x * sizeZ + cz, x * sizeZ + cz + 16, NO_BLOCK);
+      Arrays.fill(colours, x * sizeZ + cz, x * sizeZ + cz + 16, SEE_THROUGH);
+    }
+  }
+
+  //The section whose lowest corner is (x, y, z) of the export, states in YXZ order
+  private void section(int x, int y, int z, int[] states) {
+    var registry = BukkitStates.REGISTRY;
+    var sizeZ = depth * 16;
+    for(int bx = 0; bx < 16; bx++) {
+      for(int bz = 0; bz < 16; bz++) {
+        var column = (x + bx) * sizeZ + z + bz;
+        for(int by = 15; by >= 0 && y + by > heights[column]; by--) {
+          var colour = materialColour(registry.materialOf(states[by << 8 | bx << 4 | bz]));
+          if(colour == SEE_THROUGH) continue;
+
+          heights[column] = (short) (y + by);
+          colours[column] = colour;
+          break;
+        }
+      }
+    }
+  }
+
+  //Every thumbnail pixel is the average of the columns it covers, shaded by height like a map so terrain stands out.
+  //Pixels without any block are transparent.
+  private BufferedImage thumbnail(int maxSize) {
+    var sizeX = width * 16;
+    var sizeZ = depth * 16;
+    var scale = Math.max(1, Math.ceilDiv(Math.max(sizeX, sizeZ), maxSize));
+    var image = new BufferedImage(Math.ceilDiv(sizeX, scale), Math.ceilDiv(sizeZ, scale), BufferedImage.TYPE_INT_ARGB);
+
+    for(int px = 0; px < image.getWidth(); px++) {
+      for(int pz = 0; pz < image.getHeight(); pz++) {
+        var r = 0L;
+        var g = 0L;
+        var b = 0L;
+        var n = 0;
+        for(int x = px * scale; x < Math.min(sizeX, (px + 1) * scale); x++) {
+          for(int z = pz * scale; z < Math.min(sizeZ, (pz + 1) * scale); z++) {
+            var column = x * sizeZ + z;
+            if(heights[column] == NO_BLOCK) continue;
+
+            var north = z == 0? heights[column] : heights[column - 1];
+            var shade = SHADES[heights[column] > north? 0 : heights[column] == north? 1 : 2];
+            var colour = colours[column];
+            r += ((colour >> 16) & 0xFF) * shade / 255;
+            g += ((colour >> 8) & 0xFF) * shade / 255;
+            b += (colour & 0xFF) * shade / 255;
+            n++;
+          }
+        }
+
+        if(n > 0) image.setRGB(px, pz, 0xFF000000 | (int) (r / n) << 16 | (int) (g / n) << 8 | (int) (b / n));
+      }
+    }
+    return image;
+  }
+
+  private static int materialColour(int material) {
+    var known = materialColours;
+    if(material < known.length && known[material] != UNKNOWN) return known[material];
+
+    var mat = Material.matchMaterial(new String(BukkitStates.REGISTRY.materialKey(material), StandardCharsets.UTF_8));
+    var colour = mat == null || !mat.isBlock() || mat.isAir()? SEE_THROUGH : mat.createBlockData().getMapColor().asRGB();
+    remember(material, colour);
+    return colour;
+  }
+
+  //Racing threads look up the same colour, so losing one of their writes only means looking it up again
+  private static synchronized void remember(int material, int colour) {
+    var known = materialColours;
+    if(material >= known.length) {
+      var old = known.length;
+      known = Arrays.copyOf(known, Math.max(material + 1, old * 2));
+      Arrays.fill(known, old, known.length, UNKNOWN);
+    }
+    known[material] = colour;
+    materialColours = known;
+  }
+}
@@ -0,0 +1,84 @@
+package me.danny.danworld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import me.danny.danworld.core.DanFormat;
+
+/**
+ * Tells which chunks of the live world no longer match an export, from the section checksums stored with it.
+ * See Checksums in design.txt.
+ *
+ * Sections are encoded the same way exporting them does, but only hashed, so nothing is compressed or written
+ * and the encoding threads don't wait on a writer.
+ */
+final class WorldVerify {
+
+  /**
+   * The checksums of an export, `sections` for each of its chunks, in XZ order then Y.
+   */
+  record Stored(int version, int width, int depth, int sections, int[] checksums) {
+
+    /**
+     * Read the checksums of the .dan file at file. Fails if it was exported before version 7.
+     */
+    static Stored read(Path file) throws IOException {
+      try(var reader = DanFileReader.open(file)) {
+        var version = reader.version();
+        if(version < DanFormat.CHECKSUMS_VERSION) {
+          throw new IOException("It was exported with version %d, checksums are stored from version %d.".formatted(version, DanFormat.CHECKSUMS_VERSION));
+        }
+
+        var checksums = reader.checksums();
+        var chunks = reader.width() * reader.depth();
+        if(chunks > 0 && checksums.length % chunks != 0) throw new IOException("Its checksums don't add up to whole chunks.");
+        return new Stored(version, reader.width(), reader.depth(), chunks == 0? 0 : checksums.length / chunks, checksums);
+      }
+    }
+  }
+
+  private WorldVerify() {}
+
+  /**
+   * Indices, in XZ order, of the chunks in region that don't match stored. region is a capture of every chunk of sel,
+   * which is `width` by `depth` chunks. Chunks are encoded in parallel on pool.
+   */
+  static List<Integer> differing(Stored stored, CapturedRegion region, Selection sel, int width, int depth, ExportMetrics m, ForkJoinPool pool) {
+    var sections = Math.ceilDiv(sel.max().getBlockY() - sel.min().getBlockY(), 16);
+    if(stored.width() != width || stored.depth() != depth || stored.sections() != sections) {
+      throw new IllegalStateException("The selection changed since the export, there is nothing to compare it with.");
+    }
+
+    return pool.submit(() -> IntStream.range(0, width * depth).parallel()
+      .filter(i -> !matches(stored, region, sel, i, m))
+      .boxed()
+      .toList()).join();
+  }
+
+  private static boolean matches(Stored stored, CapturedRegion region, Selection sel, int index, ExportMetrics m) {
+    var raw = new ByteArrayOutputStream();
+    var checksums = new int[WorldExport.MAX_SECTIONS];
+    int count;
+    try {
+      //XZ order: z is the inner loop
+      var d = new DataOutputStream(raw);
+      WorldExport.writeChunk(m, d, new ByteArrayOutputStream(), region, 16 * (index / stored.depth()), 16 * (index % stored.depth()), sel, stored.version(), null);
+      d.flush();
+      var bytes = raw.toByteArray();
+      count = SectionTable.checksums(bytes, bytes.length, checksums);
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    for(int y = 0; y < count; y++) {
+      if(checksums[y] != stored.checksums()[index * stored.sections() + y]) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,24 @@
+plugins {
+    `java-library`
+}
+
+group = "me.danny"
+version = "1.0-SNAPSHOT"
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_21
+    targetCompatibility = JavaVersion.VERSION_21
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    // Decoded states and biomes are ids of a StateRegistry, so the core is part of the API
+    api("me.danny:DanWorldCore:1.0-SNAPSHOT")
+    // Only needed to read framed files compressed with lz4 or zstd, add them to the classpath to read those.
+    // Keep the versions in sync with DanWorldExport
+    compileOnly("org.lz4:lz4-java:1.8.0")
+    compileOnly("com.github.luben:zstd-jni:1.5.5-11")
+}
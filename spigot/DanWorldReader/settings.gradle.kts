@@ -0,0 +1,3 @@
+rootProject.name = "DanWorldReader"
+
+includeBuild("../DanWorldCore")
@@ -0,0 +1,215 @@
+package me.danny.danworld.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import me.danny.danworld.core.DanFormat;
+import me.danny.danworld.core.SectionDecoder;
+import me.danny.danworld.core.SectionEncoder;
+
+/**
+ * The chunk a DanReader is at, read one section at a time, bottom up. See Chunk data in design.txt.
+ *
+ * This is a cursor, not a copy: a reader hands out the same DanChunk for every chunk, and it's only valid until the next
+ * chunk is asked for. Sections are only decoded when asked to, so from version 5 skipping one costs reading its reference.
+ * Up to version 4 sections aren't prefixed with their length, and skipping one still decodes it.
+ *
+ * Decoded states and biomes are ids of the reader's StateRegistry, see SectionDecoder.
+ */
+public final class DanChunk {
+
+  //Decoded shared sections kept around, so sections repeated all over a world are only decoded once
+  private static final int DECODED_SECTIONS = 256;
+  private static final int DECODED_SIZE = SectionEncoder.SECTION_BLOCKS + SectionDecoder.BIOME_CELLS;
+
+  //A ByteArrayInputStream that can be pointed at other bytes, so one DataInputStream reads any number of frames or sections
+  private static final class ByteView extends ByteArrayInputStream {
+    ByteView() {
+      super(new byte[0]);
+    }
+
+    void point(byte[] bytes, int offset, int length) {
+      buf = bytes;
+      pos = offset;
+      count = offset + length;
+      mark = offset;
+    }
+  }
+
+  private final DanReader reader;
+  private final int version;
+  private final SectionDecoder decoder = new SectionDecoder();
+  //Framed layout: this cursor's own frame buffers, and a view of the frame of the current chunk. Null in the stream layout.
+  private final Frames frames;
+  private final ByteView frame = new ByteView();
+  private final DataInputStream in;
+  //Version 5: a view of the table entry being decoded
+  private final ByteView section = new ByteView();
+  private final DataInputStream sectionIn = new DataInputStream(section);
+  //Table index -> decoded states followed by biomes, least recently used first.
+  //The arrays of evicted entries are reused for the next one decoded.
+  private int[] spare;
+  private final Map<Integer, int[]> decoded = new LinkedHashMap<>(DECODED_SECTIONS, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+      if(size() <= DECODED_SECTIONS) return false;
+      spare = eldest.getValue();
+      return true;
+    }
+  };
+  //Up to version 4: where skipped sections are decoded to
+  private int[] skippedStates;
+  private int[] skippedBiomes;
+
+  private int index;
+  private int x;
+  private int z;
+  private int sections;
+  private int y;
+  //From version 5 the table index of the current section, before that whether it's still to be read
+  private int id;
+  private boolean pending;
+  private boolean objectsRead;
+
+  DanChunk(DanReader reader, Frames frames, DataInputStream stream) {
+    this.reader = reader;
+    this.version = reader.version();
+    this.frames = frames;
+    this.in = frames == null? stream : new DataInputStream(frame);
+  }
+
+  //Start reading chunk `index`. In the stream layout the stream has to be at its Chunk data.
+  void open(int index) throws IOException {
+    if(frames != null) {
+      var length = frames.read(reader.frameOffset(index), reader.frameLength(index));
+      frame.point(frames.bytes(), 0, length);
+    }
+
+    this.index = index;
+    x = in.readUnsignedShort();
+    z = in.readUnsignedShort();
+    sections = in.readUnsignedByte();
+    y = -1;
+    pending = false;
+    objectsRead = false;
+  }
+
+  //Read past whatever is left of the chunk, so the stream is at the next one
+  void finish() throws IOException {
+    while(nextSection());
+    if(objectsRead) return;
+
+    objectsRead = true;
+    if(version >= DanFormat.OBJECTS_VERSION) DanObjects.skip(in);
+  }
+
+  void end() {
+    if(frames != null) frames.end();
+  }
+
+  /**
+   * Index of the chunk in XZ order, the order they're stored in.
+   */
+  public int index() {
+    return index;
+  }
+
+  /**
+   * Chunk coordinates, from the lowest corner of the selection.
+   */
+  public int x() {
+    return x;
+  }
+
+  public int z() {
+    return z;
+  }
+
+  /**
+   * Sections of the chunk, the same for every chunk of a file.
+   */
+  public int sections() {
+    return sections;
+  }
+
+  /**
+   * The section nextSection moved to, 0 for the lowest one.
+   */
+  public int y() {
+    return y;
+  }
+
+  /**
+   * Move to the next section up, skipping the current one if it wasn't decoded. False once every section was passed.
+   */
+  public boolean nextSection() throws IOException {
+    if(pending) skipPending();
+    if(y + 1 >= sections) return false;
+    y++;
+
+    if(version < DanFormat.SHARED_SECTIONS_VERSION) {
+      pending = true;
+      return true;
+    }
+
+    id = reader.table().readRef(in, frames != null);
+    reader.check(index, y, id);
+    return true;
+  }
+
+  /**
+   * Decode the current section. states receives the state of every block in YXZ order, biomes the biome of every
+   * 4x4x4 cell in YXZ order, see SectionDecoder.decode.
+   */
+  public void decode(int[] states, int[] biomes) throws IOException {
+    if(y < 0) throw new IllegalStateException("No section to decode, call nextSection first.");
+
+    if(version < DanFormat.SHARED_SECTIONS_VERSION) {
+      if(!pending) throw new IllegalStateException("Sections before version 5 can only be decoded once.");
+      pending = false;
+      decoder.decode(in, version, reader.registry(), states, biomes);
+      return;
+    }
+
+    var cached = decoded.get(id);
+    if(cached == null) {
+      var table = reader.table();
+      section.point(table.bytes(), table.offset(id), table.length(id));
+      decoder.decode(sectionIn, version, reader.registry(), states, biomes);
+
+      cached = spare != null? spare : new int[DECODED_SIZE];
+      spare = null;
+      System.arraycopy(states, 0, cached, 0, SectionEncoder.SECTION_BLOCKS);
+      System.arraycopy(biomes, 0, cached, SectionEncoder.SECTION_BLOCKS, SectionDecoder.BIOME_CELLS);
+      decoded.put(id, cached);
+      return;
+    }
+
+    System.arraycopy(cached, 0, states, 0, SectionEncoder.SECTION_BLOCKS);
+    System.arraycopy(cached, SectionEncoder.SECTION_BLOCKS, biomes, 0, SectionDecoder.BIOME_CELLS);
+  }
+
+  /**
+   * The tile entities and markers of the chunk, skipping any sections left. Empty before version 6.
+   * Can be read once per chunk, and never has to be: moving to the next chunk skips them.
+   */
+  public DanObjects objects() throws IOException {
+    while(nextSection());
+    if(objectsRead) throw new IllegalStateException("Objects of a chunk can only be read once.");
+
+    objectsRead = true;
+    return version < DanFormat.OBJECTS_VERSION? DanObjects.NONE : DanObjects.read(in);
+  }
+
+  private void skipPending() throws IOException {
+    if(skippedStates == null) {
+      skippedStates = new int[SectionEncoder.SECTION_BLOCKS];
+      skippedBiomes = new int[SectionDecoder.BIOME_CELLS];
+    }
+    pending = false;
+    decoder.decode(in, version, reader.registry(), skippedStates, skippedBiomes);
+  }
+}
@@ -0,0 +1,86 @@
+package me.danny.danworld.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.danny.danworld.core.DanFormat;
+
+/**
+ * A marker set extra, see Marker set in design.txt. Every coordinate comes in its own array, read with one bulk copy,
+ * so loading thousands of spawns costs about as much as loading one.
+ *
+ * Marker i is at (x[i], y[i], z[i]) from the lowest corner of the selection, and tagged tags.get(tagIds[i] & 0xFFFF),
+ * see tag.
+ */
+public record DanMarkerSet(List<String> tags, double[] x, double[] y, double[] z, float[] yaw, float[] pitch, short[] tagIds) {
+
+  private static final int MAGIC = 0x44574D53; //DWMS
+  private static final int VERSION = 1;
+  private static final int MARKER_SIZE = 3 * Double.BYTES + 2 * Float.BYTES + Short.BYTES;
+
+  /**
+   * Whether value, the value of an extra, is a marker set.
+   */
+  public static boolean isMarkerSet(byte[] value) {
+    return value.length >= Integer.BYTES && ByteBuffer.wrap(value).getInt() == MAGIC;
+  }
+
+  public static DanMarkerSet read(byte[] value) throws IOException {
+    if(!isMarkerSet(value)) throw new IOException("Extra isn't a marker set.");
+
+    var in = new ByteArrayInputStream(value);
+    var d = new DataInputStream(in);
+    d.skipNBytes(Integer.BYTES);
+    var version = d.readUnsignedByte();
+    if(version != VERSION) throw new IOException("Marker set version %d can't be read.".formatted(version));
+
+    var tagCount = DanFormat.readVarInt(d);
+    var tags = new ArrayList<String>(tagCount);
+    for(int i = 0; i < tagCount; i++) {
+      tags.add(DanFormat.readText(d));
+    }
+    var size = d.readInt();
+
+    var columns = ByteBuffer.wrap(value, value.length - in.available(), in.available());
+    if(size < 0 || columns.remaining() != (long) size * MARKER_SIZE) {
+      throw new IOException("Marker set doesn't hold the %d markers it says it does.".formatted(size));
+    }
+    var x = new double[size];
+    var y = new double[size];
+    var z = new double[size];
+    var yaw = new float[size];
+    var pitch = new float[size];
+    var tagIds = new short[size];
+    columns.asDoubleBuffer().get(x);
+    columns.position(columns.position() + size * Double.BYTES);
+    columns.asDoubleBuffer().get(y);
+    columns.position(columns.position() + size * Double.BYTES);
+    columns.asDoubleBuffer().get(z);
+    columns.position(columns.position() + size * Double.BYTES);
+    columns.asFloatBuffer().get(yaw);
+    columns.position(columns.position() + size * Float.BYTES);
+    columns.asFloatBuffer().get(pitch);
+    columns.position(columns.position() + size * Float.BYTES);
+    columns.asShortBuffer().get(tagIds);
+
+    for(var id : tagIds) {
+      if((id & 0xFFFF) >= tagCount) throw new IOException("Marker set refers to tag %d of %d.".formatted(id & 0xFFFF, tagCount));
+    }
+    return new DanMarkerSet(List.copyOf(tags), x, y, z, yaw, pitch, tagIds);
+  }
+
+  public int size() {
+    return x.length;
+  }
+
+  /**
+   * Tag of marker i.
+   */
+  public String tag(int i) {
+    return tags.get(tagIds[i] & 0xFFFF);
+  }
+}
@@ -0,0 +1,93 @@
+package me.danny.danworld.reader;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.danny.danworld.core.DanFormat;
+
+/**
+ * The tile entities and marker entities stored with a chunk from version 6, see Chunk objects in design.txt.
+ */
+public record DanObjects(List<TileEntity> tileEntities, List<Marker> markers) {
+
+  public static final DanObjects NONE = new DanObjects(List.of(), List.of());
+
+  /**
+   * A tile entity at block (x, z) of its chunk, 0 - 15, and y blocks above the bottom of the selection.
+   * key is the namespaced key of the block, i.e. minecraft:oak_sign, and name its custom name, empty without one.
+   * lines is the text of a sign, front then back, and empty for anything else.
+   */
+  public record TileEntity(int x, int y, int z, String key, String name, List<String> lines) {}
+
+  /**
+   * A marker, display entity or marker armor stand, at (x, y, z) from the lowest corner of the selection.
+   * key is the namespaced key of its entity type, i.e. minecraft:marker, and name its custom name, empty without one.
+   */
+  public record Marker(String key, String name, List<String> tags, double x, double y, double z, float yaw, float pitch) {}
+
+  static DanObjects read(DataInputStream in) throws IOException {
+    var tileCount = DanFormat.readVarInt(in);
+    var tiles = new ArrayList<TileEntity>();
+    for(int i = 0; i < tileCount; i++) {
+      var x = in.readUnsignedByte();
+      var z = in.readUnsignedByte();
+      var y = DanFormat.readVarInt(in);
+      var key = DanFormat.readString(in);
+      var name = DanFormat.readText(in);
+      var lines = new ArrayList<String>();
+      var lineCount = in.readUnsignedByte();
+      for(int line = 0; line < lineCount; line++) {
+        lines.add(DanFormat.readText(in));
+      }
+      tiles.add(new TileEntity(x, y, z, key, name, List.copyOf(lines)));
+    }
+
+    var markerCount = DanFormat.readVarInt(in);
+    var markers = new ArrayList<Marker>();
+    for(int i = 0; i < markerCount; i++) {
+      var key = DanFormat.readString(in);
+      var name = DanFormat.readText(in);
+      var tags = new ArrayList<String>();
+      var tagCount = DanFormat.readVarInt(in);
+      for(int tag = 0; tag < tagCount; tag++) {
+        tags.add(DanFormat.readText(in));
+      }
+      markers.add(new Marker(key, name, List.copyOf(tags), in.readDouble(), in.readDouble(), in.readDouble(), in.readFloat(), in.readFloat()));
+    }
+
+    if(tiles.isEmpty() && markers.isEmpty()) return NONE;
+    return new DanObjects(List.copyOf(tiles), List.copyOf(markers));
+  }
+
+  /**
+   * Skip the Chunk objects at the start of in without keeping any of them.
+   */
+  static void skip(DataInputStream in) throws IOException {
+    var tiles = DanFormat.readVarInt(in);
+    for(int i = 0; i < tiles; i++) {
+      //Position in the column, then height
+      in.skipNBytes(2);
+      DanFormat.readVarInt(in);
+      in.skipNBytes(in.readUnsignedByte());
+      in.skipNBytes(DanFormat.readVarInt(in));
+      var lines = in.readUnsignedByte();
+      for(int line = 0; line < lines; line++) {
+        in.skipNBytes(DanFormat.readVarInt(in));
+      }
+    }
+
+    var markers = DanFormat.readVarInt(in);
+    for(int i = 0; i < markers; i++) {
+      in.skipNBytes(in.readUnsignedByte());
+      in.skipNBytes(DanFormat.readVarInt(in));
+      var tags = DanFormat.readVarInt(in);
+      for(int tag = 0; tag < tags; tag++) {
+        in.skipNBytes(DanFormat.readVarInt(in));
+      }
+      //x, y, z, yaw and pitch
+      in.skipNBytes(3 * Double.BYTES + 2 * Float.BYTES);
+    }
+  }
+}
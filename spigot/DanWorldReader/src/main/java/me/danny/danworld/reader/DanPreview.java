@@ -0,0 +1,67 @@
+package me.danny.danworld.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The top-down preview written next to an export, see Preview in design.txt. Reading one is two bulk copies,
+ * so a map browser can load the previews of every map without touching their .dan files.
+ *
+ * Columns are in XZ order, `depth * 16` per row of x. heights are blocks above the bottom of the selection,
+ * colours the map colour of the top block as 0RGB.
+ */
+public record DanPreview(long export, int width, int depth, short[] heights, int[] colours) {
+
+  private static final int MAGIC = 0x44575056; //DWPV
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = Integer.BYTES + 1 + Long.BYTES + 2 * Short.BYTES;
+  private static final short NO_BLOCK = -1;
+
+  public static DanPreview read(Path file) throws IOException {
+    try(var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(channel, header);
+      if(header.getInt() != MAGIC) throw new IOException("Not a DanWorld preview.");
+      var version = header.get();
+      if(version != VERSION) throw new IOException("Preview version %d can't be read.".formatted(version));
+      var export = header.getLong();
+      var width = header.getShort() & 0xFFFF;
+      var depth = header.getShort() & 0xFFFF;
+
+      var columns = width * 16 * depth * 16;
+      var body = ByteBuffer.allocate(columns * (Short.BYTES + Integer.BYTES));
+      readFully(channel, body);
+      var heights = new short[columns];
+      var colours = new int[columns];
+      body.asShortBuffer().get(heights);
+      body.position(columns * Short.BYTES);
+      body.asIntBuffer().get(colours);
+      return new DanPreview(export, width, depth, heights, colours);
+    }
+  }
+
+  /**
+   * Height of the top block of column (x, z), in blocks from the corner of the selection. -1 if nothing a map shows is there.
+   */
+  public int height(int x, int z) {
+    var height = heights[x * depth * 16 + z];
+    return height == NO_BLOCK? -1 : height;
+  }
+
+  /**
+   * Map colour of the top block of column (x, z) as 0RGB, 0 if nothing a map shows is there.
+   */
+  public int colour(int x, int z) {
+    return colours[x * depth * 16 + z];
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while(buffer.hasRemaining()) {
+      if(channel.read(buffer) < 0) throw new IOException("Preview is truncated.");
+    }
+    buffer.flip();
+  }
+}
@@ -0,0 +1,349 @@
+package me.danny.danworld.reader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import me.danny.danworld.core.DanFormat;
+import me.danny.danworld.core.DanHeader;
+import me.danny.danworld.core.SharedSections;
+import me.danny.danworld.core.StateRegistry;
+
+/**
+ * Pulls the chunks of a .dan file one at a time, in XZ order, in either layout and any version. See design.txt.
+ *
+ * <pre>
+ * try(var reader = DanReader.open(file)) {
+ *   DanChunk chunk;
+ *   while((chunk = reader.nextChunk()) != null) {
+ *     while(chunk.nextSection()) {
+ *       if(chunk.y() >= 4) chunk.decode(states, biomes);
+ *     }
+ *   }
+ * }
+ * </pre>
+ *
+ * Nothing is held per chunk: chunks are decoded straight from the inflater into the caller's arrays, and every buffer
+ * along the way is reused. What memory a reader takes grows only with the section table from version 5, which holds each
+ * distinct section once, and the checksums of framed version 7 files, 4 bytes per section.
+ *
+ * Chunks of framed files can be decoded on several threads at once with forEachChunk. Framed version 7 files have their
+ * checksums checked as sections are reached, stream files are already covered by the CRC-32 at the end of their GZIP stream.
+ */
+public final class DanReader implements Closeable {
+
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Something done with every chunk, see forEachChunk.
+   */
+  @FunctionalInterface
+  public interface ChunkTask {
+    void accept(DanChunk chunk) throws IOException;
+  }
+
+  private final int version;
+  private final int dimension;
+  private final int width;
+  private final int depth;
+  private final DanHeader header;
+  private final StateRegistry registry;
+
+  //Stream layout: the one stream every chunk is read from
+  private final DataInputStream stream;
+  //Framed layout: the file, and where each frame is
+  private final FileChannel channel;
+  private final int codec;
+  private final byte[] dictionary;
+  private final long[] offsets;
+  private final int[] lengths;
+
+  //Version 5 onwards
+  private SharedSections table;
+  //Framed version 7: the checksum of every section in the file, `perChunk` for each chunk, and of every table entry
+  private int[] checksums;
+  private int[] tableChecksums;
+  private int perChunk;
+
+  private final DanChunk cursor;
+  private final AtomicInteger next = new AtomicInteger();
+  private boolean cursorOpen;
+  private Map<String, byte[]> extras;
+
+  private DanReader(DanHeader header, StateRegistry registry, DataInputStream stream, FileChannel channel) throws IOException {
+    this.version = header.version();
+    this.dimension = header.dimension();
+    this.width = header.width();
+    this.depth = header.depth();
+    this.header = header;
+    this.registry = registry;
+    this.stream = stream;
+    this.channel = channel;
+    this.codec = header.codec();
+    this.dictionary = header.dictionary();
+    this.offsets = header.offsets();
+    this.lengths = header.lengths();
+    cursor = new DanChunk(this, channel == null? null : new Frames(channel, codec, dictionary), stream);
+  }
+
+  /**
+   * Open the .dan file at file, with a registry of its own.
+   */
+  public static DanReader open(Path file) throws IOException {
+    return open(file, new StateRegistry());
+  }
+
+  /**
+   * Open the .dan file at file. Decoded sections are ids of registry, which can be shared with other readers.
+   */
+  public static DanReader open(Path file, StateRegistry registry) throws IOException {
+    var in = new BufferedInputStream(Files.newInputStream(file), IO_BUFFER_SIZE);
+    try {
+      if(DanHeader.isStream(in)) {
+        var d = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in, IO_BUFFER_SIZE), IO_BUFFER_SIZE));
+        var header = DanHeader.readStream(d);
+        var reader = new DanReader(header, registry, d, null);
+        if(header.version() >= DanFormat.SHARED_SECTIONS_VERSION) reader.table = new SharedSections();
+        return reader;
+      }
+    } catch(IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+
+    in.close();
+    return openFramed(file, registry);
+  }
+
+  private static DanReader openFramed(Path file, StateRegistry registry) throws IOException {
+    var channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      var header = DanHeader.readFramed(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), IO_BUFFER_SIZE)));
+      var reader = new DanReader(header, registry, null, channel);
+      if(header.version() >= DanFormat.SHARED_SECTIONS_VERSION) {
+        var frames = new Frames(channel, header.codec(), header.dictionary());
+        try {
+          var tableFrame = header.tableFrame();
+          var length = frames.read(header.offsets()[tableFrame], header.lengths()[tableFrame]);
+          reader.table = new SharedSections(frames.bytes(), length);
+          if(header.version() >= DanFormat.CHECKSUMS_VERSION) reader.readChecksums(frames);
+        } finally {
+          frames.end();
+        }
+      }
+      return reader;
+    } catch(IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public int version() {
+    return version;
+  }
+
+  /**
+   * DanDimension id, see design.txt.
+   */
+  public int dimension() {
+    return dimension;
+  }
+
+  /**
+   * Chunks along x.
+   */
+  public int width() {
+    return width;
+  }
+
+  /**
+   * Chunks along z.
+   */
+  public int depth() {
+    return depth;
+  }
+
+  public int chunkCount() {
+    return width * depth;
+  }
+
+  /**
+   * Whether every chunk is compressed on its own, so forEachChunk can decode them in parallel.
+   */
+  public boolean isFramed() {
+    return channel != null;
+  }
+
+  public StateRegistry registry() {
+    return registry;
+  }
+
+  /**
+   * Move to the next chunk, skipping whatever wasn't read of the last one. Null once every chunk was read.
+   * The returned chunk is the same object every time, and only valid until this is called again.
+   */
+  public DanChunk nextChunk() throws IOException {
+    //The stream has to be read up to the next chunk, frames can be read in any order
+    if(cursorOpen && stream != null) cursor.finish();
+    cursorOpen = false;
+
+    var index = claim();
+    if(index == -1) return null;
+    cursor.open(index);
+    cursorOpen = true;
+    return cursor;
+  }
+
+  /**
+   * Run task for every chunk not read yet, on `threads` threads at once. Each thread has a DanChunk of its own,
+   * valid until task returns, and chunks are handed out in XZ order but can finish in any order.
+   * task has to be thread safe. The registry already is.
+   *
+   * The stream layout can only be read in order, so its chunks are read one at a time on the calling thread.
+   * Stops at the first chunk that fails, and throws what it failed with.
+   */
+  public void forEachChunk(int threads, ChunkTask task) throws IOException {
+    if(stream != null || threads <= 1) {
+      DanChunk chunk;
+      while((chunk = nextChunk()) != null) {
+        task.accept(chunk);
+      }
+      return;
+    }
+
+    var failed = new AtomicBoolean();
+    var workers = new ArrayList<Future<Void>>(threads);
+    try(var pool = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("DanReader-", 0).factory())) {
+      for(int t = 0; t < threads; t++) {
+        workers.add(pool.submit(() -> {
+          var chunk = new DanChunk(this, new Frames(channel, codec, dictionary), null);
+          try {
+            int index;
+            while(!failed.get() && (index = claim()) != -1) {
+              chunk.open(index);
+              task.accept(chunk);
+            }
+          } catch(IOException | RuntimeException e) {
+            failed.set(true);
+            throw e;
+          } finally {
+            chunk.end();
+          }
+          return null;
+        }));
+      }
+    }
+
+    rethrowFailure(workers);
+  }
+
+  /**
+   * Every extra of the file, by key. See DanExtra in design.txt.
+   * The stream layout stores them after every chunk, so this skips all chunks not read yet, and none can be read afterwards.
+   */
+  public Map<String, byte[]> extras() throws IOException {
+    if(extras != null) return extras;
+
+    if(stream != null) {
+      while(nextChunk() != null);
+      extras = header.readExtras(stream);
+      return extras;
+    }
+
+    var frames = new Frames(channel, codec, dictionary);
+    try {
+      var index = header.extrasFrame();
+      var length = frames.read(offsets[index], lengths[index]);
+      extras = header.readExtras(new DataInputStream(new ByteArrayInputStream(frames.bytes(), 0, length)));
+      return extras;
+    } finally {
+      frames.end();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    cursor.end();
+    if(stream != null) stream.close();
+    if(channel != null) channel.close();
+  }
+
+  SharedSections table() {
+    return table;
+  }
+
+  long frameOffset(int index) {
+    return offsets[index];
+  }
+
+  int frameLength(int index) {
+    return lengths[index];
+  }
+
+  //Fail if section y of chunk `index` isn't what its checksum says, when table entry id is what it refers to
+  void check(int index, int y, int id) throws IOException {
+    if(checksums == null) return;
+
+    if(y >= perChunk) throw new IOException("There are more sections than checksums.");
+    if(checksums[index * perChunk + y] != tableChecksums[id]) {
+      throw new IOException("Section %d of chunk %d doesn't match its checksum, the file is corrupt.".formatted(y, index));
+    }
+  }
+
+  //Next chunk to read, -1 once they're all taken
+  private int claim() {
+    var index = next.getAndUpdate(i -> Math.min(i + 1, width * depth));
+    return index < width * depth? index : -1;
+  }
+
+  private void readChecksums(Frames frames) throws IOException {
+    var index = header.checksumsFrame();
+    var length = frames.read(offsets[index], lengths[index]);
+    checksums = header.readChecksums(new DataInputStream(new ByteArrayInputStream(frames.bytes(), 0, length)));
+    perChunk = width * depth == 0? 0 : checksums.length / (width * depth);
+    tableChecksums = table.checksums();
+  }
+
+  /**
+   * The marker set extra at key, see DanMarkerSet. Null if the file has no extra there, see extras for what that costs.
+   */
+  public DanMarkerSet markerSet(String key) throws IOException {
+    var value = extras().get(key);
+    return value == null? null : DanMarkerSet.read(value);
+  }
+
+  private static void rethrowFailure(List<Future<Void>> workers) throws IOException {
+    for(var worker : workers) {
+      try {
+        worker.get();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading chunks.");
+      } catch(ExecutionException e) {
+        switch(e.getCause()) {
+          case IOException io -> throw io;
+          case RuntimeException re -> throw re;
+          case Error err -> throw err;
+          default -> throw new IOException(e.getCause());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package me.danny.danworld.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+
+import me.danny.danworld.core.DanHeader;
+
+/**
+ * Decompresses the frames of a framed .dan file into one buffer, reused from frame to frame.
+ *
+ * GZIP and Deflate frames are inflated straight from the compressed bytes with one Inflater, so reading a frame
+ * allocates nothing once the buffers have grown to the biggest frame. LZ4 and Zstandard go through their libraries'
+ * streams, which are only needed on the classpath for files that use them. Not thread safe, every thread reading
+ * frames has one of its own.
+ */
+final class Frames {
+
+  //Codec byte of the header, see design.txt
+  static final int NONE = DanHeader.NONE;
+  static final int GZIP = DanHeader.GZIP;
+  static final int DEFLATE = DanHeader.DEFLATE;
+  static final int LZ4 = DanHeader.LZ4;
+  static final int ZSTD = DanHeader.ZSTD;
+
+  private static final int INITIAL_SIZE = 64 * 1024;
+  private static final int GZIP_HEADER_SIZE = 10;
+  private static final int GZIP_TRAILER_SIZE = 8;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+  private static final int FHCRC = 2;
+
+  //Kept out of Frames itself, so its bytecode can be verified without either library on the classpath
+  private static final class Libraries {
+    static InputStream open(int codec, InputStream in, byte[] dictionary) throws IOException {
+      if(codec == LZ4) return new LZ4FrameInputStream(in);
+
+      var zstd = new ZstdInputStream(in);
+      if(dictionary.length > 0) zstd.setDict(dictionary);
+      return zstd;
+    }
+  }
+
+  private final FileChannel channel;
+  private final int codec;
+  private final byte[] dictionary;
+  private ByteBuffer compressed = ByteBuffer.allocate(INITIAL_SIZE);
+  private byte[] out = new byte[INITIAL_SIZE];
+  //GZIP frames are inflated without their header and trailer, Deflate ones with the zlib wrapper
+  private Inflater inflater;
+  private final CRC32 crc = new CRC32();
+
+  Frames(FileChannel channel, int codec, byte[] dictionary) throws IOException {
+    if(codec < NONE || codec > ZSTD) throw new IOException("Unknown frame codec " + codec);
+    this.channel = channel;
+    this.codec = codec;
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Decompress the frame of `length` bytes at offset. Returns its decompressed length,
+   * the bytes are at the start of bytes() until the next frame is read.
+   */
+  int read(long offset, int length) throws IOException {
+    if(compressed.capacity() < length) compressed = ByteBuffer.allocate(Math.max(length, compressed.capacity() * 2));
+    compressed.clear().limit(length);
+    while(compressed.hasRemaining()) {
+      if(channel.read(compressed, offset + compressed.position()) < 0) throw new IOException("File is truncated.");
+    }
+
+    var in = compressed.array();
+    return switch(codec) {
+      case NONE -> length;
+      case GZIP -> gunzip(in, length);
+      case DEFLATE -> inflate(in, 0, length, false);
+      default -> readAll(in, length);
+    };
+  }
+
+  byte[] bytes() {
+    return codec == NONE? compressed.array() : out;
+  }
+
+  void end() {
+    if(inflater != null) inflater.end();
+  }
+
+  private int gunzip(byte[] in, int length) throws IOException {
+    var size = inflate(in, gzipHeader(in, length), length, true);
+    var trailer = length - inflater.getRemaining();
+    if(length - trailer < GZIP_TRAILER_SIZE) throw new IOException("Frame is truncated.");
+
+    crc.reset();
+    crc.update(out, 0, size);
+    if(littleEndianInt(in, trailer) != (int) crc.getValue() || littleEndianInt(in, trailer + 4) != size) {
+      throw new IOException("Frame doesn't match its GZIP checksum, the file is corrupt.");
+    }
+    return size;
+  }
+
+  private int inflate(byte[] in, int from, int to, boolean nowrap) throws IOException {
+    if(inflater == null) inflater = new Inflater(nowrap);
+    inflater.reset();
+    inflater.setInput(in, from, to - from);
+
+    var size = 0;
+    try {
+      while(!inflater.finished()) {
+        if(size == out.length) out = Arrays.copyOf(out, size * 2);
+        var n = inflater.inflate(out, size, out.length - size);
+        if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Frame is truncated.");
+        size += n;
+      }
+    } catch(DataFormatException e) {
+      throw new IOException("Frame is corrupt: " + e.getMessage(), e);
+    }
+    return size;
+  }
+
+  //Where the deflate data of the GZIP member at the start of in begins
+  private static int gzipHeader(byte[] in, int length) throws IOException {
+    if(length < GZIP_HEADER_SIZE || in[0] != (byte) 0x1f || in[1] != (byte) 0x8b || in[2] != 8) throw new IOException("Frame isn't GZIP.");
+
+    var flags = in[3];
+    var pos = GZIP_HEADER_SIZE;
+    if((flags & FEXTRA) != 0 && pos + 2 <= length) pos += 2 + ((in[pos] & 0xFF) | (in[pos + 1] & 0xFF) << 8);
+    if((flags & FNAME) != 0) {
+      while(pos < length && in[pos++] != 0);
+    }
+    if((flags & FCOMMENT) != 0) {
+      while(pos < length && in[pos++] != 0);
+    }
+    if((flags & FHCRC) != 0) pos += 2;
+    if(pos > length) throw new IOException("Frame is truncated.");
+    return pos;
+  }
+
+  private int readAll(byte[] in, int length) throws IOException {
+    try(var stream = Libraries.open(codec, new ByteArrayInputStream(in, 0, length), dictionary)) {
+      var size = 0;
+      while(true) {
+        if(size == out.length) out = Arrays.copyOf(out, size * 2);
+        var n = stream.read(out, size, out.length - size);
+        if(n < 0) return size;
+        size += n;
+      }
+    } catch(NoClassDefFoundError e) {
+      var library = codec == LZ4? "lz4-java" : "zstd-jni";
+      throw new IOException("Reading %s frames needs %s on the classpath.".formatted(codec == LZ4? "LZ4" : "Zstandard", library), e);
+    }
+  }
+
+  private static int littleEndianInt(byte[] in, int pos) {
+    return (in[pos] & 0xFF) | (in[pos + 1] & 0xFF) << 8 | (in[pos + 2] & 0xFF) << 16 | (in[pos + 3] & 0xFF) << 24;
+  }
+}
@@ -1,3 +1,11 @@
+use std::io::Read;
+
+use anyhow::Context;
+use anyhow::Result;
+use byteorder::ReadBytesExt;
+
+use crate::read_string;
+
 #[derive(Copy, Clone, Debug, Eq, PartialEq, Ord, PartialOrd, Hash)]
 #[allow(non_camel_case_types)]
 pub enum DanBiome {
@@ -138,3 +146,67 @@ impl From<u8> for DanBiome {
         }
     }
 }
+
+/// Biome id used for biomes that are saved by their namespaced key instead.
+const NAMED_BIOME: u8 = 255;
+
+#[derive(Clone, Debug, Eq, PartialEq, Hash)]
+pub enum DanBiomeEntry {
+    Known(DanBiome),
+    /// Biomes without a DanBiome id, i.e. from datapacks or newer versions. Namespaced key.
+    Named(String),
+}
+
+#[derive(Debug)]
+pub enum SectionBiomes {
+    /// Version 1: the biome of every block in the section, in YXZ order.
+    PerBlock(Vec<DanBiome>),
+    /// Version 2 onwards: a palette, and the palette index of every 4x4x4 cell in YXZ order.
+    /// `cells` is empty when the whole section is a single biome.
+    Cells {
+        palette: Vec<DanBiomeEntry>,
+        cells: Vec<u8>,
+    },
+}
+
+impl SectionBiomes {
+    pub(crate) fn read_per_block<R: Read>(r: &mut R, num_blocks: usize) -> Result<Self> {
+        let mut biomes = vec![0u8; num_blocks];
+        r.read_exact(&mut biomes).context("reading biomes")?;
+        Ok(Self::PerBlock(biomes.into_iter().map(DanBiome::from).collect()))
+    }
+
+    pub(crate) fn read_cells<R: Read>(r: &mut R) -> Result<Self> {
+        let palette_len = r.read_u8().context("biome palette length")? as usize;
+        let mut palette = Vec::with_capacity(palette_len);
+        for _ in 0..palette_len {
+            let entry = match r.read_u8().context("biome id")? {
+                NAMED_BIOME => DanBiomeEntry::Named(read_string(r).context("biome key")?),
+                id => DanBiomeEntry::Known(DanBiome::from(id)),
+            };
+            palette.push(entry);
+        }
+
+        let mut cells = Vec::new();
+        if palette_len > 1 {
+            cells = vec![0u8; 64];
+            r.read_exact(&mut cells).context("reading biome cells")?;
+        }
+
+        Ok(Self::Cells { palette, cells })
+    }
+
+    /// Biome of the block at the given position in the section.
+    pub fn get(&self, x: usize, y: usize, z: usize) -> Option<DanBiomeEntry> {
+        match self {
+            Self::PerBlock(biomes) => biomes
+                .get(y * 256 + x * 16 + z)
+                .map(|b| DanBiomeEntry::Known(*b)),
+            Self::Cells { palette, cells } if cells.is_empty() => palette.first().cloned(),
+            Self::Cells { palette, cells } => {
+                let cell = (y / 4) * 16 + (x / 4) * 4 + z / 4;
+                palette.get(*cells.get(cell)? as usize).cloned()
+            }
+        }
+    }
+}
@@ -1,25 +1,62 @@
 use std::io::Cursor;
+use std::io::Read;
 
 use anyhow::Context;
 use anyhow::Result;
 use byteorder::BigEndian;
 use byteorder::ReadBytesExt;
 
+use crate::objects::read_text;
 use crate::read_string;
+use crate::read_varint;
+
+const MARKER_SET_MAGIC: u32 = 0x44574D53; // DWMS
+const MARKER_SET_VERSION: u8 = 1;
 
 #[derive(Debug)]
 pub struct DanExtra {
     pub data: Vec<u8>,
 }
 
+/// A marker set extra, see Marker set in design.txt. Marker `i` is at `(x[i], y[i], z[i])`
+/// from the lowest corner of the selection and tagged `tags[tag_ids[i]]`.
+#[derive(Debug, Default)]
+pub struct DanMarkerSet {
+    pub tags: Vec<String>,
+    pub x: Vec<f64>,
+    pub y: Vec<f64>,
+    pub z: Vec<f64>,
+    pub yaw: Vec<f32>,
+    pub pitch: Vec<f32>,
+    pub tag_ids: Vec<u16>,
+}
+
+impl DanMarkerSet {
+    pub fn len(&self) -> usize {
+        self.x.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.x.is_empty()
+    }
+
+    pub fn tag(&self, i: usize) -> &str {
+        &self.tags[self.tag_ids[i] as usize]
+    }
+}
+
 impl DanExtra {
-    pub(crate) fn from_buf<R: byteorder::ReadBytesExt>(r: &mut R) -> Result<(String, DanExtra)> {
+    pub(crate) fn from_buf<R: byteorder::ReadBytesExt>(
+        r: &mut R,
+        version: u8,
+    ) -> Result<(String, DanExtra)> {
         let key = read_string(r).context("extra key")?;
-        let len = r.read_u16::<BigEndian>().context("extra data len")? as usize;
-        let mut data = Vec::with_capacity(len);
-        for _ in 0..len {
-            data.push(r.read_u8().context("byte for extra data")?);
-        }
+        let len = match version {
+            1 | 2 => r.read_u16::<BigEndian>().context("extra data len")? as usize,
+            _ => read_varint(r).context("extra data len")? as usize,
+        };
+        let mut data = vec![0; len];
+        r.read_exact(&mut data).context("extra data")?;
 
         Ok((key, DanExtra { data }))
     }
@@ -43,6 +80,57 @@ impl DanExtra {
         Ok(buf)
     }
 
+    /// Whether this is a marker set, see `to_marker_set`.
+    pub fn is_marker_set(&self) -> bool {
+        self.data.len() >= 4 && self.data[..4] == MARKER_SET_MAGIC.to_be_bytes()
+    }
+
+    /// Reads a marker set extra. Every column is read in one go.
+    pub fn to_marker_set(&self) -> Result<DanMarkerSet> {
+        if !self.is_marker_set() {
+            anyhow::bail!("Extra is not a marker set");
+        }
+
+        let mut cursor = Cursor::new(&self.data[4..]);
+        let version = cursor.read_u8().context("Marker set version")?;
+        if version != MARKER_SET_VERSION {
+            anyhow::bail!("Marker set version {version} can't be read");
+        }
+
+        let num_tags = read_varint(&mut cursor).context("Number of marker set tags")? as usize;
+        let mut tags = Vec::with_capacity(num_tags);
+        for _ in 0..num_tags {
+            tags.push(read_text(&mut cursor).context("Marker set tag")?);
+        }
+
+        let len = cursor.read_u32::<BigEndian>().context("Number of markers")? as usize;
+        let remaining = self.data.len() - 4 - cursor.position() as usize;
+        if remaining != len * (3 * 8 + 2 * 4 + 2) {
+            anyhow::bail!("Marker set doesn't hold the {len} markers it says it does");
+        }
+
+        let mut set = DanMarkerSet {
+            tags,
+            x: vec![0.0; len],
+            y: vec![0.0; len],
+            z: vec![0.0; len],
+            yaw: vec![0.0; len],
+            pitch: vec![0.0; len],
+            tag_ids: vec![0; len],
+        };
+        cursor.read_f64_into::<BigEndian>(&mut set.x).context("Marker x")?;
+        cursor.read_f64_into::<BigEndian>(&mut set.y).context("Marker y")?;
+        cursor.read_f64_into::<BigEndian>(&mut set.z).context("Marker z")?;
+        cursor.read_f32_into::<BigEndian>(&mut set.yaw).context("Marker yaw")?;
+        cursor.read_f32_into::<BigEndian>(&mut set.pitch).context("Marker pitch")?;
+        cursor.read_u16_into::<BigEndian>(&mut set.tag_ids).context("Marker tags")?;
+
+        if let Some(&id) = set.tag_ids.iter().find(|&&id| id as usize >= set.tags.len()) {
+            anyhow::bail!("Marker set refers to tag {id} of {}", set.tags.len());
+        }
+        Ok(set)
+    }
+
     pub fn to_string(&self) -> anyhow::Result<String> {
         let mut cursor = Cursor::new(&self.data);
 
@@ -0,0 +1,223 @@
+//! The framed layout: an uncompressed header and chunk index, followed by every chunk compressed on its own.
+//! Single chunks can be read without decompressing the rest of the file, and frames can be decoded in parallel.
+
+use std::{
+    collections::HashMap,
+    fs::File,
+    io::{BufReader, Read, Seek, SeekFrom},
+    path::Path,
+};
+
+use anyhow::Context;
+use anyhow::Result;
+use byteorder::{BigEndian, ReadBytesExt};
+use flate2::read::{GzDecoder, ZlibDecoder};
+
+use crate::extra::DanExtra;
+use crate::{
+    check_chunk, read_checksums, read_chunk, read_sized_section, read_string, DanChunk,
+    DanDimension, SharedSection, Sections, CHECKSUMS_VERSION, SHARED_SECTIONS_VERSION,
+};
+
+pub const CODEC_NONE: u8 = 0;
+pub const CODEC_GZIP: u8 = 1;
+pub const CODEC_DEFLATE: u8 = 2;
+pub const CODEC_LZ4: u8 = 3;
+pub const CODEC_ZSTD: u8 = 4;
+
+#[derive(Debug, Clone, Copy)]
+pub struct FrameEntry {
+    pub offset: u64,
+    pub length: u32,
+}
+
+#[derive(Debug)]
+pub struct DanWorldFile<R> {
+    reader: R,
+    pub version: u8,
+    pub codec: u8,
+    /// Zstandard dictionary every frame was compressed with, empty when there is none.
+    dictionary: Vec<u8>,
+    pub dimension: DanDimension,
+    pub width: u16,
+    pub depth: u16,
+    /// One entry per chunk in XZ order, then one for the extras, then one for the section table from version 5,
+    /// then one for the checksums from version 7.
+    index: Vec<FrameEntry>,
+    /// Every distinct section, from version 5. Chunks refer to them by index.
+    sections: Vec<SharedSection>,
+    /// CRC-32 of every section in XZ order then Y, from version 7. Empty before.
+    checksums: Vec<u32>,
+}
+
+impl DanWorldFile<BufReader<File>> {
+    pub fn open<P: AsRef<Path>>(path: P) -> Result<Self> {
+        let file = File::open(path).context("Opening file")?;
+        Self::from_reader(BufReader::new(file))
+    }
+}
+
+impl<R: Read + Seek> DanWorldFile<R> {
+    /// Reads the header and chunk index, the section table from version 5 and the checksums from version 7.
+    /// Nothing else is read until it's asked for.
+    pub fn from_reader(mut reader: R) -> Result<Self> {
+        let magic = read_string(&mut reader).context("Reading magic")?;
+        if magic != "DanWorld" {
+            anyhow::bail!("Not a framed DanWorld file");
+        }
+
+        let version = reader.read_u8().context("Reading version")?;
+        let codec = reader.read_u8().context("Reading codec")?;
+        let mut dictionary = Vec::new();
+        if codec == CODEC_ZSTD {
+            let len = reader.read_u32::<BigEndian>().context("Dictionary length")?;
+            dictionary.resize(len as usize, 0);
+            reader.read_exact(&mut dictionary).context("Reading dictionary")?;
+        }
+        let dimension = DanDimension::from(reader.read_u8().context("Reading dimension")?);
+        let width = reader.read_u16::<BigEndian>().context("Width")?;
+        let depth = reader.read_u16::<BigEndian>().context("Depth")?;
+
+        let entries = width as usize * depth as usize
+            + 1
+            + (version >= SHARED_SECTIONS_VERSION) as usize
+            + (version >= CHECKSUMS_VERSION) as usize;
+        let mut index = Vec::with_capacity(entries);
+        for _ in 0..entries {
+            let offset = reader.read_u64::<BigEndian>().context("Frame offset")?;
+            let length = reader.read_u32::<BigEndian>().context("Frame length")?;
+            index.push(FrameEntry { offset, length });
+        }
+
+        let mut file = Self {
+            reader,
+            version,
+            codec,
+            dictionary,
+            dimension,
+            width,
+            depth,
+            index,
+            sections: Vec::new(),
+            checksums: Vec::new(),
+        };
+        if version >= SHARED_SECTIONS_VERSION {
+            file.sections = file.read_section_table().context("Reading section table")?;
+        }
+        if version >= CHECKSUMS_VERSION {
+            let frame = file.read_frame(entries - 1)?;
+            let checksums = read_checksums(&mut file.decompress(&frame)?);
+            file.checksums = checksums.context("Reading checksums")?;
+        }
+
+        Ok(file)
+    }
+
+    pub fn chunk_count(&self) -> usize {
+        self.width as usize * self.depth as usize
+    }
+
+    /// The compressed bytes of a frame, see `decode_chunk` to turn them into a chunk.
+    /// Frames `0..chunk_count()` are chunks in XZ order, frame `chunk_count()` holds the extras,
+    /// from version 5 frame `chunk_count() + 1` holds the section table, and from version 7 the last frame holds the checksums.
+    pub fn read_frame(&mut self, frame: usize) -> Result<Vec<u8>> {
+        let entry = *self.index.get(frame).context("Frame out of bounds")?;
+        self.reader
+            .seek(SeekFrom::Start(entry.offset))
+            .context("Seeking to frame")?;
+
+        let mut buf = vec![0; entry.length as usize];
+        self.reader.read_exact(&mut buf).context("Reading frame")?;
+        Ok(buf)
+    }
+
+    /// Reads the chunk at `(x, z)`, in chunks from the corner of the export.
+    pub fn read_chunk(&mut self, x: u16, z: u16) -> Result<DanChunk> {
+        if x >= self.width || z >= self.depth {
+            anyhow::bail!("Chunk ({x}, {z}) is outside of the world");
+        }
+
+        self.read_chunk_at(x as usize * self.depth as usize + z as usize)
+    }
+
+    /// Reads the chunk at `index` in XZ order.
+    pub fn read_chunk_at(&mut self, index: usize) -> Result<DanChunk> {
+        if index >= self.chunk_count() {
+            anyhow::bail!("Chunk {index} is outside of the world");
+        }
+
+        let frame = self.read_frame(index)?;
+        self.decode_chunk(&frame)
+    }
+
+    pub fn read_extra(&mut self) -> Result<HashMap<String, DanExtra>> {
+        let frame = self.read_frame(self.chunk_count())?;
+        let mut r = self.decompress(&frame)?;
+
+        let num_extra = r
+            .read_u32::<BigEndian>()
+            .context("Number of extra values")? as usize;
+        let mut extra = HashMap::with_capacity(num_extra);
+        for _ in 0..num_extra {
+            let (key, data) = DanExtra::from_buf(&mut r, self.version).context("Loading extra")?;
+            extra.insert(key, data);
+        }
+
+        Ok(extra)
+    }
+
+    /// Decodes a frame returned by `read_frame`. Only needs `&self`, so frames read up front can be
+    /// decoded on several threads at once. From version 7 a chunk that doesn't match its checksums is an error.
+    pub fn decode_chunk(&self, frame: &[u8]) -> Result<DanChunk> {
+        let mut r = self.decompress(frame)?;
+        let mut sections = if self.version >= SHARED_SECTIONS_VERSION {
+            Sections::Table(&self.sections)
+        } else {
+            Sections::Inline
+        };
+        let chunk = read_chunk(&mut r, self.version, &mut sections)?;
+
+        if self.version >= CHECKSUMS_VERSION {
+            let per_chunk = self.checksums.len() / self.chunk_count().max(1);
+            let start = (chunk.x as usize * self.depth as usize + chunk.z as usize) * per_chunk;
+            let expected = self
+                .checksums
+                .get(start..start + per_chunk)
+                .context("Chunk has no checksums")?;
+            check_chunk(&chunk, expected)?;
+        }
+
+        Ok(chunk)
+    }
+
+    /// Every section in the table frame, each prefixed by its length, until the end of the frame.
+    fn read_section_table(&mut self) -> Result<Vec<SharedSection>> {
+        let frame = self.read_frame(self.chunk_count() + 1)?;
+        let mut bytes = Vec::new();
+        self.decompress(&frame)?
+            .read_to_end(&mut bytes)
+            .context("Decompressing section table")?;
+
+        let mut r = &bytes[..];
+        let mut sections = Vec::new();
+        while !r.is_empty() {
+            sections.push(read_sized_section(&mut r, self.version)?);
+        }
+
+        Ok(sections)
+    }
+
+    fn decompress<'a>(&'a self, frame: &'a [u8]) -> Result<Box<dyn Read + 'a>> {
+        Ok(match self.codec {
+            CODEC_NONE => Box::new(frame),
+            CODEC_GZIP => Box::new(GzDecoder::new(frame)),
+            CODEC_DEFLATE => Box::new(ZlibDecoder::new(frame)),
+            CODEC_LZ4 => Box::new(lz4_flex::frame::FrameDecoder::new(frame)),
+            CODEC_ZSTD => Box::new(
+                zstd::stream::read::Decoder::with_dictionary(frame, &self.dictionary)
+                    .context("Creating zstd decoder")?,
+            ),
+            other => anyhow::bail!("Unknown frame codec {other}"),
+        })
+    }
+}
@@ -4,6 +4,7 @@ use std::{
     collections::HashMap,
     io::{self, Read},
     path::Path,
+    sync::Arc,
 };
 
 use anyhow::Context;
@@ -14,10 +15,15 @@ use byteorder::{BigEndian, ReadBytesExt};
 pub mod biomes;
 pub mod blockdata;
 pub mod extra;
-use biomes::DanBiome;
+pub mod framed;
+pub mod objects;
+use biomes::SectionBiomes;
 
 use extra::DanExtra;
-use flate2::read::GzDecoder;
+use flate2::read::{GzDecoder, MultiGzDecoder};
+use flate2::Crc;
+use framed::DanWorldFile;
+use objects::{read_objects, DanObjects};
 
 #[derive(Debug)]
 pub struct DanWorld {
@@ -36,44 +42,103 @@ pub enum DanDimension {
     End,
 }
 
+impl From<u8> for DanDimension {
+    fn from(value: u8) -> Self {
+        match value {
+            0 => DanDimension::Overworld,
+            1 => DanDimension::Nether,
+            2 => DanDimension::End,
+            _ => DanDimension::Overworld,
+        }
+    }
+}
+
 #[derive(Debug)]
 pub struct DanChunk {
     pub x: u16,
     pub z: u16,
-    pub sections: Vec<DanChunkSection>,
+    /// From version 5 identical sections are stored once, and every chunk using one shares it.
+    pub sections: Vec<Arc<DanChunkSection>>,
+    /// Tile entities and markers, from version 6. Empty before.
+    pub objects: DanObjects,
+    /// CRC-32 of every section, from version 5. Compared with the checksums stored from version 7.
+    checksums: Vec<u32>,
 }
 
 #[derive(Debug)]
 pub struct DanChunkSection {
-    pub palette: Vec<String>,
-    pub blocks: Vec<u8>,
-    pub biomes: Vec<DanBiome>,
+    /// Up to version 2 palette entries are only materials, their block data is in `data`.
+    pub palette: Vec<DanBlockState>,
+    /// Palette index of every block in the section, in YXZ order.
+    pub blocks: Vec<u16>,
+    pub biomes: SectionBiomes,
+    /// Block data by position. Only used up to version 2.
     pub data: HashMap<(usize, usize, usize), Vec<DanBlockData>>,
 }
 
+#[derive(Debug)]
+pub struct DanBlockState {
+    pub key: String,
+    pub data: Vec<DanBlockData>,
+}
+
+const SECTION_BLOCKS: usize = 16 * 16 * 16;
+const SHARED_SECTIONS_VERSION: u8 = 5;
+const OBJECTS_VERSION: u8 = 6;
+const CHECKSUMS_VERSION: u8 = 7;
+const GZIP_MAGIC: [u8; 2] = [0x1f, 0x8b];
+
+impl DanChunkSection {
+    /// The block state at the given position in the section, and its block data.
+    pub fn block_at(
+        &self,
+        x: usize,
+        y: usize,
+        z: usize,
+    ) -> Option<(&DanBlockState, &[DanBlockData])> {
+        let state = self
+            .palette
+            .get(*self.blocks.get(y * 256 + x * 16 + z)? as usize)?;
+        let data = match self.data.get(&(x, y, z)) {
+            Some(data) => data.as_slice(),
+            None => state.data.as_slice(),
+        };
+
+        Some((state, data))
+    }
+}
+
 impl DanWorld {
+    /// Loads a whole world, in either layout.
     pub fn load<P: AsRef<Path>>(path: P) -> Result<Self> {
         let bytes = std::fs::read(path).context("Loading file")?;
-        let mut gz = GzDecoder::new(&bytes[..]);
+        // The stream layout is one GZIP stream, the framed layout starts with the uncompressed magic
+        if !bytes.starts_with(&GZIP_MAGIC) {
+            return Self::load_framed(&bytes);
+        }
+
+        let data = inflate_stream(&bytes).context("Decompressing")?;
+        let mut gz = &data[..];
 
         let _magic = read_string(&mut gz).context("Reading magic")?;
         assert_eq!(&_magic, "DanWorld");
         let version = gz.read_u8().context("Reading version")?;
 
-        let dimension = match gz.read_u8().context("Reading dimension")? {
-            0 => DanDimension::Overworld,
-            1 => DanDimension::Nether,
-            2 => DanDimension::End,
-            _ => DanDimension::Overworld,
-        };
+        let dimension = DanDimension::from(gz.read_u8().context("Reading dimension")?);
 
         let width = gz.read_u16::<BigEndian>().context("Width")?;
         let depth = gz.read_u16::<BigEndian>().context("Depth")?;
 
         let mut chunks = Vec::with_capacity((width * depth) as usize);
 
+        let mut table = Vec::new();
+        let mut sections = if version >= SHARED_SECTIONS_VERSION {
+            Sections::Growing(&mut table)
+        } else {
+            Sections::Inline
+        };
         for _ in 0..chunks.capacity() {
-            chunks.push(read_chunk(&mut gz).context("Reading chunk")?);
+            chunks.push(read_chunk(&mut gz, version, &mut sections).context("Reading chunk")?);
         }
 
         let num_extra = gz
@@ -81,10 +146,23 @@ impl DanWorld {
             .context("Number of extra values")? as usize;
         let mut extra = HashMap::with_capacity(num_extra);
         for _ in 0..num_extra {
-            let (key, data) = DanExtra::from_buf(&mut gz).context("Loading extra")?;
+            let (key, data) = DanExtra::from_buf(&mut gz, version).context("Loading extra")?;
             extra.insert(key, data);
         }
 
+        if version >= CHECKSUMS_VERSION {
+            let checksums = read_checksums(&mut gz).context("Reading checksums")?;
+            let mut expected = &checksums[..];
+            for chunk in &chunks {
+                if expected.len() < chunk.checksums.len() {
+                    anyhow::bail!("There are more sections than checksums");
+                }
+                let (this, rest) = expected.split_at(chunk.checksums.len());
+                check_chunk(chunk, this)?;
+                expected = rest;
+            }
+        }
+
         Ok(Self {
             version,
             dimension,
@@ -95,33 +173,244 @@ impl DanWorld {
         })
     }
 
+    fn load_framed(bytes: &[u8]) -> Result<Self> {
+        let mut file = DanWorldFile::from_reader(io::Cursor::new(bytes))?;
+
+        let mut chunks = Vec::with_capacity(file.chunk_count());
+        for i in 0..chunks.capacity() {
+            chunks.push(file.read_chunk_at(i).context("Reading chunk")?);
+        }
+        let extra = file.read_extra()?;
+
+        Ok(Self {
+            version: file.version,
+            dimension: file.dimension,
+            width: file.width,
+            depth: file.depth,
+            chunks,
+            extra,
+        })
+    }
+
     pub fn get_extra(&self, key: &str) -> Option<&DanExtra> {
         self.extra.get(key)
     }
 }
 
-type Cur<'a> = GzDecoder<&'a [u8]>;
+/// Decompresses a stream layout file. The exporter writes it as independent GZIP members, see Stream layout
+/// in design.txt, which are inflated on every core when each says how long it is. Anything else, i.e. files
+/// written by a single GZIP stream, is inflated in one go.
+fn inflate_stream(bytes: &[u8]) -> Result<Vec<u8>> {
+    let members = match gzip_members(bytes) {
+        Some(members) if members.len() > 1 => members,
+        _ => {
+            let mut data = Vec::new();
+            MultiGzDecoder::new(bytes).read_to_end(&mut data)?;
+            return Ok(data);
+        }
+    };
+
+    let threads = std::thread::available_parallelism()
+        .map_or(1, |n| n.get())
+        .min(members.len());
+    let per_thread = members.len().div_ceil(threads);
+    let parts: Vec<Result<Vec<u8>>> = std::thread::scope(|s| {
+        let handles: Vec<_> = members
+            .chunks(per_thread)
+            .map(|group| {
+                s.spawn(move || -> Result<Vec<u8>> {
+                    let mut out = Vec::new();
+                    for member in group {
+                        GzDecoder::new(*member)
+                            .read_to_end(&mut out)
+                            .context("GZIP member")?;
+                    }
+                    Ok(out)
+                })
+            })
+            .collect();
+        handles
+            .into_iter()
+            .map(|h| {
+                h.join()
+                    .unwrap_or_else(|_| Err(anyhow::anyhow!("Decompressing thread panicked")))
+            })
+            .collect()
+    });
+
+    let mut data = Vec::new();
+    for part in parts {
+        data.extend_from_slice(&part?);
+    }
+    Ok(data)
+}
+
+/// Splits `bytes` into its GZIP members, if every one of them has the "DW" FEXTRA subfield holding its length.
+fn gzip_members(bytes: &[u8]) -> Option<Vec<&[u8]>> {
+    const HEADER_SIZE: usize = 10;
+    const FEXTRA: u8 = 4;
+
+    let mut members = Vec::new();
+    let mut rest = bytes;
+    while !rest.is_empty() {
+        if rest.len() < HEADER_SIZE + 2
+            || !rest.starts_with(&[0x1f, 0x8b, 8])
+            || rest[3] & FEXTRA == 0
+        {
+            return None;
+        }
+        let xlen = u16::from_le_bytes([rest[10], rest[11]]) as usize;
+        let size = member_size(rest.get(HEADER_SIZE + 2..HEADER_SIZE + 2 + xlen)?)? as usize;
+        if size < HEADER_SIZE + 2 + xlen || size > rest.len() {
+            return None;
+        }
+        let (member, tail) = rest.split_at(size);
+        members.push(member);
+        rest = tail;
+    }
 
-fn read_chunk(c: &mut Cur) -> Result<DanChunk> {
+    Some(members)
+}
+
+/// The length of its member stored in the subfields of a FEXTRA field, if it's there.
+fn member_size(mut extra: &[u8]) -> Option<u32> {
+    while extra.len() >= 4 {
+        let len = u16::from_le_bytes([extra[2], extra[3]]) as usize;
+        let data = extra.get(4..4 + len)?;
+        if extra.starts_with(b"DW") && len == 4 {
+            return Some(u32::from_le_bytes([data[0], data[1], data[2], data[3]]));
+        }
+        extra = &extra[4 + len..];
+    }
+
+    None
+}
+
+/// Where the sections of a chunk are, see Shared sections in design.txt.
+pub(crate) enum Sections<'a> {
+    /// Up to version 4 every chunk holds its own sections.
+    Inline,
+    /// Stream layout from version 5: a section is stored in the first chunk using it, and added to the table as it's read.
+    Growing(&'a mut Vec<SharedSection>),
+    /// Framed layout from version 5: the section table, read up front.
+    Table(&'a [SharedSection]),
+}
+
+/// An entry of the section table, and the CRC-32 of its bytes.
+#[derive(Debug, Clone)]
+pub(crate) struct SharedSection {
+    section: Arc<DanChunkSection>,
+    checksum: u32,
+}
+
+pub(crate) fn read_chunk<R: Read>(c: &mut R, version: u8, table: &mut Sections) -> Result<DanChunk> {
     let x = c.read_u16::<BigEndian>().context("chunk x")?;
     let z = c.read_u16::<BigEndian>().context("chunk z")?;
 
     let mut sections = Vec::with_capacity(8);
+    let mut checksums = Vec::new();
 
     let num_sections = c.read_u8().context("number of chunk sections")?;
     for _ in 0..num_sections {
-        sections.push(read_chunk_section(c).context("reading chunk section")?);
+        let shared = match table {
+            Sections::Inline => {
+                sections.push(Arc::new(
+                    read_chunk_section(c, version).context("reading chunk section")?,
+                ));
+                continue;
+            }
+            Sections::Growing(table) => match read_varint(c).context("section reference")? {
+                0 => {
+                    let shared = read_sized_section(c, version)?;
+                    table.push(shared.clone());
+                    shared
+                }
+                id => shared_section(table, id)?,
+            },
+            Sections::Table(table) => match read_varint(c).context("section reference")? {
+                0 => anyhow::bail!("Framed chunk holds a section of its own"),
+                id => shared_section(table, id)?,
+            },
+        };
+        sections.push(shared.section);
+        checksums.push(shared.checksum);
     }
 
-    Ok(DanChunk { x, z, sections })
+    let objects = if version >= OBJECTS_VERSION {
+        read_objects(c).context("reading chunk objects")?
+    } else {
+        DanObjects::default()
+    };
+
+    Ok(DanChunk {
+        x,
+        z,
+        sections,
+        objects,
+        checksums,
+    })
+}
+
+/// Section `id`, counting from 1, of the section table.
+fn shared_section(table: &[SharedSection], id: u32) -> Result<SharedSection> {
+    table
+        .get(id as usize - 1)
+        .cloned()
+        .with_context(|| format!("Section {id} is not in the section table"))
+}
+
+/// A section prefixed by its length in bytes, as stored from version 5.
+pub(crate) fn read_sized_section<R: Read>(c: &mut R, version: u8) -> Result<SharedSection> {
+    let len = read_varint(c).context("section length")? as usize;
+    let mut buf = vec![0; len];
+    c.read_exact(&mut buf).context("reading section")?;
+
+    let mut crc = Crc::new();
+    crc.update(&buf);
+    let section = read_chunk_section(&mut &buf[..], version).context("reading chunk section")?;
+    Ok(SharedSection {
+        section: Arc::new(section),
+        checksum: crc.sum(),
+    })
 }
 
-fn read_chunk_section(c: &mut Cur) -> Result<DanChunkSection> {
+/// The checksums stored from version 7: a VarInt count, then a CRC-32 of every section in XZ order then Y.
+pub(crate) fn read_checksums<R: Read>(c: &mut R) -> Result<Vec<u32>> {
+    let count = read_varint(c).context("number of checksums")?;
+    let mut checksums = Vec::with_capacity(count as usize);
+    for _ in 0..count {
+        checksums.push(c.read_u32::<BigEndian>().context("checksum")?);
+    }
+
+    Ok(checksums)
+}
+
+/// Fails if the sections of `chunk` don't match their stored checksums, i.e. the file is corrupt.
+pub(crate) fn check_chunk(chunk: &DanChunk, expected: &[u32]) -> Result<()> {
+    if chunk.checksums.as_slice() != expected {
+        anyhow::bail!(
+            "Chunk ({}, {}) doesn't match its checksums, the file is corrupt",
+            chunk.x,
+            chunk.z
+        );
+    }
+
+    Ok(())
+}
+
+fn read_chunk_section<R: Read>(c: &mut R, version: u8) -> Result<DanChunkSection> {
+    if version >= 3 {
+        return read_chunk_section_v3(c, version);
+    }
+
     let palette_len = c.read_u8().context("palette length")?;
     let mut palette = Vec::with_capacity(palette_len as usize);
 
     for _ in 0..palette_len {
-        palette.push(read_string(c).context("reading palette")?);
+        palette.push(DanBlockState {
+            key: read_string(c).context("reading palette")?,
+            data: Vec::new(),
+        });
     }
 
     let num_blocks = c
@@ -130,10 +419,12 @@ fn read_chunk_section(c: &mut Cur) -> Result<DanChunkSection> {
     let mut blocks = vec![0u8; num_blocks];
     c.read_exact(&mut blocks)
         .context("filling chunk section block array")?;
+    let blocks = blocks.into_iter().map(u16::from).collect();
 
-    let mut biomes = vec![0u8; num_blocks];
-    c.read_exact(&mut biomes).context("reading biomes")?;
-    let biomes = biomes.into_iter().map(DanBiome::from).collect();
+    let biomes = match version {
+        1 => SectionBiomes::read_per_block(c, num_blocks)?,
+        _ => SectionBiomes::read_cells(c)?,
+    };
 
     let num_data = c
         .read_u16::<BigEndian>()
@@ -172,6 +463,105 @@ fn read_chunk_section(c: &mut Cur) -> Result<DanChunkSection> {
     })
 }
 
+const BLOCKS_SINGLE: u8 = 0;
+const BLOCKS_RUNS: u8 = 1;
+const BLOCKS_PACKED: u8 = 2;
+
+fn read_chunk_section_v3<R: Read>(c: &mut R, version: u8) -> Result<DanChunkSection> {
+    let palette_len = read_varint(c).context("palette length")? as usize;
+    let mut palette = Vec::with_capacity(palette_len);
+
+    for _ in 0..palette_len {
+        let key = read_string(c).context("block state key")?;
+        let data_len = c.read_u8().context("block state data length")?;
+        let mut data = Vec::with_capacity(data_len as usize);
+        for _ in 0..data_len {
+            let bits = c
+                .read_u16::<BigEndian>()
+                .context("reading block data element")?;
+            if let Some(current) = blockdata::from(bits) {
+                data.push(current);
+            }
+        }
+
+        palette.push(DanBlockState { key, data });
+    }
+
+    let blocks = if version == 3 {
+        read_packed_blocks(c)?
+    } else {
+        match c.read_u8().context("section block encoding")? {
+            BLOCKS_SINGLE => vec![0; SECTION_BLOCKS],
+            BLOCKS_RUNS => read_block_runs(c)?,
+            BLOCKS_PACKED => read_packed_blocks(c)?,
+            other => anyhow::bail!("Unknown section block encoding {other}"),
+        }
+    };
+
+    let biomes = SectionBiomes::read_cells(c)?;
+
+    Ok(DanChunkSection {
+        palette,
+        blocks,
+        biomes,
+        data: HashMap::new(),
+    })
+}
+
+fn read_packed_blocks<R: Read>(c: &mut R) -> Result<Vec<u16>> {
+    let bits = c.read_u8().context("bits per block")? as usize;
+    if bits == 0 {
+        return Ok(vec![0; SECTION_BLOCKS]);
+    }
+    if bits > 16 {
+        anyhow::bail!("Blocks are packed with {bits} bits each");
+    }
+
+    // Indices never span two longs, and the first one is in the lowest bits
+    let per_long = 64 / bits;
+    let mask = (1u64 << bits) - 1;
+    let mut blocks = Vec::with_capacity(SECTION_BLOCKS);
+    for _ in 0..SECTION_BLOCKS.div_ceil(per_long) {
+        let packed = c.read_u64::<BigEndian>().context("packed blocks")?;
+        for i in 0..per_long.min(SECTION_BLOCKS - blocks.len()) {
+            blocks.push(((packed >> (i * bits)) & mask) as u16);
+        }
+    }
+
+    Ok(blocks)
+}
+
+fn read_block_runs<R: Read>(c: &mut R) -> Result<Vec<u16>> {
+    let num_runs = read_varint(c).context("number of block runs")?;
+    let mut blocks = Vec::with_capacity(SECTION_BLOCKS);
+    for _ in 0..num_runs {
+        let state = read_varint(c).context("block run state")? as u16;
+        let len = read_varint(c).context("block run length")? as usize;
+        if blocks.len() + len > SECTION_BLOCKS {
+            anyhow::bail!("Block runs are longer than a section");
+        }
+        blocks.resize(blocks.len() + len, state);
+    }
+    if blocks.len() != SECTION_BLOCKS {
+        anyhow::bail!("Block runs cover {} blocks of a section", blocks.len());
+    }
+
+    Ok(blocks)
+}
+
+pub(crate) fn read_varint<R: ReadBytesExt>(c: &mut R) -> Result<u32> {
+    let mut value = 0u32;
+    for shift in (0..32).step_by(7) {
+        let byte = c.read_u8().context("VarInt byte")?;
+        value |= ((byte & 0x7F) as u32) << shift;
+        if byte & 0x80 == 0 {
+            return Ok(value);
+        }
+    }
+
+    anyhow::bail!("VarInt is longer than 5 bytes")
+}
+
 pub(crate) fn read_string<W: ReadBytesExt>(c: &mut W) -> Result<String> {
     let len = c.read_u8()? as usize;
     let mut buf = vec![0; len];
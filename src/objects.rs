@@ -0,0 +1,110 @@
+//! Tile entities and marker entities stored with each chunk from version 6, see Chunk objects in design.txt.
+
+use std::io::Read;
+
+use anyhow::Context;
+use anyhow::Result;
+use byteorder::{BigEndian, ReadBytesExt};
+
+use crate::{read_string, read_varint};
+
+#[derive(Debug, Default)]
+pub struct DanObjects {
+    /// In YXZ order.
+    pub tile_entities: Vec<DanTileEntity>,
+    pub markers: Vec<DanMarker>,
+}
+
+#[derive(Debug)]
+pub struct DanTileEntity {
+    /// Block in the chunk, 0 - 15.
+    pub x: u8,
+    /// Blocks above the bottom of the selection.
+    pub y: u32,
+    /// Block in the chunk, 0 - 15.
+    pub z: u8,
+    /// Minecraft namespaced key of the block, i.e. minecraft:oak_sign
+    pub key: String,
+    /// Custom name, empty when there is none.
+    pub name: String,
+    /// Text of a sign, front then back. Empty for anything else.
+    pub lines: Vec<String>,
+}
+
+#[derive(Debug)]
+pub struct DanMarker {
+    /// Minecraft namespaced key of the entity type, i.e. minecraft:marker
+    pub key: String,
+    /// Custom name, empty when there is none.
+    pub name: String,
+    pub tags: Vec<String>,
+    /// x, y, z from the lowest corner of the selection, then yaw and pitch. Same as `DanExtra::to_coords`.
+    pub coords: [f64; 5],
+}
+
+pub(crate) fn read_objects<R: Read>(c: &mut R) -> Result<DanObjects> {
+    let num_tiles = read_varint(c).context("number of tile entities")?;
+    let mut tile_entities = Vec::with_capacity(num_tiles as usize);
+    for _ in 0..num_tiles {
+        let x = c.read_u8().context("tile entity x")?;
+        let z = c.read_u8().context("tile entity z")?;
+        let y = read_varint(c).context("tile entity y")?;
+        let key = read_string(c).context("tile entity key")?;
+        let name = read_text(c).context("tile entity name")?;
+        let num_lines = c.read_u8().context("number of sign lines")?;
+        let mut lines = Vec::with_capacity(num_lines as usize);
+        for _ in 0..num_lines {
+            lines.push(read_text(c).context("sign line")?);
+        }
+
+        tile_entities.push(DanTileEntity {
+            x,
+            y,
+            z,
+            key,
+            name,
+            lines,
+        });
+    }
+
+    let num_markers = read_varint(c).context("number of markers")?;
+    let mut markers = Vec::with_capacity(num_markers as usize);
+    for _ in 0..num_markers {
+        let key = read_string(c).context("marker key")?;
+        let name = read_text(c).context("marker name")?;
+        let num_tags = read_varint(c).context("number of marker tags")?;
+        let mut tags = Vec::with_capacity(num_tags as usize);
+        for _ in 0..num_tags {
+            tags.push(read_text(c).context("marker tag")?);
+        }
+
+        let mut coords = [0.0; 5];
+        for coord in &mut coords[..3] {
+            *coord = c.read_f64::<BigEndian>().context("marker position")?;
+        }
+        for coord in &mut coords[3..] {
+            *coord = c.read_f32::<BigEndian>().context("marker rotation")? as f64;
+        }
+
+        markers.push(DanMarker {
+            key,
+            name,
+            tags,
+            coords,
+        });
+    }
+
+    Ok(DanObjects {
+        tile_entities,
+        markers,
+    })
+}
+
+/// Text that may be longer than a DanString: a VarInt length, then UTF-8.
+pub(crate) fn read_text<R: Read>(c: &mut R) -> Result<String> {
+    let len = read_varint(c)? as usize;
+    let mut buf = vec![0; len];
+    c.read_exact(&mut buf).context("Text bytes")?;
+
+    String::from_utf8(buf).context("Reading text")
+}